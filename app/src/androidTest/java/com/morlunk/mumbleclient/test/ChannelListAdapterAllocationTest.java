@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.test;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.v7.widget.RecyclerView;
+import android.test.InstrumentationTestCase;
+import android.view.ContextThemeWrapper;
+import android.widget.FrameLayout;
+
+import com.morlunk.jumble.IJumbleSession;
+import com.morlunk.jumble.JumbleService;
+import com.morlunk.jumble.model.IChannel;
+import com.morlunk.jumble.model.IUser;
+import com.morlunk.mumbleclient.R;
+import com.morlunk.mumbleclient.channel.ChannelListAdapter;
+import com.morlunk.mumbleclient.service.ChannelAggregateIndex;
+import com.morlunk.mumbleclient.service.IPlumbleService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ensures that binding rows of the channel list does not allocate once the rows are warm.
+ */
+public class ChannelListAdapterAllocationTest extends InstrumentationTestCase {
+    private static final int CHANNEL_COUNT = 20;
+    private static final int USERS_PER_CHANNEL = 5;
+    /** Time to wait for the adapter to build its tree, in ms. */
+    private static final long BUILD_TIMEOUT = 5000;
+
+    private ChannelListAdapter mAdapter;
+    private RecyclerView.ViewHolder[] mHolders;
+    private IUser mCalibrationUser;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Context context = new ContextThemeWrapper(
+                getInstrumentation().getTargetContext(), R.style.Theme_Plumble);
+        final ChannelAggregateIndex aggregateIndex = new ChannelAggregateIndex();
+        final IChannel root = createServer(aggregateIndex);
+        final IJumbleSession session = JumbleFakes.create(IJumbleSession.class,
+                new JumbleFakes.Properties()
+                        .put("getRootChannel", root)
+                        .put("getSessionChannel", root)
+                        .put("getSessionId", -1)
+                        .put("getChannel", new JumbleFakes.Answer() {
+                            @Override
+                            public Object answer(Object[] args) {
+                                return ((Integer) args[0]) == 0 ? root : null;
+                            }
+                        })
+                        .build());
+        final IPlumbleService service = JumbleFakes.create(IPlumbleService.class,
+                new JumbleFakes.Properties()
+                        .put("isConnected", true)
+                        .put("getConnectionState", JumbleService.ConnectionState.CONNECTED)
+                        .put("getSession", session)
+                        .put("getAggregateIndex", aggregateIndex)
+                        .build());
+        mCalibrationUser = createUser(Integer.MAX_VALUE);
+
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mAdapter = new ChannelListAdapter(context, service, null, null, false, true);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        waitForBuild();
+
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                FrameLayout parent = new FrameLayout(context);
+                mHolders = new RecyclerView.ViewHolder[mAdapter.getItemCount()];
+                for (int i = 0; i < mHolders.length; i++) {
+                    mHolders[i] = mAdapter.onCreateViewHolder(parent, mAdapter.getItemViewType(i));
+                }
+            }
+        });
+    }
+
+    public void testBindDoesNotAllocate() {
+        assertEquals(CHANNEL_COUNT + 1 + CHANNEL_COUNT * USERS_PER_CHANNEL, mHolders.length);
+        final int[] result = new int[3];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                // Warm up: the first bind of each row may create drawables and strings.
+                bindAll();
+                bindAll();
+
+                Debug.startAllocCounting();
+                try {
+                    int invocations = JumbleFakes.getInvocationCount();
+                    Debug.resetThreadAllocCount();
+                    bindAll();
+                    int allocations = Debug.getThreadAllocCount();
+                    invocations = JumbleFakes.getInvocationCount() - invocations;
+
+                    // Fakes are proxies, which may allocate per call. Make as many calls to a
+                    // fake, which like those made by binding return a cached value or null, and
+                    // measure their allocations as a baseline.
+                    Debug.resetThreadAllocCount();
+                    for (int i = 0; i < invocations; i++) {
+                        mCalibrationUser.isMuted();
+                    }
+                    int baseline = Debug.getThreadAllocCount();
+
+                    result[0] = allocations;
+                    result[1] = invocations;
+                    result[2] = baseline;
+                } finally {
+                    Debug.stopAllocCounting();
+                }
+            }
+        });
+        assertEquals("Binding allocated " + result[0] + " objects, and " + result[1] +
+                " calls to fakes allocated " + result[2], result[2], result[0]);
+    }
+
+    private void bindAll() {
+        for (int i = 0; i < mHolders.length; i++) {
+            mAdapter.onBindViewHolder(mHolders[i], i);
+        }
+    }
+
+    private void waitForBuild() throws InterruptedException {
+        final int[] count = new int[1];
+        long deadline = SystemClock.uptimeMillis() + BUILD_TIMEOUT;
+        while (SystemClock.uptimeMillis() < deadline) {
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    count[0] = mAdapter.getItemCount();
+                }
+            });
+            if (count[0] > 0) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        fail("Channel tree was not built in time");
+    }
+
+    /**
+     * Creates a root channel with {@link #CHANNEL_COUNT} subchannels, each with
+     * {@link #USERS_PER_CHANNEL} users.
+     */
+    private static IChannel createServer(ChannelAggregateIndex aggregateIndex) {
+        List<IChannel> subchannels = new ArrayList<IChannel>();
+        for (int c = 1; c <= CHANNEL_COUNT; c++) {
+            List<IUser> users = new ArrayList<IUser>();
+            for (int u = 0; u < USERS_PER_CHANNEL; u++) {
+                int session = c * USERS_PER_CHANNEL + u;
+                users.add(createUser(session));
+                aggregateIndex.updateUser(session, c);
+            }
+            subchannels.add(createChannel(c, users, Collections.<IChannel>emptyList()));
+            aggregateIndex.updateChannel(c, 0);
+        }
+        aggregateIndex.updateChannel(0, ChannelAggregateIndex.NO_PARENT);
+        return createChannel(0, Collections.<IUser>emptyList(), subchannels);
+    }
+
+    private static IChannel createChannel(int id, List<IUser> users, List<IChannel> subchannels) {
+        return JumbleFakes.create(IChannel.class, new JumbleFakes.Properties()
+                .put("getId", id)
+                .put("getName", "Channel " + id)
+                .put("getUsers", users)
+                .put("getSubchannels", subchannels)
+                .put("getLinks", Collections.emptyList())
+                .build());
+    }
+
+    private static IUser createUser(int session) {
+        return JumbleFakes.create(IUser.class, new JumbleFakes.Properties()
+                .put("getSession", session)
+                .put("getName", "User " + session)
+                .build());
+    }
+}
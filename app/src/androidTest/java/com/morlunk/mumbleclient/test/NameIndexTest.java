@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.test;
+
+import junit.framework.TestCase;
+
+import com.morlunk.mumbleclient.service.NameIndex;
+
+import java.util.List;
+
+/**
+ * Tests matching and ranking of channel and user names in the search index.
+ */
+public class NameIndexTest extends TestCase {
+    private NameIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndex = new NameIndex();
+        mIndex.putChannel(0, "Root");
+        mIndex.putChannel(1, "Games");
+        mIndex.putChannel(2, "Board Games");
+        mIndex.putChannel(3, "Minigames");
+        mIndex.putUser(10, "game");
+        mIndex.putUser(11, "Gamer");
+    }
+
+    public void testRanking() {
+        List<NameIndex.Entry> results = mIndex.search("game", 10);
+        assertEquals(5, results.size());
+        assertEntry(results.get(0), NameIndex.TYPE_USER, 10);       // Exact
+        assertEntry(results.get(1), NameIndex.TYPE_USER, 11);       // Prefix, shorter
+        assertEntry(results.get(2), NameIndex.TYPE_CHANNEL, 1);     // Prefix
+        assertEntry(results.get(3), NameIndex.TYPE_CHANNEL, 2);     // Word prefix
+        assertEntry(results.get(4), NameIndex.TYPE_CHANNEL, 3);     // Substring
+    }
+
+    public void testShortQueries() {
+        assertEquals(1, mIndex.search("ro", 10).size());
+        assertEquals(5, mIndex.search("m", 10).size());
+        assertEquals(5, mIndex.search("me", 10).size());
+        assertEquals(0, mIndex.search("mx", 10).size());
+    }
+
+    public void testLimit() {
+        assertEquals(2, mIndex.search("game", 2).size());
+        assertEquals(0, mIndex.search("game", 0).size());
+        assertEquals(0, mIndex.search("", 10).size());
+    }
+
+    public void testLimitKeepsBest() {
+        for (int i = 0; i < 200; i++) {
+            mIndex.putUser(100 + i, "Player " + i);
+        }
+        String[] queries = { "g", "ga", "game", "p", "pl", "1", "12", "r" };
+        for (String query : queries) {
+            List<NameIndex.Entry> all = mIndex.search(query, Integer.MAX_VALUE);
+            for (int limit = 1; limit <= 10; limit++) {
+                List<NameIndex.Entry> top = mIndex.search(query, limit);
+                assertEquals(Math.min(limit, all.size()), top.size());
+                for (int i = 0; i < top.size(); i++) {
+                    assertSame(all.get(i), top.get(i));
+                }
+            }
+        }
+    }
+
+    public void testNormalization() {
+        mIndex.putUser(12, "Ren\u00e9e");
+        List<NameIndex.Entry> results = mIndex.search("  RENEE ", 10);
+        assertEquals(1, results.size());
+        assertEquals("Ren\u00e9e", results.get(0).getName());
+    }
+
+    public void testUpdates() {
+        mIndex.putChannel(1, "Music");
+        assertEquals(4, mIndex.search("game", 10).size());
+        assertEquals(1, mIndex.search("usi", 10).size());
+
+        mIndex.removeUser(10);
+        mIndex.removeChannel(2);
+        assertEquals(2, mIndex.search("game", 10).size());
+
+        mIndex.clear();
+        assertEquals(0, mIndex.size());
+        assertEquals(0, mIndex.search("music", 10).size());
+    }
+
+    private static void assertEntry(NameIndex.Entry entry, int type, int id) {
+        assertEquals(type, entry.getType());
+        assertEquals(id, entry.getId());
+    }
+}
@@ -19,10 +19,10 @@ package com.morlunk.mumbleclient.channel;
 
 import android.app.Activity;
 import android.content.Context;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.RemoteException;
 import android.text.Editable;
-import android.text.Html;
 import android.text.TextWatcher;
 import android.text.method.LinkMovementMethod;
 import android.view.Gravity;
@@ -34,7 +34,8 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
 import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.LinearLayout;
@@ -44,62 +45,106 @@ import android.widget.TextView.OnEditorActionListener;
 
 import com.morlunk.jumble.IJumbleService;
 import com.morlunk.jumble.IJumbleSession;
-import com.morlunk.jumble.model.IChannel;
 import com.morlunk.jumble.model.IMessage;
-import com.morlunk.jumble.model.IUser;
-import com.morlunk.jumble.model.User;
 import com.morlunk.jumble.util.IJumbleObserver;
 import com.morlunk.jumble.util.JumbleDisconnectedException;
-import com.morlunk.jumble.util.JumbleObserver;
 import com.morlunk.mumbleclient.R;
+import com.morlunk.mumbleclient.db.ChatHistoryDatabase;
 import com.morlunk.mumbleclient.service.IChatMessage;
+import com.morlunk.mumbleclient.service.IPlumbleService;
+import com.morlunk.mumbleclient.service.MessageLog;
+import com.morlunk.mumbleclient.util.BatchingJumbleObserver;
 import com.morlunk.mumbleclient.util.JumbleServiceFragment;
 import com.morlunk.mumbleclient.util.MumbleImageGetter;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class ChannelChatFragment extends JumbleServiceFragment implements ChatTargetProvider.OnChatTargetSelectedListener {
     private static final Pattern LINK_PATTERN = Pattern.compile("(https?://\\S+)");
+    /** The number of messages of chat history to load at a time when scrolling back. */
+    private static final int HISTORY_PAGE_SIZE = 50;
 
-	private IJumbleObserver mServiceObserver = new JumbleObserver() {
+	private BatchingJumbleObserver mServiceObserver = new BatchingJumbleObserver() {
 
         @Override
-        public void onMessageLogged(IMessage message) {
-            addChatMessage(new IChatMessage.TextMessage(message), true);
+        protected void onBatch(Batch batch) {
+            IJumbleService service = getService();
+            if (!batch.getUserMoves().isEmpty() && service.isConnected()) {
+                IJumbleSession session = service.getSession();
+                if (session.getSessionUser() != null &&
+                        batch.getUserMove(session.getSessionId()) != null &&
+                        mTargetProvider.getChatTarget() == null) {
+                    // Update chat target when user changes channels without a target.
+                    updateChatTargetText(null);
+                }
+            }
         }
+    };
 
+    /** Keeps the chat list in sync with the service's message log. */
+    private final MessageLog.Listener mLogListener = new MessageLog.Listener() {
         @Override
-        public void onLogInfo(String message) {
-            addChatMessage(new IChatMessage.InfoMessage(IChatMessage.InfoMessage.Type.INFO, message), true);
+        public void onMessageAppended(int position) {
+            mChatAdapter.onMessageAppended(position);
+            if (mRemovedRows > 0) {
+                // Keeps the visible messages in place. Done once the adapter has been notified,
+                // which would otherwise restore the old position.
+                int firstPosition = mChatList.getFirstVisiblePosition();
+                View firstView = mChatList.getChildAt(0);
+                int firstTop = firstView != null ? firstView.getTop() : 0;
+                mChatList.setSelectionFromTop(Math.max(0, firstPosition - mRemovedRows), firstTop);
+                mRemovedRows = 0;
+            }
+            scrollToBottom();
         }
 
         @Override
-        public void onLogWarning(String message) {
-            addChatMessage(new IChatMessage.InfoMessage(IChatMessage.InfoMessage.Type.WARNING, message), true);
+        public void onMessagesEvicting(int count) {
+            MessageLog log = mChatAdapter.getMessageLog();
+            boolean saved = true;
+            for (int i = 0; i < count && saved; i++) {
+                saved = log.getSequence(i) >= 0;
+            }
+            if (saved) {
+                // The messages are in the chat history, right after any page of it loaded, so
+                // they stay in the list as history and nothing moves.
+                if (mHistoryFirstId == Long.MAX_VALUE && mHistoryFirstSequence < 0) {
+                    // A page loading from the log would overlap them; page back from them instead.
+                    cancelHistoryLoad();
+                    mHistoryFirstSequence = log.getSequence(0);
+                }
+                mChatAdapter.keepEvictedMessages(count);
+                return;
+            }
+            // Unsaved messages can't be paged back in, so loaded history would no longer be
+            // contiguous with the list. It is reloaded when scrolling back.
+            mRemovedRows += mChatAdapter.dropHistory() + count;
+            cancelHistoryLoad();
+            mHistoryExhausted = false;
+            mHistoryFirstId = Long.MAX_VALUE;
+            mHistoryFirstSequence = -1;
         }
 
         @Override
-        public void onLogError(String message) {
-            addChatMessage(new IChatMessage.InfoMessage(IChatMessage.InfoMessage.Type.ERROR, message), true);
+        public void onMessagesCleared() {
+            cancelHistoryLoad();
+            mHistoryFirstId = Long.MAX_VALUE;
+            mHistoryFirstSequence = -1;
+            mRemovedRows = 0;
+            mChatAdapter.onMessagesCleared();
         }
+    };
 
+    private final Runnable mScrollToBottomRunnable = new Runnable() {
         @Override
-        public void onUserJoinedChannel(IUser user, IChannel newChannel, IChannel oldChannel) {
-            IJumbleService service = getService();
-            if (service.isConnected()) {
-                IJumbleSession session = service.getSession();
-                if (user != null && session.getSessionUser() != null &&
-                        user.equals(session.getSessionUser()) &&
-                        mTargetProvider.getChatTarget() == null) {
-                    // Update chat target when user changes channels without a target.
-                    updateChatTargetText(null);
-                }
+        public void run() {
+            mScrollPosted = false;
+            if (mChatAdapter != null) {
+                mChatList.smoothScrollToPosition(mChatAdapter.getCount() - 1);
             }
         }
     };
@@ -109,6 +154,19 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
 	private EditText mChatTextEdit;
 	private ImageButton mSendButton;
     private ChatTargetProvider mTargetProvider;
+    private HistoryLoadTask mHistoryTask;
+    /** Whether all of the server's chat history has been loaded into the adapter. */
+    private boolean mHistoryExhausted;
+    /** The id of the oldest history message loaded, or {@link Long#MAX_VALUE} if none are. */
+    private long mHistoryFirstId = Long.MAX_VALUE;
+    /**
+     * The history sequence number of the oldest message kept after being evicted from the log,
+     * or -1. History is paged back from it until a page has been loaded.
+     */
+    private long mHistoryFirstSequence = -1;
+    /** The number of rows removed from the start of the list by the pending append. */
+    private int mRemovedRows;
+    private boolean mScrollPosted;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -143,6 +201,18 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
 			Bundle savedInstanceState) {
 		View view = inflater.inflate(R.layout.fragment_chat, container, false);
         mChatList = (ListView) view.findViewById(R.id.chat_list);
+        mChatList.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (firstVisibleItem == 0) {
+                    loadHistoryPage();
+                }
+            }
+        });
 		mChatTextEdit = (EditText) view.findViewById(R.id.chatTextEdit);
 		
 		mSendButton = (ImageButton) view.findViewById(R.id.chatTextSend);
@@ -182,6 +252,12 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
         return view;
 	}
 
+    @Override
+    public void onDestroy() {
+        detachChatAdapter();
+        super.onDestroy();
+    }
+
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.fragment_chat, menu);
@@ -198,25 +274,13 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
     }
 
     /**
-     * Adds the passed text to the fragment chat body.
-     * @param message The message to add.
-     * @param scroll Whether to scroll to the bottom after adding the message.
+     * Scrolls to the newest message once the list has been laid out, at most once per frame.
      */
-    public void addChatMessage(IChatMessage message, boolean scroll) {
-		if(mChatAdapter == null) return;
-
-        mChatAdapter.add(message);
-
-        if(scroll) {
-            mChatList.post(new Runnable() {
-
-                @Override
-                public void run() {
-                    mChatList.smoothScrollToPosition(mChatAdapter.getCount() - 1);
-                }
-            });
-        }
-	}
+    private void scrollToBottom() {
+        if (mScrollPosted) return;
+        mScrollPosted = true;
+        mChatList.post(mScrollToBottomRunnable);
+    }
 
     /**
      * Sends the message currently in {@link com.morlunk.mumbleclient.channel.ChannelChatFragment#mChatTextEdit}
@@ -236,7 +300,7 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
             responseMessage = session.sendUserTextMessage(target.getUser().getSession(), formattedMessage);
         else if(target.getChannel() != null)
             responseMessage = session.sendChannelTextMessage(target.getChannel().getId(), formattedMessage, false);
-        addChatMessage(new IChatMessage.TextMessage(responseMessage), true);
+        getService().logSentMessage(responseMessage);
         mChatTextEdit.setText("");
 	}
 
@@ -254,10 +318,47 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
     }
 	
 	public void clear() {
-        mChatAdapter.clear();
+        mHistoryExhausted = true;
         getService().clearMessageLog();
     }
 
+    /**
+     * Starts loading the page of chat history preceding the oldest message shown, if there is
+     * more history and no page is already loading.
+     */
+    private void loadHistoryPage() {
+        if (mChatAdapter == null || mHistoryTask != null || mHistoryExhausted) return;
+        mHistoryTask = new HistoryLoadTask(getService(), mHistoryFirstId, mHistoryFirstSequence);
+        mHistoryTask.execute();
+    }
+
+    private void cancelHistoryLoad() {
+        if (mHistoryTask != null) {
+            mHistoryTask.cancel(false);
+            mHistoryTask = null;
+        }
+    }
+
+    /**
+     * Prepends a page of chat history to the list, keeping the visible messages in place.
+     */
+    private void onHistoryPageLoaded(ChatHistoryDatabase.Page historyPage) {
+        mHistoryTask = null;
+        List<IChatMessage> page = historyPage.getMessages();
+        if (page.size() < HISTORY_PAGE_SIZE) {
+            mHistoryExhausted = true;
+        }
+        if (page.isEmpty() || mChatAdapter == null) return;
+        mHistoryFirstId = historyPage.getFirstId();
+
+        int firstPosition = mChatList.getFirstVisiblePosition();
+        View firstView = mChatList.getChildAt(0);
+        int firstTop = firstView != null ? firstView.getTop() : 0;
+
+        mChatAdapter.prependHistory(page);
+        mChatList.setSelectionFromTop(firstPosition + page.size(), firstTop);
+    }
+
 	/**
 	 * Updates hint displaying chat target.
 	 */
@@ -280,7 +381,14 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
 
     @Override
     public void onServiceBound(IJumbleService service) {
-        mChatAdapter = new ChannelChatAdapter(getActivity(), service, getService().getMessageLog());
+        detachChatAdapter();
+        mHistoryExhausted = false;
+        mHistoryFirstId = Long.MAX_VALUE;
+        mHistoryFirstSequence = -1;
+        mRemovedRows = 0;
+        MessageLog log = getService().getMessageLog();
+        mChatAdapter = new ChannelChatAdapter(getActivity(), service, log);
+        log.addListener(mLogListener);
         mChatList.setAdapter(mChatAdapter);
         mChatList.post(new Runnable() {
             @Override
@@ -290,6 +398,23 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
         });
     }
 
+    @Override
+    public void onServiceUnbound() {
+        mServiceObserver.cancel();
+        detachChatAdapter();
+    }
+
+    /**
+     * Stops the chat adapter from following the message log, if attached.
+     */
+    private void detachChatAdapter() {
+        cancelHistoryLoad();
+        if (mChatAdapter != null) {
+            mChatAdapter.getMessageLog().removeListener(mLogListener);
+            mChatAdapter.shutdown();
+        }
+    }
+
     @Override
     public IJumbleObserver getServiceObserver() {
         return mServiceObserver;
@@ -300,79 +425,199 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
         updateChatTargetText(target);
     }
 
-    private static class ChannelChatAdapter extends ArrayAdapter<IChatMessage> {
-        private final MumbleImageGetter mImageGetter;
+    /**
+     * Reads a page of chat history from the service off the main thread.
+     */
+    private class HistoryLoadTask extends AsyncTask<Void, Void, ChatHistoryDatabase.Page> {
+        private final IPlumbleService mService;
+        private final long mBeforeId;
+        private final long mBeforeSequence;
+
+        /**
+         * @param beforeSequence The sequence number of a logged message to page back from if no
+         *                       id is given, or -1 to page back from the log.
+         */
+        public HistoryLoadTask(IPlumbleService service, long beforeId, long beforeSequence) {
+            mService = service;
+            mBeforeId = beforeId;
+            mBeforeSequence = beforeSequence;
+        }
+
+        @Override
+        protected ChatHistoryDatabase.Page doInBackground(Void... params) {
+            long beforeId = mBeforeId;
+            if (beforeId == Long.MAX_VALUE && mBeforeSequence >= 0) {
+                beforeId = mService.getChatHistoryId(mBeforeSequence);
+            }
+            return mService.getChatHistory(beforeId, HISTORY_PAGE_SIZE);
+        }
+
+        @Override
+        protected void onPostExecute(ChatHistoryDatabase.Page page) {
+            if (mHistoryTask == this) {
+                onHistoryPageLoaded(page);
+            }
+        }
+    }
+
+    /**
+     * Shows the service's message log in place, preceded by any pages of older chat history that
+     * have been loaded and by saved messages evicted from the log. The log isn't copied; the
+     * fragment forwards changes to it.
+     */
+    private static class ChannelChatAdapter extends BaseAdapter {
+        /** The number of most recent messages to render as soon as the adapter is created. */
+        private static final int PRERENDER_COUNT = 20;
+
+        private final Context mContext;
         private final IJumbleService mService;
-        private final DateFormat mDateFormat;
+        private final MessageLog mLog;
+        /** Messages from the chat history older than those in the log, oldest first. */
+        private final List<IChatMessage> mHistory;
+        private final ChatMessageRenderer mRenderer;
 
-        public ChannelChatAdapter(Context context, IJumbleService service, List<IChatMessage> messages) {
-            super(context, 0, new ArrayList<>(messages));
+        public ChannelChatAdapter(Context context, IJumbleService service, MessageLog log) {
+            mContext = context;
             mService = service;
-            mImageGetter = new MumbleImageGetter(context);
-            mDateFormat = SimpleDateFormat.getTimeInstance();
+            mLog = log;
+            mHistory = new ArrayList<IChatMessage>();
+            MumbleImageGetter imageGetter = new MumbleImageGetter(context,
+                    new MumbleImageGetter.OnImageLoadedListener() {
+                        @Override
+                        public void onImageLoaded() {
+                            // Rebinding lays out the rows again with the loaded images' sizes.
+                            notifyDataSetChanged();
+                        }
+                    });
+            mRenderer = new ChatMessageRenderer(context, imageGetter,
+                    new ChatMessageRenderer.Listener() {
+                        @Override
+                        public void onMessagesRendered() {
+                            notifyDataSetChanged();
+                        }
+                    });
+            int size = log.size();
+            List<IChatMessage> recent = new ArrayList<IChatMessage>(PRERENDER_COUNT);
+            for (int i = Math.max(0, size - PRERENDER_COUNT); i < size; i++) {
+                recent.add(log.get(i));
+            }
+            mRenderer.prerender(recent);
+        }
+
+        public MessageLog getMessageLog() {
+            return mLog;
+        }
+
+        public Context getContext() {
+            return mContext;
+        }
+
+        @Override
+        public int getCount() {
+            return mHistory.size() + mLog.size();
+        }
+
+        @Override
+        public IChatMessage getItem(int position) {
+            if (position < mHistory.size()) {
+                return mHistory.get(position);
+            }
+            return mLog.get(position - mHistory.size());
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        /**
+         * Adds a page of chat history before the oldest message shown.
+         */
+        public void prependHistory(List<IChatMessage> page) {
+            mRenderer.prerender(page);
+            mHistory.addAll(0, page);
+            notifyDataSetChanged();
+        }
+
+        public void onMessageAppended(int position) {
+            mRenderer.prerender(Collections.singletonList(mLog.get(position)));
+            notifyDataSetChanged();
+        }
+
+        /**
+         * Moves the messages about to be evicted from the log to the end of the history, so that
+         * they stay in the list. The adapter is notified once the new message is appended.
+         */
+        public void keepEvictedMessages(int count) {
+            for (int i = 0; i < count; i++) {
+                mHistory.add(mLog.get(i));
+            }
+        }
+
+        /**
+         * Removes all history from the list. The adapter is notified once the new message that
+         * evicts messages from the log is appended.
+         * @return The number of messages removed.
+         */
+        public int dropHistory() {
+            int removed = mHistory.size();
+            mHistory.clear();
+            return removed;
+        }
+
+        public void onMessagesCleared() {
+            mHistory.clear();
+            notifyDataSetChanged();
+        }
+
+        /**
+         * Stops rendering messages in the background. Call once the adapter is no longer shown.
+         */
+        public void shutdown() {
+            mRenderer.shutdown();
         }
 
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
             View v = convertView;
+            final ChatViewHolder holder;
             if(v == null) {
                 v = LayoutInflater.from(getContext()).inflate(R.layout.list_chat_item, parent, false);
+                holder = new ChatViewHolder(v);
+                v.setTag(holder);
+            } else {
+                holder = (ChatViewHolder) v.getTag();
             }
 
-            final LinearLayout chatBox = (LinearLayout) v.findViewById(R.id.list_chat_item_box);
-            final TextView targetText = (TextView) v.findViewById(R.id.list_chat_item_target);
-            final TextView messageText = (TextView) v.findViewById(R.id.list_chat_item_text);
-            TextView timeText = (TextView) v.findViewById(R.id.list_chat_item_time);
-
             IChatMessage message = getItem(position);
-            message.accept(new IChatMessage.Visitor() {
-                @Override
-                public void visit(IChatMessage.TextMessage message) {
-                    IMessage textMessage = message.getMessage();
-                    String targetMessage = getContext().getString(R.string.unknown);
-                    boolean selfAuthored;
-                    try {
-                        selfAuthored = textMessage.getActor() == mService.getSession().getSessionId();
-                    } catch (JumbleDisconnectedException e) {
-                        selfAuthored = false;
-                    }
-
-                    if (textMessage.getTargetChannels() != null && !textMessage.getTargetChannels().isEmpty()) {
-                        IChannel currentChannel = (IChannel) textMessage.getTargetChannels().get(0);
-                        if (currentChannel != null && currentChannel.getName() != null) {
-                            targetMessage = getContext().getString(R.string.chat_message_to, textMessage.getActorName(), currentChannel.getName());
-                        }
-                    } else if (textMessage.getTargetTrees() != null && !textMessage.getTargetTrees().isEmpty()) {
-                        IChannel currentChannel = (IChannel) textMessage.getTargetTrees().get(0);
-                        if (currentChannel != null && currentChannel.getName() != null) {
-                            targetMessage = getContext().getString(R.string.chat_message_to, textMessage.getActorName(), currentChannel.getName());
-                        }
-                    } else if (textMessage.getTargetUsers() != null && !textMessage.getTargetUsers().isEmpty()) {
-                        User user = (User) textMessage.getTargetUsers().get(0);
-                        if (user != null && user.getName() != null) {
-                            targetMessage = getContext().getString(R.string.chat_message_to, textMessage.getActorName(), user.getName());
-                        }
-                    } else {
-                        targetMessage = textMessage.getActorName();
-                    }
-
-                    int gravity = selfAuthored ? Gravity.RIGHT : Gravity.LEFT;
-                    chatBox.setGravity(gravity);
-                    messageText.setGravity(gravity);
-                    targetText.setText(targetMessage);
-                    targetText.setVisibility(View.VISIBLE);
+            if (message instanceof IChatMessage.TextMessage) {
+                boolean selfAuthored;
+                try {
+                    selfAuthored = ((IChatMessage.TextMessage) message).getActor() ==
+                            mService.getSession().getSessionId();
+                } catch (JumbleDisconnectedException e) {
+                    selfAuthored = false;
                 }
-
-                @Override
-                public void visit(IChatMessage.InfoMessage message) {
-                    targetText.setVisibility(View.GONE);
-                    chatBox.setGravity(Gravity.LEFT);
-                    messageText.setGravity(Gravity.LEFT);
-                }
-            });
-            timeText.setText(mDateFormat.format(new Date(message.getReceivedTime())));
-            messageText.setText(Html.fromHtml(message.getBody(), mImageGetter, null));
-            messageText.setMovementMethod(LinkMovementMethod.getInstance());
+                int gravity = selfAuthored ? Gravity.RIGHT : Gravity.LEFT;
+                holder.mChatBox.setGravity(gravity);
+                holder.mMessageText.setGravity(gravity);
+                holder.mTargetText.setVisibility(View.VISIBLE);
+            } else {
+                holder.mTargetText.setVisibility(View.GONE);
+                holder.mChatBox.setGravity(Gravity.LEFT);
+                holder.mMessageText.setGravity(Gravity.LEFT);
+            }
+            ChatMessageRenderer.RenderedMessage rendered = mRenderer.get(message);
+            if (rendered != null) {
+                holder.mTargetText.setText(rendered.getHeader());
+                holder.mTimeText.setText(rendered.getTime());
+                holder.mMessageText.setText(rendered.getBody());
+            } else {
+                // Filled in once rendered, when the adapter is notified.
+                holder.mTargetText.setText(null);
+                holder.mTimeText.setText(null);
+                holder.mMessageText.setText(null);
+            }
 
             return v;
         }
@@ -386,5 +631,20 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
         public boolean isEnabled(int position) {
             return false; // Makes links clickable.
         }
+
+        private static class ChatViewHolder {
+            public LinearLayout mChatBox;
+            public TextView mTargetText;
+            public TextView mMessageText;
+            public TextView mTimeText;
+
+            public ChatViewHolder(View view) {
+                mChatBox = (LinearLayout) view.findViewById(R.id.list_chat_item_box);
+                mTargetText = (TextView) view.findViewById(R.id.list_chat_item_target);
+                mMessageText = (TextView) view.findViewById(R.id.list_chat_item_text);
+                mTimeText = (TextView) view.findViewById(R.id.list_chat_item_time);
+                mMessageText.setMovementMethod(LinkMovementMethod.getInstance());
+            }
+        }
     }
 }
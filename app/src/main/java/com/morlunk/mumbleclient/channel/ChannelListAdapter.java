@@ -20,13 +20,15 @@ package com.morlunk.mumbleclient.channel;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.os.RemoteException;
 import android.support.v4.app.FragmentManager;
 import android.support.v7.widget.RecyclerView;
-import android.util.DisplayMetrics;
+import android.text.TextUtils;
+import android.util.SparseArray;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -35,8 +37,6 @@ import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
-import com.morlunk.jumble.IJumbleService;
-import com.morlunk.jumble.IJumbleSession;
 import com.morlunk.jumble.JumbleService;
 import com.morlunk.jumble.model.IChannel;
 import com.morlunk.jumble.model.IUser;
@@ -46,13 +46,16 @@ import com.morlunk.mumbleclient.R;
 import com.morlunk.mumbleclient.db.PlumbleDatabase;
 import com.morlunk.mumbleclient.drawable.CircleDrawable;
 import com.morlunk.mumbleclient.drawable.FlipDrawable;
+import com.morlunk.mumbleclient.service.IPlumbleService;
 import com.morlunk.mumbleclient.service.PlumbleService;
+import com.morlunk.mumbleclient.util.AvatarCache;
 import com.morlunk.mumbleclient.util.TalkingIndicatorView;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Created by andrew on 31/07/13.
@@ -65,13 +68,42 @@ public class ChannelListAdapter extends RecyclerView.Adapter implements UserMenu
     /**
      * Time (in ms) to run the flip animation for.
      */
-    private static final long FLIP_DURATION = 350;
+    static final long FLIP_DURATION = 350;
+
+    /**
+     * Time (in ms) to run the talking indicator animation for.
+     */
+    static final long TALK_STATE_DURATION = 200;
+
+    /**
+     * Width (in dp) to indent each level of the channel tree by.
+     */
+    private static final int DEPTH_INDENT_DP = 25;
+
+    // Indices of the talk state drawables in TALK_STATE_DRAWABLES.
+    private static final int TALK_STATE_SELF_DEAFENED = 0;
+    private static final int TALK_STATE_DEAFENED = 1;
+    private static final int TALK_STATE_SELF_MUTED = 2;
+    private static final int TALK_STATE_MUTED = 3;
+    private static final int TALK_STATE_SUPPRESSED = 4;
+    private static final int TALK_STATE_PASSIVE = 5;
+    private static final int[] TALK_STATE_DRAWABLES = {
+            R.drawable.outline_circle_deafened,
+            R.drawable.outline_circle_server_deafened,
+            R.drawable.outline_circle_muted,
+            R.drawable.outline_circle_server_muted,
+            R.drawable.outline_circle_suppressed,
+            R.drawable.outline_circle_talking_off
+    };
+
+    /** A single thread to build channel tree snapshots on, shared between adapters. */
+    private static final ExecutorService sBuildExecutor = Executors.newSingleThreadExecutor();
 
     private Context mContext;
-    private IJumbleService mService;
+    private IPlumbleService mService;
     private PlumbleDatabase mDatabase;
     private List<Integer> mRootChannels;
-    private List<Node> mNodes;
+    private FlattenedChannelTree<Node> mNodes;
     /**
      * A mapping of user-set channel expansions.
      * If a key is not mapped, default to hiding empty channels.
@@ -81,8 +113,62 @@ public class ChannelListAdapter extends RecyclerView.Adapter implements UserMenu
     private OnChannelClickListener mChannelClickListener;
     private boolean mShowChannelUserCount;
     private final FragmentManager mFragmentManager;
+    private final Handler mMainHandler;
+    /** Incremented for each build, so that only the most recent build is published. */
+    private int mBuildGeneration;
+    private boolean mBuilding;
+    private boolean mRebuildQueued;
+    /** Callbacks to run once a build reflecting the latest model changes is published. */
+    private List<Runnable> mPublishCallbacks;
+    private final AvatarCache mAvatarCache;
+    /** The size of a user's avatar in pixels. */
+    private final int mAvatarSize;
+    /** Shared state of the talk state drawables, indexed by talk state. */
+    private final Drawable.ConstantState[] mTalkStateDrawables;
+    /** The width in pixels to indent each level of the channel tree by. */
+    private final float mDepthIndent;
+    /** Left padding in pixels for each depth of the channel tree, grown as needed. */
+    private int[] mDepthPadding;
+    /** Formatted channel user counts, indexed by count. */
+    private final SparseArray<String> mCountStrings;
+    private final AvatarCache.OnAvatarLoadedListener mAvatarLoadedListener =
+            new AvatarCache.OnAvatarLoadedListener() {
+        @Override
+        public void onAvatarLoaded(int session) {
+            int position = getUserPosition(session);
+            if (position != -1) {
+                notifyItemChanged(position);
+            }
+        }
+    };
+    private final ChannelTreeDiff.Callback mDiffCallback = new ChannelTreeDiff.Callback() {
+        @Override
+        public void onInserted(int position, int count) {
+            notifyItemRangeInserted(position, count);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            notifyItemRangeRemoved(position, count);
+        }
 
-    public ChannelListAdapter(Context context, IJumbleService service, PlumbleDatabase database,
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            notifyItemMoved(fromPosition, toPosition);
+        }
+
+        @Override
+        public void onChanged(int position, int count) {
+            notifyItemRangeChanged(position, count);
+        }
+
+        @Override
+        public void onDataSetChanged() {
+            notifyDataSetChanged();
+        }
+    };
+
+    public ChannelListAdapter(Context context, IPlumbleService service, PlumbleDatabase database,
                               FragmentManager fragmentManager, boolean showPinnedOnly,
                               boolean showChannelUserCount) throws RemoteException {
         setHasStableIds(true);
@@ -91,6 +177,19 @@ public class ChannelListAdapter extends RecyclerView.Adapter implements UserMenu
         mDatabase = database;
         mFragmentManager = fragmentManager;
         mShowChannelUserCount = showChannelUserCount;
+        mAvatarCache = AvatarCache.getInstance(context);
+        Resources resources = context.getResources();
+        mAvatarSize = resources.getDimensionPixelSize(R.dimen.user_row_avatar_size);
+        mTalkStateDrawables = new Drawable.ConstantState[TALK_STATE_DRAWABLES.length];
+        for (int i = 0; i < TALK_STATE_DRAWABLES.length; i++) {
+            mTalkStateDrawables[i] = resources.getDrawable(TALK_STATE_DRAWABLES[i]).getConstantState();
+        }
+        mDepthIndent = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, DEPTH_INDENT_DP,
+                resources.getDisplayMetrics());
+        mDepthPadding = new int[0];
+        mCountStrings = new SparseArray<String>();
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mPublishCallbacks = new ArrayList<Runnable>();
 
         mRootChannels = new ArrayList<Integer>();
         if(showPinnedOnly) {
@@ -100,7 +199,7 @@ public class ChannelListAdapter extends RecyclerView.Adapter implements UserMenu
         }
 
         // Construct channel tree
-        mNodes = new LinkedList<Node>();
+        mNodes = new FlattenedChannelTree<Node>();
         mExpandedChannels = new HashMap<Integer, Boolean>();
         updateChannels();
     }
@@ -111,156 +210,181 @@ public class ChannelListAdapter extends RecyclerView.Adapter implements UserMenu
                 mContext.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
         View view = inflater.inflate(viewType, viewGroup, false);
         if (viewType == R.layout.channel_row) {
-            return new ChannelViewHolder(view);
+            return createChannelViewHolder(view);
         } else if (viewType == R.layout.channel_user_row) {
-            return new UserViewHolder(view);
+            return createUserViewHolder(view);
         }
         return null;
     }
 
+    /**
+     * Creates a channel row holder. Listeners are created once per holder and act on the node
+     * most recently bound to it, so that binding does not allocate.
+     */
+    private ChannelViewHolder createChannelViewHolder(View view) {
+        final ChannelViewHolder cvh = new ChannelViewHolder(view);
+        cvh.itemView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (mChannelClickListener != null && cvh.mNode != null) {
+                    mChannelClickListener.onChannelClick(cvh.mNode.getChannel());
+                }
+            }
+        });
+        cvh.mChannelExpandToggle.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (cvh.mNode != null) {
+                    mExpandedChannels.put(cvh.mNode.getChannel().getId(), !cvh.mNode.isExpanded());
+                    updateChannels();
+                }
+            }
+        });
+        cvh.mJoinButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (mService.isConnected() && cvh.mNode != null)
+                    mService.getSession().joinChannel(cvh.mNode.getChannel().getId());
+            }
+        });
+        cvh.mMoreButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (cvh.mNode != null) {
+                    ChannelMenu menu = new ChannelMenu(mContext, cvh.mNode.getChannel(), mService,
+                            mDatabase, mFragmentManager);
+                    menu.showPopup(v);
+                }
+            }
+        });
+        cvh.itemView.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                cvh.mMoreButton.performClick();
+                return true;
+            }
+        });
+        return cvh;
+    }
+
+    /**
+     * Creates a user row holder. Listeners are created once per holder and act on the node
+     * most recently bound to it, so that binding does not allocate.
+     */
+    private UserViewHolder createUserViewHolder(View view) {
+        final UserViewHolder uvh = new UserViewHolder(view);
+        uvh.itemView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (mUserClickListener != null && uvh.mNode != null) {
+                    mUserClickListener.onUserClick(uvh.mNode.getUser());
+                }
+            }
+        });
+        uvh.mMoreButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (uvh.mNode != null) {
+                    UserMenu menu = new UserMenu(mContext, uvh.mNode.getUser(),
+                            (PlumbleService) mService, mFragmentManager, ChannelListAdapter.this);
+                    menu.showPopup(v);
+                }
+            }
+        });
+        uvh.itemView.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                uvh.mMoreButton.performClick();
+                return true;
+            }
+        });
+        return uvh;
+    }
+
+    /**
+     * Binds a node to its row. Does not allocate in steady state: listeners live on the holders,
+     * and drawables, padding and count strings are cached.
+     */
     @Override
     public void onBindViewHolder(RecyclerView.ViewHolder viewHolder, int position) {
         final Node node = mNodes.get(position);
         if (node.isChannel()) {
-            final IChannel channel = node.getChannel();
             final ChannelViewHolder cvh = (ChannelViewHolder) viewHolder;
-            cvh.itemView.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View v) {
-                    if (mChannelClickListener != null) {
-                        mChannelClickListener.onChannelClick(channel);
-                    }
-                }
-            });
+            cvh.mNode = node;
 
-            final boolean expandUsable = channel.getSubchannels().size() > 0 ||
-                    channel.getSubchannelUserCount() > 0;
+            final boolean expandUsable = node.hasSubchannels() || node.getUserCount() > 0;
             cvh.mChannelExpandToggle.setImageResource(node.isExpanded() ?
                     R.drawable.ic_action_expanded : R.drawable.ic_action_collapsed);
-            cvh.mChannelExpandToggle.setOnClickListener(new View.OnClickListener() {
-
-                @Override
-                public void onClick(View v) {
-                    mExpandedChannels.put(channel.getId(), !node.isExpanded());
-                    updateChannels(); // FIXME: very inefficient.
-                    notifyDataSetChanged();
-                }
-            });
             // Dim channel expand toggle when no subchannels exist
             cvh.mChannelExpandToggle.setEnabled(expandUsable);
             cvh.mChannelExpandToggle.setVisibility(expandUsable ? View.VISIBLE : View.INVISIBLE);
 
-            cvh.mChannelName.setText(channel.getName());
-
-            int nameTypeface = Typeface.NORMAL;
-            if (mService != null && mService.isConnected()) {
-                IJumbleSession session = mService.getSession();
-                if (channel.equals(session.getSessionChannel())) {
-                    nameTypeface |= Typeface.BOLD;
-                    // Always italicize our current channel if it has a link.
-                    if (channel.getLinks().size() > 0) {
-                        nameTypeface |= Typeface.ITALIC;
-                    }
-                }
-                // Italicize channels in a link with our current channel.
-                if (channel.getLinks().contains(session.getSessionChannel())) {
-                    nameTypeface |= Typeface.ITALIC;
-                }
-            }
-            cvh.mChannelName.setTypeface(null, nameTypeface);
+            cvh.bindName(node.getName(), node.getTypeface());
 
             if (mShowChannelUserCount) {
                 cvh.mChannelUserCount.setVisibility(View.VISIBLE);
-                int userCount = channel.getSubchannelUserCount();
-                cvh.mChannelUserCount.setText(String.format("%d", userCount));
+                cvh.bindUserCount(getCountString(node.getUserCount()));
             } else {
                 cvh.mChannelUserCount.setVisibility(View.GONE);
             }
 
             // Pad the view depending on channel's nested level.
-            DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
-            float margin = node.getDepth() * TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 25, metrics);
-            cvh.mChannelHolder.setPadding((int) margin,
+            cvh.mChannelHolder.setPadding(getDepthPadding(node.getDepth()),
                     cvh.mChannelHolder.getPaddingTop(),
                     cvh.mChannelHolder.getPaddingRight(),
                     cvh.mChannelHolder.getPaddingBottom());
-
-            cvh.mJoinButton.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View v) {
-                    if (mService.isConnected())
-                        mService.getSession().joinChannel(channel.getId());
-                }
-            });
-
-            cvh.mMoreButton.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View v) {
-                    ChannelMenu menu = new ChannelMenu(mContext, channel, mService, mDatabase, mFragmentManager);
-                    menu.showPopup(v);
-                }
-            });
-
-            cvh.itemView.setOnLongClickListener(new View.OnLongClickListener() {
-                @Override
-                public boolean onLongClick(View v) {
-                    cvh.mMoreButton.performClick();
-                    return true;
-                }
-            });
         } else if (node.isUser()) {
             final IUser user = node.getUser();
             final UserViewHolder uvh = (UserViewHolder) viewHolder;
-            uvh.itemView.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View v) {
-                    if (mUserClickListener != null) {
-                        mUserClickListener.onUserClick(user);
-                    }
-                }
-            });
+            uvh.mNode = node;
 
-            uvh.mUserName.setText(user.getName());
+            uvh.bindName(node.getName(), node.getTypeface());
 
-            final int typefaceStyle;
-            if (mService.isConnected() && mService.getSession().getSessionId() == user.getSession()) {
-                typefaceStyle = Typeface.BOLD;
-            } else {
-                typefaceStyle = Typeface.NORMAL;
+            uvh.mStateDrawable = getTalkStateDrawable(uvh, user);
+            uvh.mUserTalkHighlight.setImageDrawable(uvh.mStateDrawable);
+            if (user.getTexture() == null && user.getTextureHash() != null &&
+                    !mAvatarCache.isAvailable(user, mAvatarSize)) {
+                // Fetch the avatars of visible users first.
+                mService.requestVisibleAvatar(user);
             }
-            uvh.mUserName.setTypeface(null, typefaceStyle);
-
-            uvh.mUserTalkHighlight.setImageDrawable(getTalkStateDrawable(user));
-            uvh.mTalkingIndicator.setAlpha(
-                    (user.getTalkState() == TalkState.TALKING ||
-                     user.getTalkState() == TalkState.WHISPERING ||
-                     user.getTalkState() == TalkState.SHOUTING) ? 1 : 0);
+            boolean talking = user.getTalkState() == TalkState.TALKING ||
+                    user.getTalkState() == TalkState.WHISPERING ||
+                    user.getTalkState() == TalkState.SHOUTING;
+            uvh.mTalkingIndicator.setTalking(talking);
+            uvh.mTalkingIndicator.setAlpha(talking ? 1 : 0);
 
             // Pad the view depending on channel's nested level.
-            DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
-            float margin = (node.getDepth() + 1) * TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 25, metrics);
-            uvh.mUserHolder.setPadding((int) margin,
+            uvh.mUserHolder.setPadding(getDepthPadding(node.getDepth() + 1),
                     uvh.mUserHolder.getPaddingTop(),
                     uvh.mUserHolder.getPaddingRight(),
                     uvh.mUserHolder.getPaddingBottom());
+        }
+    }
 
-            uvh.mMoreButton.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View v) {
-                    UserMenu menu = new UserMenu(mContext, user, (PlumbleService) mService,
-                            mFragmentManager, ChannelListAdapter.this);
-                    menu.showPopup(v);
-                }
-            });
+    /**
+     * @return The left padding in pixels of a row at the given depth.
+     */
+    private int getDepthPadding(int depth) {
+        if (depth >= mDepthPadding.length) {
+            int[] padding = new int[depth + 8];
+            for (int i = 0; i < padding.length; i++) {
+                padding[i] = (int) (i * mDepthIndent);
+            }
+            mDepthPadding = padding;
+        }
+        return mDepthPadding[depth];
+    }
 
-            uvh.itemView.setOnLongClickListener(new View.OnLongClickListener() {
-                @Override
-                public boolean onLongClick(View v) {
-                    uvh.mMoreButton.performClick();
-                    return true;
-                }
-            });
+    /**
+     * @return The formatted user count, cached to avoid formatting on each bind.
+     */
+    private String getCountString(int count) {
+        String countString = mCountStrings.get(count);
+        if (countString == null) {
+            countString = String.format("%d", count);
+            mCountStrings.put(count, countString);
         }
+        return countString;
     }
 
     @Override
@@ -282,29 +406,98 @@ public class ChannelListAdapter extends RecyclerView.Adapter implements UserMenu
 
     @Override
     public long getItemId(int position) {
-        try {
-            return mNodes.get(position).getId();
-        } catch (RemoteException e) {
-            e.printStackTrace();
-        }
-        return -1;
+        return mNodes.getId(position);
     }
 
     /**
-     * Updates the channel tree model.
+     * Updates the channel tree model, notifying observers of only the rows that were inserted,
+     * removed, moved or changed since the last update.
      * To be used after any channel tree modifications.
      */
     public void updateChannels() {
+        updateChannels(null);
+    }
+
+    /**
+     * Asynchronously rebuilds the channel tree model off the main thread, then publishes it to
+     * the adapter. Updates requested while a build is running are coalesced into a single build.
+     * @param callback A callback to run on the main thread once the model reflects all changes
+     *                 made before this call, or null.
+     */
+    public void updateChannels(Runnable callback) {
         if (!mService.isConnected())
             return;
 
-        IJumbleSession session = mService.getSession();
-        mNodes.clear();
-        for (int cid : mRootChannels) {
-            IChannel channel = session.getChannel(cid);
-            if (channel != null) {
-                constructNodes(null, channel, 0, mNodes);
+        if (callback != null) {
+            mPublishCallbacks.add(callback);
+        }
+        if (mBuilding) {
+            mRebuildQueued = true;
+            return;
+        }
+        startBuild();
+    }
+
+    private void startBuild() {
+        final int generation = ++mBuildGeneration;
+        final ChannelTreeBuilder builder = new ChannelTreeBuilder(mService.getSession(),
+                mService.getAggregateIndex(), mRootChannels, mExpandedChannels, mNodes.size());
+        final List<Runnable> callbacks = mPublishCallbacks;
+        mPublishCallbacks = new ArrayList<Runnable>();
+        mBuilding = true;
+        mRebuildQueued = false;
+        sBuildExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                FlattenedChannelTree<Node> nodes = null;
+                try {
+                    nodes = builder.build();
+                } finally {
+                    // Always hand back to the main thread, so that a failed build can't leave
+                    // the adapter waiting on it forever.
+                    final FlattenedChannelTree<Node> result = nodes;
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            publish(generation, result, callbacks);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Swaps in a freshly built tree and dispatches the differences to observers.
+     * Must be called on the main thread.
+     * @param nodes The built tree, or null if the build failed.
+     */
+    private void publish(int generation, FlattenedChannelTree<Node> nodes, List<Runnable> callbacks) {
+        if (generation != mBuildGeneration) {
+            // Superseded by a service change. A newer build may be running; its callbacks still
+            // want a tree, so hand them to the next build.
+            mPublishCallbacks.addAll(0, callbacks);
+            if (mBuilding) {
+                mRebuildQueued = true;
+            } else if (mService.isConnected()) {
+                startBuild();
             }
+            return;
+        }
+        mBuilding = false;
+        if (nodes == null) {
+            mPublishCallbacks.addAll(0, callbacks);
+        } else {
+            FlattenedChannelTree<Node> oldNodes = mNodes;
+            mNodes = nodes;
+            oldNodes.dispatchDiff(nodes, mDiffCallback);
+            for (Runnable callback : callbacks) {
+                callback.run();
+            }
+        }
+        if (mRebuildQueued && mService.isConnected()) {
+            startBuild();
         }
     }
 
@@ -314,17 +507,33 @@ public class ChannelListAdapter extends RecyclerView.Adapter implements UserMenu
      * @param view The view containing this adapter.
      */
     public void animateUserStateUpdate(IUser user, RecyclerView view) {
+        animateUserStateUpdate(user, view, true);
+    }
+
+    /**
+     * Updates the user's state icon.
+     * @param user The user to update.
+     * @param view The view containing this adapter.
+     * @param animate Whether to flip in the new state, or show it immediately.
+     */
+    public void animateUserStateUpdate(IUser user, RecyclerView view, boolean animate) {
         long itemId = user.getSession() | USER_ID_MASK;
         UserViewHolder uvh = (UserViewHolder) view.findViewHolderForItemId(itemId);
         if (uvh != null) {
-            Drawable newState = getTalkStateDrawable(user);
-            Drawable oldState = uvh.mUserTalkHighlight.getDrawable().getCurrent();
+            Drawable newState = getTalkStateDrawable(uvh, user);
+            Drawable oldState = uvh.mStateDrawable;
 
-            if (!newState.getConstantState().equals(oldState.getConstantState())) {
+            if (newState == oldState) {
+                return;
+            }
+            uvh.mStateDrawable = newState;
+            if (animate && oldState != null) {
                 // "Flip" in new talking state.
                 FlipDrawable drawable = new FlipDrawable(oldState, newState);
                 uvh.mUserTalkHighlight.setImageDrawable(drawable);
                 drawable.start(FLIP_DURATION);
+            } else {
+                uvh.mUserTalkHighlight.setImageDrawable(newState);
             }
         }
     }
@@ -335,78 +544,98 @@ public class ChannelListAdapter extends RecyclerView.Adapter implements UserMenu
      * @param view The view containing this adapter.
      */
     public void animateUserTalkStateUpdate(IUser user, RecyclerView view) {
+        animateUserTalkStateUpdate(user, view, true);
+    }
+
+    /**
+     * Updates the user's talking indicator.
+     * @param user The user to update.
+     * @param view The view containing this adapter.
+     * @param animate Whether to fade in the new state, or show it immediately.
+     */
+    public void animateUserTalkStateUpdate(IUser user, RecyclerView view, boolean animate) {
         long itemId = user.getSession() | USER_ID_MASK;
         final UserViewHolder uvh = (UserViewHolder) view.findViewHolderForItemId(itemId);
         if (uvh != null) {
             boolean talking = user.getTalkState() == TalkState.TALKING ||
                     user.getTalkState() == TalkState.WHISPERING ||
                     user.getTalkState() == TalkState.SHOUTING;
+            if (uvh.mTalkingIndicator.isTalking() == talking) {
+                return; // Already showing (or animating to) this state.
+            }
+            uvh.mTalkingIndicator.setTalking(talking);
             float strokeWidth = uvh.mTalkingIndicator.getStrokeWidth();
             float width = uvh.mUserTalkHighlight.getWidth();
             // Scale down the user's avatar to show the talking indicator.
-            float scale = talking ? (1 - (strokeWidth * 2)/width) : 1;
-            uvh.mTalkingIndicator.animate()
-                    .alpha(talking ? 1 : 0)
-                    .setDuration(200);
-            uvh.mUserTalkHighlight.animate()
-                    .scaleX(scale)
-                    .scaleY(scale)
-                    .setDuration(200);
+            float scale = talking && width > 0 ? (1 - (strokeWidth * 2)/width) : 1;
+            if (animate) {
+                uvh.mTalkingIndicator.animate()
+                        .alpha(talking ? 1 : 0)
+                        .setDuration(TALK_STATE_DURATION);
+                uvh.mUserTalkHighlight.animate()
+                        .scaleX(scale)
+                        .scaleY(scale)
+                        .setDuration(TALK_STATE_DURATION);
+            } else {
+                uvh.mTalkingIndicator.animate().cancel();
+                uvh.mTalkingIndicator.setAlpha(talking ? 1 : 0);
+                uvh.mUserTalkHighlight.animate().cancel();
+                uvh.mUserTalkHighlight.setScaleX(scale);
+                uvh.mUserTalkHighlight.setScaleY(scale);
+            }
         }
     }
 
-    private Drawable getTalkStateDrawable(IUser user) {
-        Resources resources = mContext.getResources();
+    /**
+     * @return The index of the drawable representing the user's talk state.
+     */
+    private static int getTalkState(IUser user) {
         if (user.isSelfDeafened()) {
-            return resources.getDrawable(R.drawable.outline_circle_deafened);
+            return TALK_STATE_SELF_DEAFENED;
         } else if (user.isDeafened()) {
-            return resources.getDrawable(R.drawable.outline_circle_server_deafened);
+            return TALK_STATE_DEAFENED;
         } else if (user.isSelfMuted()) {
-            return resources.getDrawable(R.drawable.outline_circle_muted);
+            return TALK_STATE_SELF_MUTED;
         } else if (user.isMuted()) {
-            return resources.getDrawable(R.drawable.outline_circle_server_muted);
+            return TALK_STATE_MUTED;
         } else if (user.isSuppressed()) {
-            return resources.getDrawable(R.drawable.outline_circle_suppressed);
+            return TALK_STATE_SUPPRESSED;
         } else {
-            // Passive drawables
-            if (user.getTexture() != null) {
-                // FIXME: cache bitmaps
-                Bitmap bitmap = BitmapFactory.decodeByteArray(user.getTexture(), 0, user.getTexture().length);
-                return new CircleDrawable(mContext.getResources(), bitmap);
-            } else {
-                return resources.getDrawable(R.drawable.outline_circle_talking_off);
-            }
+            return TALK_STATE_PASSIVE;
         }
     }
 
-    public int getUserPosition(int session) {
-        long itemId = session | USER_ID_MASK;
-        for (int i = 0; i < mNodes.size(); i++) {
-            Node node = mNodes.get(i);
-            try {
-                if (node.getId() == itemId) {
-                    return i;
+    /**
+     * Retrieves the drawable for the user's talk state, reusing the drawables previously shown
+     * by the holder. Each holder creates at most one drawable per state from shared state.
+     */
+    private Drawable getTalkStateDrawable(UserViewHolder holder, IUser user) {
+        int state = getTalkState(user);
+        if (state == TALK_STATE_PASSIVE) {
+            Bitmap avatar = mAvatarCache.getAvatar(user, mAvatarSize, mAvatarLoadedListener);
+            if (avatar != null) {
+                if (holder.mAvatarBitmap != avatar) {
+                    holder.mAvatarDrawable = new CircleDrawable(mContext.getResources(), avatar);
+                    holder.mAvatarBitmap = avatar;
                 }
-            } catch (RemoteException e) {
-                e.printStackTrace();
+                return holder.mAvatarDrawable;
             }
+            // Show the default state until the user's avatar is decoded, if they have one.
+        }
+        Drawable drawable = holder.mTalkStateDrawables[state];
+        if (drawable == null) {
+            drawable = mTalkStateDrawables[state].newDrawable(mContext.getResources());
+            holder.mTalkStateDrawables[state] = drawable;
         }
-        return -1;
+        return drawable;
+    }
+
+    public int getUserPosition(int session) {
+        return mNodes.indexOf(session | USER_ID_MASK);
     }
 
     public int getChannelPosition(int channelId) {
-        long itemId = channelId | CHANNEL_ID_MASK;
-        for (int i = 0; i < mNodes.size(); i++) {
-            Node node = mNodes.get(i);
-            try {
-                if (node.getId() == itemId) {
-                    return i;
-                }
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
-        }
-        return -1;
+        return mNodes.indexOf(channelId | CHANNEL_ID_MASK);
     }
 
     public void setOnUserClickListener(OnUserClickListener listener) {
@@ -425,51 +654,24 @@ public class ChannelListAdapter extends RecyclerView.Adapter implements UserMenu
         notifyDataSetChanged();
     }
 
-    /**
-     * Recursively creates a list of {@link Node}s representing the channel hierarchy.
-     * @param parent The parent node to propagate under.
-     * @param channel The parent channel.
-     * @param depth The current depth of the subtree.
-     * @param nodes An accumulator to store generated nodes into.
-     */
-    private void constructNodes(Node parent, IChannel channel, int depth,
-                                List<Node> nodes) {
-        Node channelNode = new Node(parent, depth, channel);
-        nodes.add(channelNode);
-
-        Boolean expandSetting = mExpandedChannels.get(channel.getId());
-        if ((expandSetting == null && channel.getSubchannelUserCount() == 0)
-                || (expandSetting != null && !expandSetting)) {
-            channelNode.setExpanded(false);
-            return; // Skip adding children of contracted/empty channels.
-        }
-
-        for (IUser user : (List<IUser>) channel.getUsers()) {
-            if (user == null) {
-                continue;
-            }
-            nodes.add(new Node(channelNode, depth, user));
-        }
-        for (IChannel subc : (List<IChannel>) channel.getSubchannels()) {
-            constructNodes(channelNode, subc, depth + 1, nodes);
-        }
-    }
-
     /**
      * Changes the service backing the adapter. Updates the list as well.
      * @param service The new service to retrieve channels from.
      */
-    public void setService(IJumbleService service) {
+    public void setService(IPlumbleService service) {
         mService = service;
+        // Supersede any build in progress from the previous service.
+        mBuildGeneration++;
+        mBuilding = false;
+        mRebuildQueued = false;
         if (service.getConnectionState() == JumbleService.ConnectionState.CONNECTED) {
             updateChannels();
-            notifyDataSetChanged();
         }
     }
 
     @Override
     public void onLocalUserStateUpdated(final IUser user) {
-        notifyDataSetChanged();
+        updateChannels();
 
         // Add or remove registered user from local mute history
         final Server server = mService.getTargetServer();
@@ -500,6 +702,16 @@ public class ChannelListAdapter extends RecyclerView.Adapter implements UserMenu
         public ImageView mUserTalkHighlight;
         public ImageView mMoreButton;
         public TalkingIndicatorView mTalkingIndicator;
+        /** The node currently bound to this holder. */
+        public Node mNode;
+        /** The drawable of the state currently shown, or being flipped to. */
+        public Drawable mStateDrawable;
+        /** Talk state drawables shown by this holder, created on first use. */
+        public final Drawable[] mTalkStateDrawables = new Drawable[TALK_STATE_DRAWABLES.length];
+        public Bitmap mAvatarBitmap;
+        public Drawable mAvatarDrawable;
+        private String mBoundName;
+        private int mBoundTypeface = -1;
 
         public UserViewHolder(View itemView) {
             super(itemView);
@@ -509,6 +721,20 @@ public class ChannelListAdapter extends RecyclerView.Adapter implements UserMenu
             mMoreButton = (ImageView) itemView.findViewById(R.id.user_row_more);
             mTalkingIndicator = (TalkingIndicatorView) itemView.findViewById(R.id.user_row_talk_indicator);
         }
+
+        /**
+         * Sets the user's name and typeface, skipping the update if unchanged.
+         */
+        public void bindName(String name, int typeface) {
+            if (!TextUtils.equals(mBoundName, name)) {
+                mUserName.setText(name);
+                mBoundName = name;
+            }
+            if (mBoundTypeface != typeface) {
+                mUserName.setTypeface(null, typeface);
+                mBoundTypeface = typeface;
+            }
+        }
     }
 
     private static class ChannelViewHolder extends RecyclerView.ViewHolder {
@@ -518,6 +744,11 @@ public class ChannelListAdapter extends RecyclerView.Adapter implements UserMenu
         public TextView mChannelUserCount;
         public ImageView mJoinButton;
         public ImageView mMoreButton;
+        /** The node currently bound to this holder. */
+        public Node mNode;
+        private String mBoundName;
+        private int mBoundTypeface = -1;
+        private String mBoundUserCount;
 
         public ChannelViewHolder(View itemView) {
             super(itemView);
@@ -528,30 +759,75 @@ public class ChannelListAdapter extends RecyclerView.Adapter implements UserMenu
             mJoinButton = (ImageView) itemView.findViewById(R.id.channel_row_join);
             mMoreButton = (ImageView) itemView.findViewById(R.id.channel_row_more);
         }
+
+        /**
+         * Sets the channel's name and typeface, skipping the update if unchanged.
+         */
+        public void bindName(String name, int typeface) {
+            if (!TextUtils.equals(mBoundName, name)) {
+                mChannelName.setText(name);
+                mBoundName = name;
+            }
+            if (mBoundTypeface != typeface) {
+                mChannelName.setTypeface(null, typeface);
+                mBoundTypeface = typeface;
+            }
+        }
+
+        /**
+         * Sets the displayed user count, skipping the update if unchanged.
+         * @param userCount A cached count string.
+         */
+        public void bindUserCount(String userCount) {
+            if (mBoundUserCount != userCount) {
+                mChannelUserCount.setText(userCount);
+                mBoundUserCount = userCount;
+            }
+        }
     }
 
     /**
      * An arbitrary node in the channel-user hierarchy.
-     * Can be either a channel or user.
+     * Can be either a channel or user. Holds the state of the row computed when the tree was built.
      */
-    private static class Node {
-        private Node mParent;
-        private IChannel mChannel;
-        private IUser mUser;
-        private int mDepth;
-        private boolean mExpanded;
-
-        public Node(Node parent, int depth, IChannel channel) {
+    static class Node {
+        private final Node mParent;
+        private final IChannel mChannel;
+        private final IUser mUser;
+        /** The id of the channel, or the session of the user. */
+        private final int mModelId;
+        private final int mDepth;
+        private final String mName;
+        private final int mTypeface;
+        private final int mUserCount;
+        private final boolean mHasSubchannels;
+        private final boolean mExpanded;
+
+        public Node(Node parent, int depth, IChannel channel, int channelId, String name,
+                    int typeface, int userCount, boolean hasSubchannels, boolean expanded) {
             mParent = parent;
             mChannel = channel;
+            mUser = null;
+            mModelId = channelId;
             mDepth = depth;
-            mExpanded = true;
+            mName = name;
+            mTypeface = typeface;
+            mUserCount = userCount;
+            mHasSubchannels = hasSubchannels;
+            mExpanded = expanded;
         }
 
-        public Node(Node parent, int depth, IUser user) {
+        public Node(Node parent, int depth, IUser user, int session, String name, int typeface) {
             mParent = parent;
+            mChannel = null;
             mUser = user;
+            mModelId = session;
             mDepth = depth;
+            mName = name;
+            mTypeface = typeface;
+            mUserCount = 0;
+            mHasSubchannels = false;
+            mExpanded = false;
         }
 
         public boolean isChannel() {
@@ -574,26 +850,41 @@ public class ChannelListAdapter extends RecyclerView.Adapter implements UserMenu
             return mUser;
         }
 
-        public Long getId() throws RemoteException {
+        public long getId() {
             // Apply flags to differentiate integer-length identifiers
             if (isChannel()) {
-                return CHANNEL_ID_MASK | mChannel.getId();
+                return CHANNEL_ID_MASK | mModelId;
             } else if (isUser()) {
-                return USER_ID_MASK | mUser.getSession();
+                return USER_ID_MASK | mModelId;
             }
-            return null;
+            return -1;
         }
 
         public int getDepth() {
             return mDepth;
         }
 
-        public boolean isExpanded() {
-            return mExpanded;
+        public String getName() {
+            return mName;
         }
 
-        public void setExpanded(boolean expanded) {
-            mExpanded = expanded;
+        public int getTypeface() {
+            return mTypeface;
+        }
+
+        /**
+         * @return The number of users in this channel and its subchannels.
+         */
+        public int getUserCount() {
+            return mUserCount;
+        }
+
+        public boolean hasSubchannels() {
+            return mHasSubchannels;
+        }
+
+        public boolean isExpanded() {
+            return mExpanded;
         }
     }
-}
\ No newline at end of file
+}
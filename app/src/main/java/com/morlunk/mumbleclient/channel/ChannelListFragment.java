@@ -49,74 +49,56 @@ import com.morlunk.jumble.model.IChannel;
 import com.morlunk.jumble.model.IUser;
 import com.morlunk.jumble.util.IJumbleObserver;
 import com.morlunk.jumble.util.JumbleException;
-import com.morlunk.jumble.util.JumbleObserver;
 import com.morlunk.mumbleclient.R;
 import com.morlunk.mumbleclient.Settings;
 import com.morlunk.mumbleclient.db.DatabaseProvider;
+import com.morlunk.mumbleclient.service.IPlumbleService;
+import com.morlunk.mumbleclient.util.BatchingJumbleObserver;
+import com.morlunk.mumbleclient.util.BatchingJumbleObserver.UserMove;
 import com.morlunk.mumbleclient.util.JumbleServiceFragment;
 
 public class ChannelListFragment extends JumbleServiceFragment implements OnChannelClickListener, OnUserClickListener, SharedPreferences.OnSharedPreferenceChangeListener {
 
-	private IJumbleObserver mServiceObserver = new JumbleObserver() {
+	private BatchingJumbleObserver mServiceObserver = new BatchingJumbleObserver() {
         @Override
         public void onDisconnected(JumbleException e) {
+            cancel();
             mChannelView.setAdapter(null);
         }
 
         @Override
-        public void onUserJoinedChannel(IUser user, IChannel newChannel, IChannel oldChannel) {
-            mChannelListAdapter.updateChannels();
-            mChannelListAdapter.notifyDataSetChanged();
-            if(getService().isConnected() &&
-                    getService().getSession().getSessionId() == user.getSession()) {
-                scrollToChannel(newChannel.getId());
-            }
-        }
-
-        @Override
-		public void onChannelAdded(IChannel channel) {
-            mChannelListAdapter.updateChannels();
-			mChannelListAdapter.notifyDataSetChanged();
-		}
-
-		@Override
-		public void onChannelRemoved(IChannel channel) {
-            mChannelListAdapter.updateChannels();
-			mChannelListAdapter.notifyDataSetChanged();
-		}
-
-        @Override
-        public void onChannelStateUpdated(IChannel channel) {
-            mChannelListAdapter.updateChannels();
-            mChannelListAdapter.notifyDataSetChanged();
-        }
-
-        @Override
-        public void onUserConnected(IUser user) {
-            mChannelListAdapter.updateChannels();
-            mChannelListAdapter.notifyDataSetChanged();
-        }
-
-        @Override
-        public void onUserRemoved(IUser user, String reason) {
-            // If we are the user being removed, don't update the channel list.
-            // We won't be in a synchronized state.
-            if (!getService().isConnected())
+        protected void onBatch(Batch batch) {
+            if (mChannelListAdapter == null)
                 return;
 
-            mChannelListAdapter.updateChannels();
-            mChannelListAdapter.notifyDataSetChanged();
-        }
+            Runnable scrollRunnable = null;
+            if (getService().isConnected()) {
+                UserMove selfMove = batch.getUserMove(getService().getSession().getSessionId());
+                if (selfMove != null) {
+                    final int channelId = selfMove.getNewChannel().getId();
+                    scrollRunnable = new Runnable() {
+                        @Override
+                        public void run() {
+                            scrollToChannel(channelId);
+                        }
+                    };
+                }
+            }
 
-        @Override
-        public void onUserStateUpdated(IUser user) {
-            mChannelListAdapter.animateUserStateUpdate(user, mChannelView);
-            getActivity().supportInvalidateOptionsMenu(); // Update self mute/deafen state
-        }
+            // If we are the user being removed, updateChannels() is a no-op.
+            // We won't be in a synchronized state.
+            if (batch.isTreeChanged()) {
+                // Scroll once the channel's new position is known.
+                mChannelListAdapter.updateChannels(scrollRunnable);
+            } else if (scrollRunnable != null) {
+                scrollRunnable.run();
+            }
 
-        @Override
-        public void onUserTalkStateUpdated(IUser user) {
-            mChannelListAdapter.animateUserTalkStateUpdate(user, mChannelView);
+            mAnimationScheduler.schedule(batch.getUpdatedUsers(),
+                    batch.getTalkStateUpdatedUsers());
+            if (!batch.getUpdatedUsers().isEmpty()) {
+                getActivity().supportInvalidateOptionsMenu(); // Update self mute/deafen state
+            }
         }
 	};
 
@@ -129,7 +111,9 @@ public class ChannelListFragment extends JumbleServiceFragment implements OnChan
     };
 
 	private RecyclerView mChannelView;
+    private LinearLayoutManager mLayoutManager;
 	private ChannelListAdapter mChannelListAdapter;
+    private UserAnimationScheduler mAnimationScheduler;
     private ChatTargetProvider mTargetProvider;
     private DatabaseProvider mDatabaseProvider;
     private ActionMode mActionMode;
@@ -164,7 +148,8 @@ public class ChannelListFragment extends JumbleServiceFragment implements OnChan
                              Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.fragment_channel_list, container, false);
         mChannelView = (RecyclerView) view.findViewById(R.id.channelUsers);
-        mChannelView.setLayoutManager(new LinearLayoutManager(getActivity()));
+        mLayoutManager = new LinearLayoutManager(getActivity());
+        mChannelView.setLayoutManager(mLayoutManager);
 
         return view;
     }
@@ -200,13 +185,18 @@ public class ChannelListFragment extends JumbleServiceFragment implements OnChan
             if (mChannelListAdapter == null) {
                 setupChannelList();
             } else {
-                mChannelListAdapter.setService(service);
+                mChannelListAdapter.setService((IPlumbleService) service);
             }
         } catch (RemoteException e) {
             e.printStackTrace();
         }
     }
 
+    @Override
+    public void onServiceUnbound() {
+        mServiceObserver.cancel();
+    }
+
     @Override
     public void onPrepareOptionsMenu(Menu menu) {
         super.onPrepareOptionsMenu(menu);
@@ -323,6 +313,8 @@ public class ChannelListFragment extends JumbleServiceFragment implements OnChan
         mChannelListAdapter.setOnUserClickListener(this);
         mChannelView.setAdapter(mChannelListAdapter);
         mChannelListAdapter.notifyDataSetChanged();
+        mAnimationScheduler = new UserAnimationScheduler(mChannelListAdapter, mChannelView,
+                mLayoutManager);
 	}
 
 	/**
@@ -330,7 +322,9 @@ public class ChannelListFragment extends JumbleServiceFragment implements OnChan
 	 */
 	public void scrollToChannel(int channelId) {
 		int channelPosition = mChannelListAdapter.getChannelPosition(channelId);
-        mChannelView.smoothScrollToPosition(channelPosition);
+        if (channelPosition != -1) {
+            mChannelView.smoothScrollToPosition(channelPosition);
+        }
     }
 	/**
 	 * Scrolls to the passed user.
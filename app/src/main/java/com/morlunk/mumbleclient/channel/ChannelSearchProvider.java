@@ -18,56 +18,29 @@
 package com.morlunk.mumbleclient.channel;
 
 import android.app.SearchManager;
-import android.content.ComponentName;
 import android.content.ContentProvider;
 import android.content.ContentValues;
-import android.content.Intent;
-import android.content.ServiceConnection;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
-import android.os.IBinder;
-import android.os.RemoteException;
 import android.util.Log;
 
-import com.morlunk.jumble.IJumbleService;
-import com.morlunk.jumble.IJumbleSession;
-import com.morlunk.jumble.JumbleService;
-import com.morlunk.jumble.model.Channel;
-import com.morlunk.jumble.model.IChannel;
-import com.morlunk.jumble.model.IUser;
-import com.morlunk.jumble.model.User;
 import com.morlunk.mumbleclient.Constants;
 import com.morlunk.mumbleclient.R;
-import com.morlunk.mumbleclient.service.PlumbleService;
+import com.morlunk.mumbleclient.service.ChannelAggregateIndex;
+import com.morlunk.mumbleclient.service.NameIndex;
+import com.morlunk.mumbleclient.service.SearchIndex;
 
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
 
 public class ChannelSearchProvider extends ContentProvider {
 	
 	public static final String INTENT_DATA_CHANNEL = "channel";
 	public static final String INTENT_DATA_USER = "user";
 
-    private IJumbleService mService;
-    private final Object mServiceLock = new Object();
+    /** The number of suggestions to show if the search UI doesn't specify a limit. */
+    private static final int DEFAULT_SUGGESTION_LIMIT = 20;
 
-	private ServiceConnection mConn = new ServiceConnection() {
-		@Override
-		public void onServiceConnected(ComponentName name, IBinder service) {
-			mService = ((PlumbleService.PlumbleBinder) service).getService();
-            synchronized (mServiceLock) {
-                mServiceLock.notify();
-            }
-		}
-
-		@Override
-		public void onServiceDisconnected(ComponentName name) {
-			mService = null;
-		}
-	};
-	
 	@Override
 	public int delete(Uri uri, String selection, String[] selectionArgs) {
 		// TODO Auto-generated method stub
@@ -96,118 +69,44 @@ public class ChannelSearchProvider extends ContentProvider {
 	public Cursor query(Uri uri, String[] projection, String selection,
 			String[] selectionArgs, String sortOrder) {	
 		
-		// Try to connect to the service. Wait for conn to establish.
-		if(mService == null) {
-			Intent serviceIntent = new Intent(getContext(), PlumbleService.class);
-			getContext().bindService(serviceIntent, mConn, 0);
-
-            synchronized (mServiceLock) {
-                try {
-                    mServiceLock.wait(5000);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-
-                if(mService == null) {
-                    Log.v(Constants.TAG, "Failed to connect to service from search provider!");
-                    return null;
-                }
-            }
-		}
-
-        if (!mService.isConnected())
+        SearchIndex searchIndex = SearchIndex.getPublished();
+        if (searchIndex == null) {
+            // Not connected, or the server's channels and users are not yet known.
             return null;
+        }
 
-        IJumbleSession session = mService.getSession();
-		
 		String query = "";
 		for(int x=0;x<selectionArgs.length;x++) {
 			query += selectionArgs[x];
 			if(x != selectionArgs.length-1)
 				query += " ";
 		}
-		
-		query = query.toLowerCase(Locale.getDefault());
-		
-		MatrixCursor cursor = new MatrixCursor(new String[] { "_ID", SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA, SearchManager.SUGGEST_COLUMN_TEXT_1, SearchManager.SUGGEST_COLUMN_ICON_1, SearchManager.SUGGEST_COLUMN_TEXT_2, SearchManager.SUGGEST_COLUMN_INTENT_DATA });
-
-        List<IChannel> channels = channelSearch(session.getRootChannel(), query);
-        List<IUser> users = userSearch(session.getRootChannel(), query);
 
-        for(int x=0;x<channels.size();x++) {
-            IChannel channel = channels.get(x);
-            cursor.addRow(new Object[] { x, INTENT_DATA_CHANNEL, channel.getName(), R.drawable.ic_action_channels, getContext().getString(R.string.search_channel_users, channel.getSubchannelUserCount()), channel.getId() });
-        }
-
-        for(int x=0;x<users.size();x++) {
-            IUser user = users.get(x);
-            cursor.addRow(new Object[] { x, INTENT_DATA_USER, user.getName(), R.drawable.ic_action_user_dark, getContext().getString(R.string.user), user.getSession() });
-        }
-		return cursor;
-	}
-
-    /**
-     * Recursively searches the channel tree for a user with a name containing the given string,
-     * ignoring case.
-     * @param root The channel to recursively search for users within.
-     * @param str The string to match against the user's name. Case insensitive.
-     * @return A list of users whose names contain str.
-     */
-    private List<IUser> userSearch(IChannel root, String str) {
-        List<IUser> list = new LinkedList<IUser>();
-        userSearch(root, str, list);
-        return list;
-    }
-
-    /**
-     * @see #userSearch(IChannel,String)
-     */
-    private void userSearch(IChannel root, String str, List<IUser> users) {
-        if (root == null) {
-            return;
-        }
-        for (IUser user : (List<IUser>) root.getUsers()) {
-            if (user != null && user.getName() != null
-                    && user.getName().toLowerCase().contains(str.toLowerCase())) {
-                users.add(user);
+        int limit = DEFAULT_SUGGESTION_LIMIT;
+        String limitParameter = uri.getQueryParameter(SearchManager.SUGGEST_PARAMETER_LIMIT);
+        if (limitParameter != null) {
+            try {
+                limit = Integer.parseInt(limitParameter);
+            } catch (NumberFormatException e) {
+                Log.w(Constants.TAG, "Invalid suggestion limit " + limitParameter);
             }
         }
-        for (IChannel subc : (List<IChannel>) root.getSubchannels()) {
-            if (subc != null)
-                userSearch(subc, str, users);
-        }
-    }
-
-    /**
-     * Recursively searches the channel tree for a channel with a name containing the given string,
-     * ignoring case.
-     * @param root The channel to recursively search for subchannels within.
-     * @param str The string to match against the channel's name. Case insensitive.
-     * @return A list of channels whose names contain str.
-     */
-    private List<IChannel> channelSearch(IChannel root, String str) {
-        List<IChannel> list = new LinkedList<IChannel>();
-        channelSearch(root, str, list);
-        return list;
-    }
-
-    /**
-     * @see #channelSearch(IChannel,String)
-     */
-    private void channelSearch(IChannel root, String str, List<IChannel> channels) {
-        if (root == null) {
-            return;
-        }
 
-        if (root.getName().toLowerCase().contains(str.toLowerCase())) {
-            channels.add(root);
-        }
+		MatrixCursor cursor = new MatrixCursor(new String[] { "_ID", SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA, SearchManager.SUGGEST_COLUMN_TEXT_1, SearchManager.SUGGEST_COLUMN_ICON_1, SearchManager.SUGGEST_COLUMN_TEXT_2, SearchManager.SUGGEST_COLUMN_INTENT_DATA });
+
+        List<NameIndex.Entry> results = searchIndex.getNameIndex().search(query, limit);
+        ChannelAggregateIndex aggregateIndex = searchIndex.getAggregateIndex();
 
-        for (IChannel subc : (List<IChannel>) root.getSubchannels()) {
-            if (subc != null)
-                channelSearch(subc, str, channels);
+        for(int x=0;x<results.size();x++) {
+            NameIndex.Entry result = results.get(x);
+            if (result.getType() == NameIndex.TYPE_CHANNEL) {
+                cursor.addRow(new Object[] { x, INTENT_DATA_CHANNEL, result.getName(), R.drawable.ic_action_channels, getContext().getString(R.string.search_channel_users, aggregateIndex.getUserCount(result.getId())), result.getId() });
+            } else {
+                cursor.addRow(new Object[] { x, INTENT_DATA_USER, result.getName(), R.drawable.ic_action_user_dark, getContext().getString(R.string.user), result.getId() });
+            }
         }
-    }
+		return cursor;
+	}
 
 	@Override
 	public int update(Uri uri, ContentValues values, String selection,
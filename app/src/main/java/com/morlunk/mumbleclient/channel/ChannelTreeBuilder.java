@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.channel;
+
+import android.graphics.Typeface;
+
+import com.morlunk.jumble.IJumbleSession;
+import com.morlunk.jumble.model.IChannel;
+import com.morlunk.jumble.model.IUser;
+import com.morlunk.mumbleclient.channel.ChannelListAdapter.Node;
+import com.morlunk.mumbleclient.service.ChannelAggregateIndex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a flattened snapshot of the channel tree, suitable for running off the main thread.
+ *
+ * The builder is created on the thread that owns the session's model, and copies out the plain
+ * state of the visible part of the channel tree: ids, names, typefaces, subtree user counts,
+ * expansion and the displayed state of each user. {@link #build()} only reads that copy, so it
+ * may run on any thread while the model keeps changing. Each {@link Node} stores everything its
+ * row displays apart from live user state, so that binding does not walk the model either.
+ */
+class ChannelTreeBuilder {
+    // Bits of the displayed state of a user, see getUserState.
+    private static final int USER_SELF_DEAFENED = 1;
+    private static final int USER_DEAFENED = 1 << 1;
+    private static final int USER_SELF_MUTED = 1 << 2;
+    private static final int USER_MUTED = 1 << 3;
+    private static final int USER_SUPPRESSED = 1 << 4;
+    private static final int USER_HAS_TEXTURE = 1 << 5;
+
+    private final List<ChannelState> mRoots;
+    private final int mSizeHint;
+
+    /**
+     * Copies the state of the channel tree needed for a build. Must be called on the thread that
+     * owns the session's model.
+     * @param session The session to read the channel tree from.
+     * @param aggregateIndex The index to read subtree user counts from.
+     * @param rootChannels The ids of the channels to show at the top level.
+     * @param expandedChannels User-set channel expansions. Unmapped channels are expanded if
+     *                         they contain users.
+     * @param sizeHint The expected number of nodes in the tree.
+     */
+    public ChannelTreeBuilder(IJumbleSession session, ChannelAggregateIndex aggregateIndex,
+                              List<Integer> rootChannels, Map<Integer, Boolean> expandedChannels,
+                              int sizeHint) {
+        mSizeHint = sizeHint;
+        mRoots = new ArrayList<ChannelState>(rootChannels.size());
+        IChannel sessionChannel = session.getSessionChannel();
+        int sessionId = session.getSessionId();
+        for (int cid : rootChannels) {
+            IChannel channel = session.getChannel(cid);
+            if (channel != null) {
+                mRoots.add(copyChannel(channel, aggregateIndex, expandedChannels, sessionChannel,
+                        sessionId));
+            }
+        }
+    }
+
+    /**
+     * Builds the flattened tree from the copied state. Safe to call from any thread.
+     */
+    public FlattenedChannelTree<Node> build() {
+        FlattenedChannelTree<Node> nodes = new FlattenedChannelTree<Node>(mSizeHint);
+        for (ChannelState root : mRoots) {
+            constructNodes(null, root, 0, nodes);
+        }
+        return nodes;
+    }
+
+    /**
+     * Recursively copies the state of a channel, and of its users and subchannels if expanded.
+     */
+    private static ChannelState copyChannel(IChannel channel, ChannelAggregateIndex aggregateIndex,
+                                            Map<Integer, Boolean> expandedChannels,
+                                            IChannel sessionChannel, int sessionId) {
+        List<IChannel> subchannels = channel.getSubchannels();
+        int userCount = aggregateIndex.getUserCount(channel.getId());
+        Boolean expandSetting = expandedChannels.get(channel.getId());
+        // Hide empty channels unless explicitly expanded.
+        boolean expanded = !((expandSetting == null && userCount == 0)
+                || (expandSetting != null && !expandSetting));
+        ChannelState state = new ChannelState(channel, channel.getName(),
+                getChannelTypeface(channel, sessionChannel), userCount, !subchannels.isEmpty(),
+                expanded);
+        if (!expanded) {
+            return state; // Skip copying children of contracted/empty channels.
+        }
+
+        List<IUser> users = (List<IUser>) channel.getUsers();
+        state.mUsers = new ArrayList<UserState>(users.size());
+        for (IUser user : users) {
+            if (user != null) {
+                state.mUsers.add(new UserState(user, user.getName(),
+                        user.getSession() == sessionId ? Typeface.BOLD : Typeface.NORMAL,
+                        getUserState(user),
+                        user.getTextureHash() != null ? user.getTextureHash().hashCode() : 0));
+            }
+        }
+        state.mSubchannels = new ArrayList<ChannelState>(subchannels.size());
+        for (IChannel subc : subchannels) {
+            state.mSubchannels.add(copyChannel(subc, aggregateIndex, expandedChannels,
+                    sessionChannel, sessionId));
+        }
+        return state;
+    }
+
+    /**
+     * Recursively creates a list of {@link Node}s representing the channel hierarchy.
+     * @param parent The parent node to propagate under.
+     * @param channel The state of the parent channel.
+     * @param depth The current depth of the subtree.
+     * @param nodes An accumulator to store generated nodes into.
+     */
+    private static void constructNodes(Node parent, ChannelState channel, int depth,
+                                       FlattenedChannelTree<Node> nodes) {
+        Node channelNode = new Node(parent, depth, channel.mChannel, channel.mId, channel.mName,
+                channel.mTypeface, channel.mUserCount, channel.mHasSubchannels, channel.mExpanded);
+        nodes.add(channelNode, channelNode.getId(), getChannelContentHash(channelNode));
+        if (!channel.mExpanded) {
+            return;
+        }
+
+        for (UserState user : channel.mUsers) {
+            Node userNode = new Node(channelNode, depth, user.mUser, user.mSession, user.mName,
+                    user.mTypeface);
+            nodes.add(userNode, userNode.getId(), getUserContentHash(userNode, user));
+        }
+        for (ChannelState subc : channel.mSubchannels) {
+            constructNodes(channelNode, subc, depth + 1, nodes);
+        }
+    }
+
+    /**
+     * @return The typeface style to display the given channel's name in.
+     */
+    private static int getChannelTypeface(IChannel channel, IChannel sessionChannel) {
+        int nameTypeface = Typeface.NORMAL;
+        if (channel.equals(sessionChannel)) {
+            nameTypeface |= Typeface.BOLD;
+            // Always italicize our current channel if it has a link.
+            if (channel.getLinks().size() > 0) {
+                nameTypeface |= Typeface.ITALIC;
+            }
+        }
+        // Italicize channels in a link with our current channel.
+        if (sessionChannel != null && channel.getLinks().contains(sessionChannel)) {
+            nameTypeface |= Typeface.ITALIC;
+        }
+        return nameTypeface;
+    }
+
+    /**
+     * @return The bits of the user's state that are reflected in their row, excluding talk state.
+     */
+    private static int getUserState(IUser user) {
+        int state = 0;
+        state |= user.isSelfDeafened() ? USER_SELF_DEAFENED : 0;
+        state |= user.isDeafened() ? USER_DEAFENED : 0;
+        state |= user.isSelfMuted() ? USER_SELF_MUTED : 0;
+        state |= user.isMuted() ? USER_MUTED : 0;
+        state |= user.isSuppressed() ? USER_SUPPRESSED : 0;
+        state |= user.getTexture() != null ? USER_HAS_TEXTURE : 0;
+        return state;
+    }
+
+    /**
+     * Hashes the state of a channel that is reflected in its row.
+     * Used to determine which rows need to be rebound after a model update.
+     */
+    private static int getChannelContentHash(Node node) {
+        int hash = node.getName() != null ? node.getName().hashCode() : 0;
+        hash = 31 * hash + node.getTypeface();
+        hash = 31 * hash + (node.isExpanded() ? 1 : 0);
+        hash = 31 * hash + (node.hasSubchannels() ? 1 : 0);
+        hash = 31 * hash + node.getUserCount();
+        return hash;
+    }
+
+    /**
+     * Hashes the state of a user that is reflected in their row, excluding talk state.
+     * Talk state changes are animated separately by
+     * {@link ChannelListAdapter#animateUserTalkStateUpdate}.
+     */
+    private static int getUserContentHash(Node node, UserState user) {
+        int hash = node.getName() != null ? node.getName().hashCode() : 0;
+        hash = 31 * hash + node.getTypeface();
+        hash = 31 * hash + user.mState;
+        hash = 31 * hash + user.mTextureHash;
+        return hash;
+    }
+
+    /**
+     * The state of a channel, copied from the model.
+     */
+    private static class ChannelState {
+        public final IChannel mChannel;
+        public final int mId;
+        public final String mName;
+        public final int mTypeface;
+        public final int mUserCount;
+        public final boolean mHasSubchannels;
+        public final boolean mExpanded;
+        /** The channel's users and subchannels, or null if the channel is not expanded. */
+        public List<UserState> mUsers;
+        public List<ChannelState> mSubchannels;
+
+        public ChannelState(IChannel channel, String name, int typeface, int userCount,
+                            boolean hasSubchannels, boolean expanded) {
+            mChannel = channel;
+            mId = channel.getId();
+            mName = name;
+            mTypeface = typeface;
+            mUserCount = userCount;
+            mHasSubchannels = hasSubchannels;
+            mExpanded = expanded;
+        }
+    }
+
+    /**
+     * The state of a user, copied from the model.
+     */
+    private static class UserState {
+        public final IUser mUser;
+        public final int mSession;
+        public final String mName;
+        public final int mTypeface;
+        public final int mState;
+        public final int mTextureHash;
+
+        public UserState(IUser user, String name, int typeface, int state, int textureHash) {
+            mUser = user;
+            mSession = user.getSession();
+            mName = name;
+            mTypeface = typeface;
+            mState = state;
+            mTextureHash = textureHash;
+        }
+    }
+}
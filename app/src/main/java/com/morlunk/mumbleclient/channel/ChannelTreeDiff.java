@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.channel;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Computes the smallest practical set of insert/remove/move/change operations required to turn
+ * one flattened channel tree into another, using the stable item ids of each row.
+ *
+ * Operations are emitted in order, with positions relative to the list state after all previously
+ * emitted operations have been applied- this matches the contract of RecyclerView's
+ * notifyItem* family of methods.
+ *
+ * Rows in the longest run that kept their relative order never move, and every other surviving
+ * row moves exactly once. Current positions are kept in a {@link PositionIndex}, so the diff
+ * takes O(n log n) time. Past {@link #MAX_MOVES} moves, animating each one is neither cheap nor
+ * meaningful, and the whole list is reported as changed instead.
+ */
+public class ChannelTreeDiff {
+    /** The number of moves above which {@link Callback#onDataSetChanged()} is dispatched. */
+    public static final int MAX_MOVES = 100;
+
+    /**
+     * Receives the operations required to transform the old list into the new one.
+     */
+    public interface Callback {
+        void onInserted(int position, int count);
+        void onRemoved(int position, int count);
+        void onMoved(int fromPosition, int toPosition);
+        void onChanged(int position, int count);
+
+        /**
+         * Called instead of any other operation when the lists differ by too many moves to
+         * dispatch individually.
+         */
+        void onDataSetChanged();
+    }
+
+    private ChannelTreeDiff() {
+    }
+
+    /**
+     * Dispatches the operations needed to transform the old list of rows into the new one.
+     * @param oldIds The stable ids of the old rows, in order.
+     * @param oldHashes The content hashes of the old rows, parallel to oldIds.
+     * @param oldSize The number of valid entries in oldIds and oldHashes.
+     * @param newIds The stable ids of the new rows, in order.
+     * @param newHashes The content hashes of the new rows, parallel to newIds.
+     * @param newSize The number of valid entries in newIds and newHashes.
+     * @param callback The callback to receive operations.
+     */
+    public static void dispatch(long[] oldIds, int[] oldHashes, int oldSize,
+                                long[] newIds, int[] newHashes, int newSize,
+                                Callback callback) {
+        Map<Long, Integer> newPositions = new HashMap<Long, Integer>(newSize * 2);
+        for (int i = 0; i < newSize; i++) {
+            newPositions.put(newIds[i], i);
+        }
+
+        // Rows that survive, in their old relative order. keptIndices maps each new position to
+        // the row's index among the survivors, or -1 if the row is inserted.
+        int[] keptNewPositions = new int[oldSize];
+        int[] keptOldPositions = new int[oldSize];
+        int[] keptIndices = new int[newSize];
+        Arrays.fill(keptIndices, -1);
+        int keptCount = 0;
+        for (int i = 0; i < oldSize; i++) {
+            Integer newPosition = newPositions.get(oldIds[i]);
+            if (newPosition != null) {
+                keptNewPositions[keptCount] = newPosition;
+                keptOldPositions[keptCount] = i;
+                keptIndices[newPosition] = keptCount;
+                keptCount++;
+            }
+        }
+        // Rows in the longest increasing run of new positions never need to move; everything
+        // else is moved into place around them.
+        boolean[] stable = findStablePositions(keptNewPositions, keptCount, newSize);
+        int moveCount = 0;
+        for (int i = 0; i < newSize; i++) {
+            if (keptIndices[i] != -1 && !stable[i]) {
+                moveCount++;
+            }
+        }
+        if (moveCount > MAX_MOVES) {
+            callback.onDataSetChanged();
+            return;
+        }
+
+        // Walk backwards when removing, so that earlier positions remain valid.
+        int removeEnd = -1;
+        for (int i = oldSize - 1; i >= 0; i--) {
+            boolean removed = !newPositions.containsKey(oldIds[i]);
+            if (removed && removeEnd == -1) {
+                removeEnd = i;
+            } else if (!removed && removeEnd != -1) {
+                callback.onRemoved(i + 1, removeEnd - i);
+                removeEnd = -1;
+            }
+        }
+        if (removeEnd != -1) {
+            callback.onRemoved(0, removeEnd + 1);
+        }
+
+        if (moveCount > 0) {
+            dispatchMoves(keptIndices, stable, keptCount, newSize, callback);
+        }
+
+        // The survivors are now in their new relative order, so rows can be inserted at their
+        // new positions in turn.
+        int insertStart = -1;
+        for (int i = 0; i < newSize; i++) {
+            boolean inserted = keptIndices[i] == -1;
+            if (inserted && insertStart == -1) {
+                insertStart = i;
+            } else if (!inserted && insertStart != -1) {
+                callback.onInserted(insertStart, i - insertStart);
+                insertStart = -1;
+            }
+        }
+        if (insertStart != -1) {
+            callback.onInserted(insertStart, newSize - insertStart);
+        }
+
+        int changeStart = -1;
+        for (int i = 0; i < newSize; i++) {
+            int kept = keptIndices[i];
+            boolean changed = kept != -1 && oldHashes[keptOldPositions[kept]] != newHashes[i];
+            if (changed && changeStart == -1) {
+                changeStart = i;
+            } else if (!changed && changeStart != -1) {
+                callback.onChanged(changeStart, i - changeStart);
+                changeStart = -1;
+            }
+        }
+        if (changeStart != -1) {
+            callback.onChanged(changeStart, newSize - changeStart);
+        }
+    }
+
+    /**
+     * Moves each unstable survivor, in order of new position, to just before the next stable
+     * survivor after it, or to the end of the list if there is none. Stable rows keep their
+     * relative order, and each moved row lands after those moved before it, so the survivors end
+     * up in their new order.
+     *
+     * Each survivor k occupies slot 2k + 1 of the position index. Rows moved before survivor k
+     * take slot 2k, and rows moved to the end take the last slot, so the position of any row that
+     * hasn't moved, stable or not, is the number of rows in earlier slots.
+     */
+    private static void dispatchMoves(int[] keptIndices, boolean[] stable, int keptCount,
+                                      int newSize, Callback callback) {
+        PositionIndex index = new PositionIndex(keptCount * 2 + 1);
+        for (int k = 0; k < keptCount; k++) {
+            index.add(k * 2 + 1, 1);
+        }
+        int endSlot = keptCount * 2;
+
+        // For each new position, the survivor index of the next stable row after it, or -1.
+        int[] nextStable = new int[newSize];
+        int next = -1;
+        for (int i = newSize - 1; i >= 0; i--) {
+            nextStable[i] = next;
+            if (stable[i]) {
+                next = keptIndices[i];
+            }
+        }
+
+        for (int i = 0; i < newSize; i++) {
+            int kept = keptIndices[i];
+            if (kept == -1 || stable[i]) {
+                continue;
+            }
+            int from = index.countBefore(kept * 2 + 1);
+            index.add(kept * 2 + 1, -1);
+            int anchor = nextStable[i];
+            int slot;
+            int to;
+            if (anchor != -1) {
+                slot = anchor * 2;
+                to = index.countBefore(anchor * 2 + 1);
+            } else {
+                slot = endSlot;
+                to = keptCount - 1;
+            }
+            index.add(slot, 1);
+            if (from != to) {
+                callback.onMoved(from, to);
+            }
+        }
+    }
+
+    /**
+     * Finds the longest increasing subsequence of the given new positions.
+     * @param positions New positions of the surviving rows, in their old order.
+     * @param count The number of valid entries in positions.
+     * @param newSize The size of the new list.
+     * @return An array indexed by new position, true if the row at that position need not move.
+     */
+    private static boolean[] findStablePositions(int[] positions, int count, int newSize) {
+        boolean[] stable = new boolean[newSize];
+        if (count == 0) {
+            return stable;
+        }
+        int[] tails = new int[count];
+        int[] predecessors = new int[count];
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (positions[tails[mid]] < positions[i]) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            predecessors[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length) {
+                length++;
+            }
+        }
+        for (int i = tails[length - 1]; i >= 0; i = predecessors[i]) {
+            stable[positions[i]] = true;
+        }
+        return stable;
+    }
+
+    /**
+     * Counts the rows occupying a range of slots, as a binary indexed tree, so that the current
+     * position of a row can be found and updated in O(log n) time as rows move.
+     */
+    private static class PositionIndex {
+        private final int[] mTree;
+
+        public PositionIndex(int slots) {
+            mTree = new int[slots + 1];
+        }
+
+        public void add(int slot, int delta) {
+            for (int i = slot + 1; i < mTree.length; i += i & -i) {
+                mTree[i] += delta;
+            }
+        }
+
+        /**
+         * @return The number of rows in slots before the given one.
+         */
+        public int countBefore(int slot) {
+            int count = 0;
+            for (int i = slot; i > 0; i -= i & -i) {
+                count += mTree[i];
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.channel;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Html;
+import android.text.Spanned;
+import android.util.LruCache;
+
+import com.morlunk.mumbleclient.R;
+import com.morlunk.mumbleclient.service.IChatMessage;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Renders the HTML bodies, headers and timestamps of chat messages on a background thread,
+ * caching the results so that binding a chat row never parses HTML, decodes images or formats
+ * strings.
+ *
+ * Rendered messages are kept in an LRU cache keyed by message identity. Requests and callbacks
+ * are made on the main thread.
+ */
+public class ChatMessageRenderer {
+    /** The number of rendered messages to keep; a few screens' worth of rows. */
+    private static final int CACHE_SIZE = 200;
+
+    private final Resources mResources;
+    private final Html.ImageGetter mImageGetter;
+    private final Listener mListener;
+    private final LruCache<IChatMessage, RenderedMessage> mCache;
+    private final ExecutorService mExecutor;
+    private final Handler mHandler;
+    /** Only accessed on the render thread, as DateFormat isn't thread safe. */
+    private final DateFormat mDateFormat;
+    /** Messages queued for rendering. Only accessed on the main thread. */
+    private final Set<IChatMessage> mPending;
+    private boolean mNotifyPosted;
+    private boolean mShutdown;
+
+    private final Runnable mNotifyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mNotifyPosted = false;
+            if (!mShutdown) {
+                mListener.onMessagesRendered();
+            }
+        }
+    };
+
+    /**
+     * @param imageGetter The image getter used to load inline images. Only called on the render
+     *                    thread.
+     * @param listener A listener called on the main thread after messages are rendered.
+     */
+    public ChatMessageRenderer(Context context, Html.ImageGetter imageGetter, Listener listener) {
+        mResources = context.getResources();
+        mImageGetter = imageGetter;
+        mListener = listener;
+        mCache = new LruCache<IChatMessage, RenderedMessage>(CACHE_SIZE);
+        mExecutor = Executors.newSingleThreadExecutor();
+        mHandler = new Handler(Looper.getMainLooper());
+        mDateFormat = SimpleDateFormat.getTimeInstance();
+        mPending = new HashSet<IChatMessage>();
+    }
+
+    /**
+     * Returns the rendered form of the message, queueing it for rendering if necessary.
+     * @return The rendered message, or null if it isn't ready yet.
+     */
+    public RenderedMessage get(IChatMessage message) {
+        RenderedMessage rendered = mCache.get(message);
+        if (rendered == null) {
+            render(message);
+        }
+        return rendered;
+    }
+
+    /**
+     * Queues the given messages for rendering ahead of them being shown.
+     */
+    public void prerender(Collection<? extends IChatMessage> messages) {
+        for (IChatMessage message : messages) {
+            if (mCache.get(message) == null) {
+                render(message);
+            }
+        }
+    }
+
+    /**
+     * Stops rendering. Pending messages are dropped, and the listener is no longer called.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        mExecutor.shutdownNow();
+        mHandler.removeCallbacks(mNotifyRunnable);
+    }
+
+    private void render(final IChatMessage message) {
+        if (mShutdown || !mPending.add(message)) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final RenderedMessage rendered = new RenderedMessage(
+                        renderHeader(message),
+                        Html.fromHtml(message.getBody(), mImageGetter, null),
+                        mDateFormat.format(new Date(message.getReceivedTime())));
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mPending.remove(message);
+                        if (mShutdown) {
+                            return;
+                        }
+                        mCache.put(message, rendered);
+                        // Coalesce notifications for messages rendered in quick succession.
+                        if (!mNotifyPosted) {
+                            mNotifyPosted = true;
+                            mHandler.post(mNotifyRunnable);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return The line naming the sender and target of a text message, or null for other messages.
+     */
+    private String renderHeader(IChatMessage message) {
+        if (!(message instanceof IChatMessage.TextMessage)) {
+            return null;
+        }
+        IChatMessage.TextMessage textMessage = (IChatMessage.TextMessage) message;
+        if (textMessage.getTargetName() != null) {
+            return mResources.getString(R.string.chat_message_to, textMessage.getActorName(),
+                    textMessage.getTargetName());
+        } else if (textMessage.getTargetType() == IChatMessage.TextMessage.TargetType.NONE) {
+            return textMessage.getActorName();
+        } else {
+            return mResources.getString(R.string.unknown);
+        }
+    }
+
+    /**
+     * A message's header, body and timestamp, ready to be set on a view.
+     */
+    public static class RenderedMessage {
+        private final String mHeader;
+        private final Spanned mBody;
+        private final String mTime;
+
+        public RenderedMessage(String header, Spanned body, String time) {
+            mHeader = header;
+            mBody = body;
+            mTime = time;
+        }
+
+        /**
+         * @return The sender and target of a text message, or null for other messages.
+         */
+        public String getHeader() {
+            return mHeader;
+        }
+
+        public Spanned getBody() {
+            return mBody;
+        }
+
+        public String getTime() {
+            return mTime;
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the main thread once one or more requested messages have been rendered.
+         */
+        void onMessagesRendered();
+    }
+}
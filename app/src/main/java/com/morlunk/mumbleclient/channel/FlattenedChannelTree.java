@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.channel;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * An array-backed, pre-order flattening of the channel tree.
+ * Provides constant time access to the node at a position, and to the position of a node by its
+ * stable id. Ids and content hashes are stored in parallel primitive arrays so that they can be
+ * handed to {@link ChannelTreeDiff} without copying.
+ */
+class FlattenedChannelTree<T> {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Object[] mNodes;
+    private long[] mIds;
+    private int[] mHashes;
+    private int mSize;
+    /** A mapping of node ids to their position in the flattened tree. */
+    private final HashMap<Long, Integer> mPositions;
+
+    public FlattenedChannelTree() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public FlattenedChannelTree(int capacity) {
+        capacity = Math.max(capacity, INITIAL_CAPACITY);
+        mNodes = new Object[capacity];
+        mIds = new long[capacity];
+        mHashes = new int[capacity];
+        mPositions = new HashMap<Long, Integer>(capacity * 2);
+    }
+
+    /**
+     * Appends a node to the end of the flattened tree.
+     * @param node The node to append.
+     * @param id The stable id of the node, unique within this tree.
+     * @param contentHash A hash of the node's displayed state.
+     */
+    public void add(T node, long id, int contentHash) {
+        if (mSize == mNodes.length) {
+            int capacity = mSize * 2;
+            mNodes = Arrays.copyOf(mNodes, capacity);
+            mIds = Arrays.copyOf(mIds, capacity);
+            mHashes = Arrays.copyOf(mHashes, capacity);
+        }
+        mNodes[mSize] = node;
+        mIds[mSize] = id;
+        mHashes[mSize] = contentHash;
+        mPositions.put(id, mSize);
+        mSize++;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("Invalid position " + position + ", size " + mSize);
+        }
+        return (T) mNodes[position];
+    }
+
+    public long getId(int position) {
+        return mIds[position];
+    }
+
+    public int getContentHash(int position) {
+        return mHashes[position];
+    }
+
+    /**
+     * @return The position of the node with the given id, or -1 if not present.
+     */
+    public int indexOf(long id) {
+        Integer position = mPositions.get(id);
+        return position != null ? position : -1;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Dispatches the operations required to transform this tree into the given tree.
+     * @param newTree The tree that is replacing this one.
+     * @param callback The callback to receive insert, remove, move and change operations.
+     */
+    public void dispatchDiff(FlattenedChannelTree<T> newTree, ChannelTreeDiff.Callback callback) {
+        ChannelTreeDiff.dispatch(mIds, mHashes, mSize,
+                newTree.mIds, newTree.mHashes, newTree.mSize, callback);
+    }
+}
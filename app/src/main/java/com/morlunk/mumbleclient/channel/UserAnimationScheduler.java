@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.channel;
+
+import android.os.SystemClock;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+
+import com.morlunk.jumble.model.IUser;
+
+import java.util.Collection;
+
+/**
+ * Schedules the state and talk state animations of users in the channel list.
+ *
+ * Updates are expected to already be coalesced to the latest state of each user per frame (see
+ * {@link com.morlunk.mumbleclient.util.BatchingJumbleObserver}). Updates for users outside of the
+ * visible rows are dropped, as their rows will reflect the latest state when bound. At most
+ * {@link #MAX_CONCURRENT_ANIMATIONS} animations run at once; further updates are applied
+ * immediately without animating.
+ */
+class UserAnimationScheduler {
+    private static final int MAX_CONCURRENT_ANIMATIONS = 8;
+
+    private final ChannelListAdapter mAdapter;
+    private final RecyclerView mView;
+    private final LinearLayoutManager mLayoutManager;
+    /** The end times of running animations, in uptime ms. Free slots have ended. */
+    private final long[] mAnimationEndTimes = new long[MAX_CONCURRENT_ANIMATIONS];
+
+    public UserAnimationScheduler(ChannelListAdapter adapter, RecyclerView view,
+                                  LinearLayoutManager layoutManager) {
+        mAdapter = adapter;
+        mView = view;
+        mLayoutManager = layoutManager;
+    }
+
+    /**
+     * Animates the rows of visible users whose state changed.
+     * @param updatedUsers Users whose state was updated.
+     * @param talkStateUpdatedUsers Users whose talk state was updated.
+     */
+    public void schedule(Collection<IUser> updatedUsers, Collection<IUser> talkStateUpdatedUsers) {
+        int first = mLayoutManager.findFirstVisibleItemPosition();
+        int last = mLayoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION) {
+            return;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        for (IUser user : updatedUsers) {
+            if (isVisible(user, first, last)) {
+                mAdapter.animateUserStateUpdate(user, mView,
+                        acquireSlot(now, ChannelListAdapter.FLIP_DURATION));
+            }
+        }
+        for (IUser user : talkStateUpdatedUsers) {
+            if (isVisible(user, first, last)) {
+                mAdapter.animateUserTalkStateUpdate(user, mView,
+                        acquireSlot(now, ChannelListAdapter.TALK_STATE_DURATION));
+            }
+        }
+    }
+
+    private boolean isVisible(IUser user, int first, int last) {
+        int position = mAdapter.getUserPosition(user.getSession());
+        return position >= first && position <= last;
+    }
+
+    /**
+     * Reserves a slot for an animation starting now, if any are free.
+     * @return true if the animation may run, false if it should be applied immediately.
+     */
+    private boolean acquireSlot(long now, long duration) {
+        for (int i = 0; i < mAnimationEndTimes.length; i++) {
+            if (mAnimationEndTimes[i] <= now) {
+                mAnimationEndTimes[i] = now + duration;
+                return true;
+            }
+        }
+        return false;
+    }
+}
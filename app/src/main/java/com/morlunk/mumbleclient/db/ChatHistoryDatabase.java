@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.db;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+
+import com.morlunk.mumbleclient.service.IChatMessage;
+import com.morlunk.mumbleclient.util.InlineImageStore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An append-only store of the chat history of each saved server.
+ *
+ * The history is kept in its own database in write-ahead logging mode, so that the service can
+ * append to it while the chat UI reads pages back concurrently. Rows only keep the names of the
+ * sender and recipient of a message, never references to the session's users and channels.
+ *
+ * Message bodies may refer to images offloaded to the {@link InlineImageStore}. The number of
+ * rows referring to each image is counted, and images are deleted along with the last row
+ * referring to them.
+ */
+public class ChatHistoryDatabase extends SQLiteOpenHelper {
+    public static final String DATABASE_NAME = "chat_history.db";
+    public static final int PRE_TARGET_TYPE_DB_VERSION = 1;
+    public static final int PRE_SERVER_INDEX_DB_VERSION = 2;
+    public static final int PRE_IMAGES_DB_VERSION = 3;
+    public static final int CURRENT_DB_VERSION = 4;
+
+    public static final String TABLE_MESSAGES = "messages";
+    public static final String MESSAGES_ID = "_id";
+    public static final String MESSAGES_SERVER = "server";
+    public static final String MESSAGES_TIME = "time";
+    public static final String MESSAGES_TYPE = "type";
+    public static final String MESSAGES_ACTOR_NAME = "actor_name";
+    public static final String MESSAGES_TARGET_TYPE = "target_type";
+    public static final String MESSAGES_TARGET_NAME = "target_name";
+    public static final String MESSAGES_BODY = "body";
+    public static final String TABLE_MESSAGES_CREATE_SQL = "CREATE TABLE IF NOT EXISTS `" + TABLE_MESSAGES + "` ("
+            + "`" + MESSAGES_ID + "` INTEGER PRIMARY KEY AUTOINCREMENT,"
+            + "`" + MESSAGES_SERVER + "` INTEGER NOT NULL,"
+            + "`" + MESSAGES_TIME + "` INTEGER NOT NULL,"
+            + "`" + MESSAGES_TYPE + "` INTEGER NOT NULL,"
+            + "`" + MESSAGES_ACTOR_NAME + "` TEXT,"
+            + "`" + MESSAGES_TARGET_TYPE + "` TEXT,"
+            + "`" + MESSAGES_TARGET_NAME + "` TEXT,"
+            + "`" + MESSAGES_BODY + "` TEXT"
+            + ");";
+    /** Orders each server's messages by id, which pages and pruning are keyed on. */
+    public static final String INDEX_MESSAGES_SERVER_CREATE_SQL = "CREATE INDEX IF NOT EXISTS "
+            + "`messages_server` ON `" + TABLE_MESSAGES + "` (`" + MESSAGES_SERVER + "`);";
+
+    public static final String TABLE_IMAGES = "images";
+    public static final String IMAGES_KEY = "key";
+    public static final String IMAGES_REFS = "refs";
+    public static final String TABLE_IMAGES_CREATE_SQL = "CREATE TABLE IF NOT EXISTS `" + TABLE_IMAGES + "` ("
+            + "`" + IMAGES_KEY + "` TEXT PRIMARY KEY,"
+            + "`" + IMAGES_REFS + "` INTEGER NOT NULL"
+            + ");";
+    /** Selects the rows whose body may refer to an offloaded image. */
+    private static final String IMAGE_BODY_SELECTION =
+            "`" + MESSAGES_BODY + "` LIKE '%" + InlineImageStore.SCHEME + "%'";
+
+    public static final int TYPE_TEXT = 0;
+    public static final int TYPE_INFO = 1;
+    public static final int TYPE_WARNING = 2;
+    public static final int TYPE_ERROR = 3;
+
+    /** The number of most recent messages kept for each server. */
+    public static final int MAX_MESSAGES_PER_SERVER = 5000;
+    /** The age after which messages are removed from the history, in milliseconds. */
+    public static final long MAX_MESSAGE_AGE = 30L * 24 * 60 * 60 * 1000;
+
+    private static ChatHistoryDatabase sInstance;
+
+    private final Context mContext;
+
+    /**
+     * Returns the history database shared by the service and UI, so that both use the same
+     * connection pool.
+     */
+    public static synchronized ChatHistoryDatabase getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ChatHistoryDatabase(context.getApplicationContext(), DATABASE_NAME);
+        }
+        return sInstance;
+    }
+
+    public ChatHistoryDatabase(Context context, String name) {
+        super(context, name, null, CURRENT_DB_VERSION);
+        mContext = context;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(TABLE_MESSAGES_CREATE_SQL);
+        db.execSQL(INDEX_MESSAGES_SERVER_CREATE_SQL);
+        db.execSQL(TABLE_IMAGES_CREATE_SQL);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion <= PRE_TARGET_TYPE_DB_VERSION) {
+            db.execSQL("ALTER TABLE `" + TABLE_MESSAGES + "` ADD COLUMN `" + MESSAGES_TARGET_TYPE + "` TEXT");
+        }
+        if (oldVersion <= PRE_SERVER_INDEX_DB_VERSION) {
+            db.execSQL("DROP INDEX IF EXISTS `messages_server_time`");
+            db.execSQL(INDEX_MESSAGES_SERVER_CREATE_SQL);
+        }
+        if (oldVersion <= PRE_IMAGES_DB_VERSION) {
+            db.execSQL(TABLE_IMAGES_CREATE_SQL);
+            Cursor c = db.query(TABLE_MESSAGES, new String[]{MESSAGES_BODY}, IMAGE_BODY_SELECTION,
+                    null, null, null, null);
+            while (c.moveToNext()) {
+                addImageRefs(db, c.getString(0));
+            }
+            c.close();
+        }
+    }
+
+    /**
+     * Appends the given rows to the history in a single transaction, then prunes the history of
+     * each server appended to down to {@link #MAX_MESSAGES_PER_SERVER} messages no older than
+     * {@link #MAX_MESSAGE_AGE}. Images no longer referred to by any row are then deleted.
+     * @param rows Rows created by {@link #toValues(long, IChatMessage)}, oldest first. Rows may
+     *             be given increasing ids, or else are assigned them in order.
+     */
+    public void insertMessages(List<ContentValues> rows) {
+        SQLiteDatabase db = getWritableDatabase();
+        Set<String> unreferencedImages = new HashSet<String>();
+        db.beginTransaction();
+        try {
+            Set<Long> servers = new HashSet<Long>();
+            for (ContentValues row : rows) {
+                db.insert(TABLE_MESSAGES, null, row);
+                addImageRefs(db, row.getAsString(MESSAGES_BODY));
+                servers.add(row.getAsLong(MESSAGES_SERVER));
+            }
+            long oldestTime = System.currentTimeMillis() - MAX_MESSAGE_AGE;
+            for (long serverId : servers) {
+                prune(db, serverId, oldestTime, unreferencedImages);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        deleteImages(unreferencedImages);
+    }
+
+    /**
+     * Removes the messages of a server beyond the most recent {@link #MAX_MESSAGES_PER_SERVER},
+     * and those received before the given time.
+     */
+    private void prune(SQLiteDatabase db, long serverId, long oldestTime,
+                       Set<String> unreferencedImages) {
+        String server = String.valueOf(serverId);
+        deleteMessages(db, MESSAGES_SERVER + "=? AND (" + MESSAGES_TIME + "<? OR " + MESSAGES_ID
+                        + "<=(SELECT `" + MESSAGES_ID + "` FROM `" + TABLE_MESSAGES + "` WHERE `"
+                        + MESSAGES_SERVER + "`=? ORDER BY `" + MESSAGES_ID + "` DESC LIMIT 1 OFFSET "
+                        + MAX_MESSAGES_PER_SERVER + "))",
+                new String[]{server, String.valueOf(oldestTime), server}, unreferencedImages);
+    }
+
+    /**
+     * Fetches a page of history for the given server. Pages are keyed on message ids rather than
+     * times, so that messages received in the same millisecond are neither skipped nor repeated.
+     * @param serverId The ID of the saved server.
+     * @param beforeId Only messages with an id strictly less than this are returned. Pass
+     *                 {@link Long#MAX_VALUE} for the most recent page, or
+     *                 {@link Page#getFirstId()} of the previous page for the one before it.
+     * @param limit The maximum number of messages to return.
+     * @return The most recent messages matching, oldest first.
+     */
+    public Page getMessagesBefore(long serverId, long beforeId, int limit) {
+        Cursor c = getReadableDatabase().query(
+                TABLE_MESSAGES,
+                new String[]{MESSAGES_TIME, MESSAGES_TYPE, MESSAGES_ACTOR_NAME,
+                        MESSAGES_TARGET_NAME, MESSAGES_BODY, MESSAGES_TARGET_TYPE, MESSAGES_ID},
+                MESSAGES_SERVER + "=? AND " + MESSAGES_ID + "<?",
+                new String[]{String.valueOf(serverId), String.valueOf(beforeId)},
+                null,
+                null,
+                MESSAGES_ID + " DESC",
+                String.valueOf(limit));
+
+        List<IChatMessage> messages = new ArrayList<IChatMessage>(c.getCount());
+        long firstId = beforeId;
+        while (c.moveToNext()) {
+            firstId = c.getLong(6);
+            long time = c.getLong(0);
+            String body = c.getString(4);
+            switch (c.getInt(1)) {
+                case TYPE_TEXT:
+                    // Session and channel IDs are not meaningful beyond the session they were
+                    // received in, so only names are restored.
+                    messages.add(new IChatMessage.TextMessage(IChatMessage.TextMessage.UNKNOWN_ID,
+                            c.getString(2), getTargetType(c.getString(5), c.getString(3)),
+                            IChatMessage.TextMessage.UNKNOWN_ID, c.getString(3), body, time));
+                    break;
+                case TYPE_WARNING:
+                    messages.add(new IChatMessage.InfoMessage(
+                            IChatMessage.InfoMessage.Type.WARNING, body, time));
+                    break;
+                case TYPE_ERROR:
+                    messages.add(new IChatMessage.InfoMessage(
+                            IChatMessage.InfoMessage.Type.ERROR, body, time));
+                    break;
+                default:
+                    messages.add(new IChatMessage.InfoMessage(
+                            IChatMessage.InfoMessage.Type.INFO, body, time));
+                    break;
+            }
+        }
+        c.close();
+
+        Collections.reverse(messages);
+        return new Page(messages, firstId);
+    }
+
+    /**
+     * @return The greatest message id in the history, or 0 if it is empty.
+     */
+    public long getMaxId() {
+        Cursor c = getReadableDatabase().rawQuery(
+                "SELECT MAX(`" + MESSAGES_ID + "`) FROM `" + TABLE_MESSAGES + "`", null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return The keys of the offloaded images referred to by the history.
+     */
+    public Set<String> getImageKeys() {
+        Cursor c = getReadableDatabase().query(TABLE_IMAGES, new String[]{IMAGES_KEY}, null, null,
+                null, null, null);
+        Set<String> keys = new HashSet<String>(c.getCount());
+        while (c.moveToNext()) {
+            keys.add(c.getString(0));
+        }
+        c.close();
+        return keys;
+    }
+
+    /**
+     * Removes the entire history of the given server, along with the images only it referred to.
+     */
+    public void removeMessages(long serverId) {
+        SQLiteDatabase db = getWritableDatabase();
+        Set<String> unreferencedImages = new HashSet<String>();
+        db.beginTransaction();
+        try {
+            deleteMessages(db, MESSAGES_SERVER + "=?", new String[]{String.valueOf(serverId)},
+                    unreferencedImages);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        deleteImages(unreferencedImages);
+    }
+
+    /**
+     * Deletes the messages matching the given selection, and releases their references to
+     * offloaded images. All removals go through here, within a transaction.
+     * @param unreferencedImages Receives the keys of images no longer referred to by any row, to
+     *                           be deleted once the transaction is committed.
+     */
+    private void deleteMessages(SQLiteDatabase db, String selection, String[] selectionArgs,
+                                Set<String> unreferencedImages) {
+        Cursor c = db.query(TABLE_MESSAGES, new String[]{MESSAGES_BODY},
+                "(" + selection + ") AND " + IMAGE_BODY_SELECTION, selectionArgs,
+                null, null, null);
+        Set<String> released = new HashSet<String>();
+        while (c.moveToNext()) {
+            for (String key : InlineImageStore.findKeys(c.getString(0))) {
+                db.execSQL("UPDATE `" + TABLE_IMAGES + "` SET `" + IMAGES_REFS + "`=`"
+                        + IMAGES_REFS + "`-1 WHERE `" + IMAGES_KEY + "`=?", new Object[]{key});
+                released.add(key);
+            }
+        }
+        c.close();
+        db.delete(TABLE_MESSAGES, selection, selectionArgs);
+
+        for (String key : released) {
+            if (db.delete(TABLE_IMAGES, IMAGES_KEY + "=? AND " + IMAGES_REFS + "<=0",
+                    new String[]{key}) > 0) {
+                unreferencedImages.add(key);
+            }
+        }
+    }
+
+    /**
+     * Counts a reference from a new row to each offloaded image in its body.
+     */
+    private static void addImageRefs(SQLiteDatabase db, String body) {
+        for (String key : InlineImageStore.findKeys(body)) {
+            db.execSQL("INSERT OR IGNORE INTO `" + TABLE_IMAGES + "` (`" + IMAGES_KEY + "`, `"
+                    + IMAGES_REFS + "`) VALUES (?, 0)", new Object[]{key});
+            db.execSQL("UPDATE `" + TABLE_IMAGES + "` SET `" + IMAGES_REFS + "`=`"
+                    + IMAGES_REFS + "`+1 WHERE `" + IMAGES_KEY + "`=?", new Object[]{key});
+        }
+    }
+
+    private void deleteImages(Set<String> keys) {
+        if (!keys.isEmpty()) {
+            InlineImageStore.getInstance(mContext).delete(keys);
+        }
+    }
+
+    /**
+     * Flattens a message into a history row.
+     * @param serverId The ID of the saved server the message was received on.
+     * @param message The message to store.
+     * @return The row to pass to {@link #insertMessages(List)}.
+     */
+    public static ContentValues toValues(long serverId, IChatMessage message) {
+        final ContentValues values = new ContentValues();
+        values.put(MESSAGES_SERVER, serverId);
+        values.put(MESSAGES_TIME, message.getReceivedTime());
+        values.put(MESSAGES_BODY, message.getBody());
+        message.accept(new IChatMessage.Visitor() {
+            @Override
+            public void visit(IChatMessage.TextMessage message) {
+                values.put(MESSAGES_TYPE, TYPE_TEXT);
+                values.put(MESSAGES_ACTOR_NAME, message.getActorName());
+                values.put(MESSAGES_TARGET_TYPE, message.getTargetType().name());
+                values.put(MESSAGES_TARGET_NAME, message.getTargetName());
+            }
+
+            @Override
+            public void visit(IChatMessage.InfoMessage message) {
+                switch (message.getType()) {
+                    case WARNING:
+                        values.put(MESSAGES_TYPE, TYPE_WARNING);
+                        break;
+                    case ERROR:
+                        values.put(MESSAGES_TYPE, TYPE_ERROR);
+                        break;
+                    default:
+                        values.put(MESSAGES_TYPE, TYPE_INFO);
+                        break;
+                }
+            }
+
+        });
+        return values;
+    }
+
+    /**
+     * @return The stored target type, or a guess from the target name for rows stored before the
+     *         type was.
+     */
+    private static IChatMessage.TextMessage.TargetType getTargetType(String type, String targetName) {
+        if (type != null) {
+            try {
+                return IChatMessage.TextMessage.TargetType.valueOf(type);
+            } catch (IllegalArgumentException e) {
+                // Fall through.
+            }
+        }
+        return targetName != null ? IChatMessage.TextMessage.TargetType.CHANNEL
+                : IChatMessage.TextMessage.TargetType.NONE;
+    }
+
+    /**
+     * A page of chat history, oldest message first.
+     */
+    public static class Page {
+        private final List<IChatMessage> mMessages;
+        private final long mFirstId;
+
+        public Page(List<IChatMessage> messages, long firstId) {
+            mMessages = messages;
+            mFirstId = firstId;
+        }
+
+        public List<IChatMessage> getMessages() {
+            return mMessages;
+        }
+
+        /**
+         * @return The id of the oldest message in the page, to fetch the page before it with.
+         */
+        public long getFirstId() {
+            return mFirstId;
+        }
+    }
+}
@@ -34,6 +34,8 @@ import com.morlunk.mumbleclient.R;
 
 /**
  * A drawable containing a circular bitmap in the style of @drawable/outline_circle_talking_off.
+ * The bitmap is drawn as-is without copying, so that instances can be cheaply created from
+ * cached bitmaps (see {@link com.morlunk.mumbleclient.util.AvatarCache}).
  * Created by andrew on 19/10/14.
  */
 public class CircleDrawable extends Drawable {
@@ -42,6 +44,9 @@ public class CircleDrawable extends Drawable {
     private Bitmap mBitmap;
     private Paint mPaint;
     private Paint mStrokePaint;
+    private final RectF mImageRect;
+    private final RectF mStrokeRect;
+    private final Matrix mMatrix;
     private ConstantState mConstantState;
 
     public CircleDrawable(Resources resources, Bitmap bitmap) {
@@ -62,6 +67,10 @@ public class CircleDrawable extends Drawable {
         mStrokePaint.setStrokeWidth(strokeWidth);
         mStrokePaint.setStyle(Paint.Style.STROKE);
 
+        mImageRect = new RectF();
+        mStrokeRect = new RectF();
+        mMatrix = new Matrix();
+
         mConstantState = new ConstantState() {
             @Override
             public Drawable newDrawable() {
@@ -80,21 +89,19 @@ public class CircleDrawable extends Drawable {
         super.onBoundsChange(bounds);
 
         RectF bitmapRect = new RectF(0, 0, mBitmap.getWidth(), mBitmap.getHeight());
-        Matrix matrix = new Matrix();
-        matrix.setRectToRect(bitmapRect, new RectF(bounds), Matrix.ScaleToFit.CENTER);
-        mPaint.getShader().setLocalMatrix(matrix);
+        mImageRect.set(bounds);
+        mStrokeRect.set(bounds);
+        // Default stroke drawing is both inset and outset.
+        mStrokeRect.inset(mStrokePaint.getStrokeWidth()/2,
+                          mStrokePaint.getStrokeWidth()/2);
+        mMatrix.setRectToRect(bitmapRect, mImageRect, Matrix.ScaleToFit.CENTER);
+        mPaint.getShader().setLocalMatrix(mMatrix);
     }
 
     @Override
     public void draw(Canvas canvas) {
-        RectF imageRect = new RectF(getBounds());
-        RectF strokeRect = new RectF(getBounds());
-        // Default stroke drawing is both inset and outset.
-        strokeRect.inset(mStrokePaint.getStrokeWidth()/2,
-                         mStrokePaint.getStrokeWidth()/2);
-
-        canvas.drawOval(imageRect, mPaint);
-        canvas.drawOval(strokeRect, mStrokePaint);
+        canvas.drawOval(mImageRect, mPaint);
+        canvas.drawOval(mStrokeRect, mStrokePaint);
     }
 
     @Override
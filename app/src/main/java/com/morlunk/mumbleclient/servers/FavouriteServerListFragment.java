@@ -22,6 +22,7 @@ import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.app.Fragment;
@@ -40,8 +41,11 @@ import android.widget.TextView;
 import com.morlunk.jumble.model.Server;
 import com.morlunk.mumbleclient.BuildConfig;
 import com.morlunk.mumbleclient.R;
+import com.morlunk.mumbleclient.db.ChatHistoryDatabase;
 import com.morlunk.mumbleclient.db.DatabaseProvider;
 import com.morlunk.mumbleclient.db.PublicServer;
+import com.morlunk.mumbleclient.service.IPlumbleService;
+import com.morlunk.mumbleclient.util.JumbleServiceProvider;
 
 import java.util.List;
 
@@ -151,6 +155,14 @@ public class FavouriteServerListFragment extends Fragment implements OnItemClick
             @Override
             public void onClick(DialogInterface dialog, int which) {
                 mDatabaseProvider.getDatabase().removeServer(server);
+                IPlumbleService service = ((JumbleServiceProvider) getActivity()).getService();
+                if (service != null) {
+                    // The service may still be writing out messages from the server.
+                    service.clearChatHistory(server.getId());
+                } else {
+                    new RemoveHistoryTask(ChatHistoryDatabase.getInstance(getActivity()))
+                            .execute(server.getId());
+                }
                 mServerAdapter.remove(server);
             }
         });
@@ -176,6 +188,25 @@ public class FavouriteServerListFragment extends Fragment implements OnItemClick
         mConnectHandler.connectToServer((Server) mServerAdapter.getItem(arg2));
     }
 
+    /**
+     * Removes the chat history of a server off the main thread.
+     */
+    private static class RemoveHistoryTask extends AsyncTask<Long, Void, Void> {
+        private final ChatHistoryDatabase mDatabase;
+
+        public RemoveHistoryTask(ChatHistoryDatabase database) {
+            mDatabase = database;
+        }
+
+        @Override
+        protected Void doInBackground(Long... serverIds) {
+            for (long serverId : serverIds) {
+                mDatabase.removeMessages(serverId);
+            }
+            return null;
+        }
+    }
+
     public static interface ServerConnectHandler {
         public void connectToServer(Server server);
         public void connectToPublicServer(PublicServer server);
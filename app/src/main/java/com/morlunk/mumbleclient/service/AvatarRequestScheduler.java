@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.google.protobuf.ByteString;
+import com.morlunk.jumble.model.IUser;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Throttles requests for user avatar textures from the server.
+ *
+ * Requests are deduplicated per session and texture hash, so that a user's texture is requested
+ * at most once while it is pending. Users shown on screen are requested before the rest of the
+ * server, and requests are dispatched at a capped rate with a bounded number in flight, so that
+ * connecting to a large server does not flood the connection during synchronization.
+ *
+ * All methods must be called from the main thread.
+ */
+public class AvatarRequestScheduler {
+    /** The minimum interval between two requests, in ms. */
+    private static final long REQUEST_INTERVAL = 100;
+    /** The maximum number of requests awaiting a response from the server. */
+    private static final int MAX_IN_FLIGHT = 4;
+    /** Time in ms after which an unanswered request no longer counts towards the in-flight cap. */
+    private static final long REQUEST_TIMEOUT = 10000;
+
+    public interface Requester {
+        /**
+         * Requests the texture of the user with the given session from the server.
+         */
+        void requestAvatar(int session);
+    }
+
+    private final Requester mRequester;
+    private final Handler mHandler;
+    /** Queued requests for users shown on screen, in the order they were shown. */
+    private final LinkedHashMap<Integer, IUser> mVisibleQueue;
+    /** Queued requests for all other users. */
+    private final LinkedHashMap<Integer, IUser> mBackgroundQueue;
+    /** Dispatched requests awaiting a texture, mapped to the time they were sent. */
+    private final SparseArray<InFlightRequest> mInFlight;
+    private long mLastRequestTime;
+    private boolean mScheduled;
+
+    private final Runnable mDispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mScheduled = false;
+            dispatch();
+        }
+    };
+
+    public AvatarRequestScheduler(Requester requester) {
+        mRequester = requester;
+        mHandler = new Handler(Looper.getMainLooper());
+        mVisibleQueue = new LinkedHashMap<Integer, IUser>();
+        mBackgroundQueue = new LinkedHashMap<Integer, IUser>();
+        mInFlight = new SparseArray<InFlightRequest>();
+    }
+
+    /**
+     * Queues a request for the user's texture behind any users shown on screen.
+     * Does nothing if the texture is already loaded or requested.
+     */
+    public void request(IUser user) {
+        if (!needsRequest(user) || mVisibleQueue.containsKey(user.getSession())) {
+            return;
+        }
+        mBackgroundQueue.put(user.getSession(), user);
+        schedule();
+    }
+
+    /**
+     * Queues a request for the texture of a user shown on screen, ahead of all other users.
+     * Does nothing if the texture is already loaded or requested.
+     */
+    public void requestVisible(IUser user) {
+        if (!needsRequest(user)) {
+            return;
+        }
+        mBackgroundQueue.remove(user.getSession());
+        mVisibleQueue.put(user.getSession(), user);
+        schedule();
+    }
+
+    /**
+     * Notifies the scheduler that the user's state changed, completing their request if their
+     * texture has arrived.
+     */
+    public void onUserUpdated(IUser user) {
+        if (user.getTexture() != null) {
+            cancel(user.getSession());
+            schedule();
+        }
+    }
+
+    /**
+     * Drops any queued or in-flight request for the given session.
+     */
+    public void cancel(int session) {
+        mVisibleQueue.remove(session);
+        mBackgroundQueue.remove(session);
+        mInFlight.remove(session);
+    }
+
+    /**
+     * Drops all requests, i.e. upon disconnection.
+     */
+    public void clear() {
+        mHandler.removeCallbacks(mDispatchRunnable);
+        mScheduled = false;
+        mVisibleQueue.clear();
+        mBackgroundQueue.clear();
+        mInFlight.clear();
+    }
+
+    private boolean needsRequest(IUser user) {
+        ByteString hash = user.getTextureHash();
+        if (hash == null || user.getTexture() != null) {
+            return false;
+        }
+        InFlightRequest request = mInFlight.get(user.getSession());
+        return request == null || !hash.equals(request.mHash) ||
+                SystemClock.uptimeMillis() - request.mTime > REQUEST_TIMEOUT;
+    }
+
+    private void schedule() {
+        if (mScheduled || (mVisibleQueue.isEmpty() && mBackgroundQueue.isEmpty())) {
+            return;
+        }
+        long delay = Math.max(0, mLastRequestTime + REQUEST_INTERVAL - SystemClock.uptimeMillis());
+        mHandler.postDelayed(mDispatchRunnable, delay);
+        mScheduled = true;
+    }
+
+    private void dispatch() {
+        long now = SystemClock.uptimeMillis();
+        expireRequests(now);
+        if (mInFlight.size() >= MAX_IN_FLIGHT) {
+            // Wait for a response, or for the oldest request to time out.
+            mHandler.postDelayed(mDispatchRunnable, REQUEST_INTERVAL);
+            mScheduled = true;
+            return;
+        }
+
+        IUser user = poll(mVisibleQueue);
+        if (user == null) {
+            user = poll(mBackgroundQueue);
+        }
+        if (user != null) {
+            mInFlight.put(user.getSession(), new InFlightRequest(user.getTextureHash(), now));
+            mLastRequestTime = now;
+            mRequester.requestAvatar(user.getSession());
+        }
+        schedule();
+    }
+
+    /**
+     * Removes the next user from the queue whose texture still needs to be requested.
+     */
+    private IUser poll(LinkedHashMap<Integer, IUser> queue) {
+        while (!queue.isEmpty()) {
+            Integer session = queue.keySet().iterator().next();
+            IUser user = queue.remove(session);
+            if (needsRequest(user)) {
+                return user;
+            }
+        }
+        return null;
+    }
+
+    private void expireRequests(long now) {
+        for (int i = mInFlight.size() - 1; i >= 0; i--) {
+            if (now - mInFlight.valueAt(i).mTime > REQUEST_TIMEOUT) {
+                mInFlight.removeAt(i);
+            }
+        }
+    }
+
+    private static class InFlightRequest {
+        private final ByteString mHash;
+        private final long mTime;
+
+        public InFlightRequest(ByteString hash, long time) {
+            mHash = hash;
+            mTime = time;
+        }
+    }
+}
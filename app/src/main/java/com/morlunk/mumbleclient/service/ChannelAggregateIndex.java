@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.service;
+
+import android.util.SparseIntArray;
+
+/**
+ * Maintains the number of users within each channel's subtree.
+ *
+ * Rather than walking a channel's subchannels to count its users, the index is updated as users
+ * join, leave and move, adjusting only the counts of the affected channel's ancestors.
+ * Each update runs in time proportional to the depth of the channel.
+ *
+ * Updates come from the main thread, but the index may be read from any thread.
+ */
+public class ChannelAggregateIndex {
+    /** The parent id of root channels. */
+    public static final int NO_PARENT = -1;
+    private static final int NO_CHANNEL = Integer.MIN_VALUE;
+
+    /** Channel ids mapped to the id of their parent. */
+    private final SparseIntArray mParents = new SparseIntArray();
+    /** User sessions mapped to the id of the channel they are in. */
+    private final SparseIntArray mUserChannels = new SparseIntArray();
+    /** Channel ids mapped to the number of users in their subtree. */
+    private final SparseIntArray mUserCounts = new SparseIntArray();
+
+    /**
+     * Adds a channel, or moves it and its subtree under a new parent.
+     * @param channelId The id of the channel.
+     * @param parentId The id of the channel's parent, or {@link #NO_PARENT}.
+     */
+    public synchronized void updateChannel(int channelId, int parentId) {
+        int oldParentId = mParents.get(channelId, NO_CHANNEL);
+        if (oldParentId == parentId) {
+            return;
+        }
+        int users = mUserCounts.get(channelId);
+        if (oldParentId != NO_CHANNEL) {
+            propagate(oldParentId, -users);
+        }
+        mParents.put(channelId, parentId);
+        propagate(parentId, users);
+    }
+
+    /**
+     * Removes a channel, discounting any users still in its subtree from its ancestors.
+     * Subchannels that are still present are detached, and counted again once they are moved
+     * under another channel with {@link #updateChannel(int, int)}.
+     */
+    public synchronized void removeChannel(int channelId) {
+        int parentId = mParents.get(channelId, NO_CHANNEL);
+        if (parentId == NO_CHANNEL) {
+            return;
+        }
+        propagate(parentId, -mUserCounts.get(channelId));
+        mParents.delete(channelId);
+        mUserCounts.delete(channelId);
+        for (int i = 0; i < mParents.size(); i++) {
+            if (mParents.valueAt(i) == channelId) {
+                mParents.setValueAt(i, NO_PARENT);
+            }
+        }
+    }
+
+    /**
+     * Adds a user, or moves an existing user to another channel.
+     * @param session The session of the user.
+     * @param channelId The id of the channel the user is in.
+     */
+    public synchronized void updateUser(int session, int channelId) {
+        int oldChannelId = mUserChannels.get(session, NO_CHANNEL);
+        if (oldChannelId == channelId) {
+            return;
+        }
+        if (oldChannelId != NO_CHANNEL) {
+            propagate(oldChannelId, -1);
+        }
+        mUserChannels.put(session, channelId);
+        propagate(channelId, 1);
+    }
+
+    /**
+     * Removes a user, discounting them from their channel and its ancestors.
+     */
+    public synchronized void removeUser(int session) {
+        int channelId = mUserChannels.get(session, NO_CHANNEL);
+        if (channelId == NO_CHANNEL) {
+            return;
+        }
+        propagate(channelId, -1);
+        mUserChannels.delete(session);
+    }
+
+    /**
+     * @return The number of users in the given channel and its subchannels.
+     */
+    public synchronized int getUserCount(int channelId) {
+        return mUserCounts.get(channelId);
+    }
+
+    /**
+     * Removes all channels and users, i.e. upon disconnection.
+     */
+    public synchronized void clear() {
+        mParents.clear();
+        mUserChannels.clear();
+        mUserCounts.clear();
+    }
+
+    /**
+     * Adds the given delta to the user counts of a channel and each of its ancestors.
+     */
+    private void propagate(int channelId, int userDelta) {
+        if (userDelta == 0) {
+            return;
+        }
+        // Bound the walk by the number of channels in case of a malformed parent chain.
+        for (int i = 0; channelId != NO_PARENT && i <= mParents.size(); i++) {
+            mUserCounts.put(channelId, mUserCounts.get(channelId) + userDelta);
+            channelId = mParents.get(channelId, NO_PARENT);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.service;
+
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.morlunk.mumbleclient.Constants;
+import com.morlunk.mumbleclient.db.ChatHistoryDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Appends chat messages to the {@link ChatHistoryDatabase} in batches on a background thread.
+ *
+ * Messages are flattened into rows as they are appended, and written in a single transaction
+ * once a batch fills up or a short delay passes, so that a flood of messages costs one write
+ * instead of one per message.
+ *
+ * The writer assigns row ids itself, in the order messages are appended, so that callers can
+ * refer to a message's row before it is written; see {@link #getRowId(long)}.
+ */
+public class ChatHistoryWriter {
+    /** The longest time a message waits to be written, in milliseconds. */
+    private static final long FLUSH_DELAY = 1000;
+    /** The number of pending messages that triggers an immediate write. */
+    private static final int MAX_BATCH_SIZE = 100;
+
+    private final ChatHistoryDatabase mDatabase;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    /** Rows not yet handed to the database, oldest first. Guarded by this. */
+    private List<ContentValues> mPending;
+    /** Serializes writes, so that batches are inserted in the order they were appended. */
+    private final Object mWriteLock = new Object();
+    /** The sequence number of the next message appended. Guarded by this. */
+    private long mNextSequence;
+    /**
+     * The row id of the message with sequence number 0, read from the database on the first
+     * write, or -1. Guarded by mWriteLock.
+     */
+    private long mFirstRowId = -1;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public ChatHistoryWriter(ChatHistoryDatabase database) {
+        mDatabase = database;
+        mPending = new ArrayList<ContentValues>();
+        mThread = new HandlerThread("ChatHistoryWriter", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Queues a message to be appended to the history of the given server.
+     * @return The sequence number of the message, to pass to {@link #getRowId(long)}.
+     */
+    public long append(long serverId, IChatMessage message) {
+        ContentValues row = ChatHistoryDatabase.toValues(serverId, message);
+        long sequence;
+        synchronized (this) {
+            sequence = mNextSequence++;
+            // Replaced by the row id when written.
+            row.put(ChatHistoryDatabase.MESSAGES_ID, sequence);
+            mPending.add(row);
+            if (mPending.size() >= MAX_BATCH_SIZE) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mHandler.post(mFlushRunnable);
+            } else if (mPending.size() == 1) {
+                mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY);
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Writes out all pending messages on the calling thread, then looks up the row id of an
+     * appended message. Messages appended later have greater row ids.
+     * @param sequence The sequence number returned by {@link #append(long, IChatMessage)}.
+     * @return The row id of the message, even if it has since been removed from the history.
+     */
+    public long getRowId(long sequence) {
+        synchronized (mWriteLock) {
+            flush();
+            return mFirstRowId >= 0 ? mFirstRowId + sequence : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Writes out all pending messages on the calling thread.
+     * Called before reading history back, so that pages include the most recent messages.
+     */
+    public void flush() {
+        synchronized (mWriteLock) {
+            List<ContentValues> rows;
+            synchronized (this) {
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                rows = mPending;
+                mPending = new ArrayList<ContentValues>();
+                mHandler.removeCallbacks(mFlushRunnable);
+            }
+            try {
+                if (mFirstRowId < 0) {
+                    mFirstRowId = mDatabase.getMaxId() + 1;
+                }
+                for (ContentValues row : rows) {
+                    row.put(ChatHistoryDatabase.MESSAGES_ID,
+                            mFirstRowId + row.getAsLong(ChatHistoryDatabase.MESSAGES_ID));
+                }
+                mDatabase.insertMessages(rows);
+            } catch (SQLException e) {
+                Log.w(Constants.TAG, "Failed to write " + rows.size() + " messages to history", e);
+            }
+        }
+    }
+
+    /**
+     * Asynchronously removes the history of the given server, including pending messages.
+     */
+    public void clear(final long serverId) {
+        synchronized (this) {
+            List<ContentValues> remaining = new ArrayList<ContentValues>();
+            for (ContentValues row : mPending) {
+                if (row.getAsLong(ChatHistoryDatabase.MESSAGES_SERVER) != serverId) {
+                    remaining.add(row);
+                }
+            }
+            mPending = remaining;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mWriteLock) {
+                    mDatabase.removeMessages(serverId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes out all pending messages and stops the writer thread once done.
+     */
+    public void quit() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+                mThread.quit();
+            }
+        });
+    }
+}
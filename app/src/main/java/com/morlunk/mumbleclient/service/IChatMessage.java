@@ -19,9 +19,12 @@ package com.morlunk.mumbleclient.service;
 
 import android.os.RemoteException;
 
+import com.morlunk.jumble.model.IChannel;
 import com.morlunk.jumble.model.IMessage;
+import com.morlunk.jumble.model.IUser;
 
 import java.util.Date;
+import java.util.List;
 
 /**
  * A general chat message, either a text message from a user or an
@@ -45,34 +48,143 @@ public interface IChatMessage {
      */
     void accept(Visitor visitor);
 
+    /**
+     * @return A copy of this message with the given body, such as one with its inline images
+     *         offloaded.
+     */
+    IChatMessage withBody(String body);
+
     /**
      * A text message from a user.
+     *
+     * The sender and first recipient are resolved once when the message is logged, and only their
+     * IDs and names are kept, so that the message log doesn't retain the session's users and
+     * channels. Names are interned, as a log holds many messages from few users.
      */
     class TextMessage implements IChatMessage {
-        private final IMessage mMessage;
+        /** The ID of a sender or recipient that is no longer known, such as in stored history. */
+        public static final int UNKNOWN_ID = -1;
+
+        private final int mActor;
+        private final String mActorName;
+        private final TargetType mTargetType;
+        private final int mTargetId;
+        private final String mTargetName;
+        private final String mBody;
+        private final long mReceivedTime;
 
         public TextMessage(IMessage message) {
-            mMessage = message;
+            mActor = message.getActor();
+            mActorName = intern(message.getActorName());
+            mBody = message.getMessage();
+            mReceivedTime = message.getReceivedTime();
+
+            IChannel channel = first(message.getTargetChannels());
+            IChannel tree = first(message.getTargetTrees());
+            IUser user = first(message.getTargetUsers());
+            if (channel != null) {
+                mTargetType = TargetType.CHANNEL;
+                mTargetId = channel.getId();
+                mTargetName = intern(channel.getName());
+            } else if (tree != null) {
+                mTargetType = TargetType.TREE;
+                mTargetId = tree.getId();
+                mTargetName = intern(tree.getName());
+            } else if (user != null) {
+                mTargetType = TargetType.USER;
+                mTargetId = user.getSession();
+                mTargetName = intern(user.getName());
+            } else {
+                mTargetType = TargetType.NONE;
+                mTargetId = UNKNOWN_ID;
+                mTargetName = null;
+            }
+        }
+
+        public TextMessage(int actor, String actorName, TargetType targetType, int targetId,
+                           String targetName, String body, long receivedTime) {
+            mActor = actor;
+            mActorName = intern(actorName);
+            mTargetType = targetType;
+            mTargetId = targetId;
+            mTargetName = intern(targetName);
+            mBody = body;
+            mReceivedTime = receivedTime;
+        }
+
+        /**
+         * @return The session ID of the sender, or {@link #UNKNOWN_ID}.
+         */
+        public int getActor() {
+            return mActor;
+        }
+
+        public String getActorName() {
+            return mActorName;
+        }
+
+        public TargetType getTargetType() {
+            return mTargetType;
         }
 
-        public IMessage getMessage() {
-            return mMessage;
+        /**
+         * @return The ID of the target channel, the session ID of the target user, or
+         *         {@link #UNKNOWN_ID}.
+         */
+        public int getTargetId() {
+            return mTargetId;
+        }
+
+        /**
+         * @return The name of the channel or user the message was sent to, or null if unknown.
+         */
+        public String getTargetName() {
+            return mTargetName;
         }
 
         @Override
         public String getBody() {
-            return mMessage.getMessage();
+            return mBody;
         }
 
         @Override
         public long getReceivedTime() {
-            return mMessage.getReceivedTime();
+            return mReceivedTime;
         }
 
         @Override
         public void accept(Visitor visitor) {
             visitor.visit(this);
         }
+
+        @Override
+        public TextMessage withBody(String body) {
+            return new TextMessage(mActor, mActorName, mTargetType, mTargetId, mTargetName, body,
+                    mReceivedTime);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T first(List<?> targets) {
+            if (targets == null || targets.isEmpty()) {
+                return null;
+            }
+            return (T) targets.get(0);
+        }
+
+        private static String intern(String name) {
+            return name != null ? name.intern() : null;
+        }
+
+        /**
+         * The kind of the first recipient of a message. Messages may also have further recipients,
+         * which aren't kept.
+         */
+        public enum TargetType {
+            NONE,
+            CHANNEL,
+            TREE,
+            USER
+        }
     }
 
     /**
@@ -93,9 +205,13 @@ public interface IChatMessage {
         private final long mReceivedTime;
 
         public InfoMessage(Type type, String message) {
+            this(type, message, new Date().getTime());
+        }
+
+        public InfoMessage(Type type, String message, long receivedTime) {
             mType = type;
             mBody = message;
-            mReceivedTime = new Date().getTime();
+            mReceivedTime = receivedTime;
         }
 
         public Type getType() {
@@ -117,6 +233,11 @@ public interface IChatMessage {
             visitor.visit(this);
         }
 
+        @Override
+        public InfoMessage withBody(String body) {
+            return new InfoMessage(mType, body, mReceivedTime);
+        }
+
         public enum Type {
             INFO,
             WARNING,
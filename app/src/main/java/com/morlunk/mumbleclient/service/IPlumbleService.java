@@ -1,8 +1,9 @@
 package com.morlunk.mumbleclient.service;
 
 import com.morlunk.jumble.IJumbleService;
-
-import java.util.List;
+import com.morlunk.jumble.model.IMessage;
+import com.morlunk.jumble.model.IUser;
+import com.morlunk.mumbleclient.db.ChatHistoryDatabase;
 
 /**
  * Created by andrew on 28/02/17.
@@ -22,9 +23,61 @@ public interface IPlumbleService extends IJumbleService {
 
     void onTalkKeyUp();
 
-    List<IChatMessage> getMessageLog();
+    /**
+     * @return The live log of recent chat messages. It is only modified on the main thread.
+     */
+    MessageLog getMessageLog();
+
+    /**
+     * Adds a message sent by the local user to the chat log and history.
+     * Sent messages aren't echoed back by the server, so they aren't logged otherwise.
+     */
+    void logSentMessage(IMessage message);
 
+    /**
+     * Clears the chat log, along with the chat history of the current server.
+     */
     void clearMessageLog();
 
+    /**
+     * Asynchronously removes the chat history of a server, including messages not yet written.
+     */
+    void clearChatHistory(long serverId);
+
+    /**
+     * Reads a page of the current server's chat history, which persists across sessions.
+     * Performs disk I/O, so must not be called on the main thread.
+     * Messages still in the message log are not returned.
+     * @param beforeId Only messages with an id strictly less than this are returned. Pass
+     *                 {@link Long#MAX_VALUE} for the most recent page, or the first id of the
+     *                 previous page for the one before it.
+     * @param limit The maximum number of messages to return.
+     * @return The most recent matching messages. Empty if the server isn't saved.
+     */
+    ChatHistoryDatabase.Page getChatHistory(long beforeId, int limit);
+
+    /**
+     * Looks up the chat history id of a message logged by the service, so that the history can
+     * be paged back from it once it has been evicted from the message log.
+     * Performs disk I/O, so must not be called on the main thread.
+     * @param sequence The message's sequence number, from {@link MessageLog#getSequence(int)}.
+     * @return The id to pass to {@link #getChatHistory(long, int)}.
+     */
+    long getChatHistoryId(long sequence);
+
     void setSuppressNotifications(boolean suppressNotifications);
+
+    /**
+     * Requests the texture of a user shown on screen ahead of other pending avatar requests.
+     * Does nothing if the user has no texture, or it is already loaded or requested.
+     * The disk cache isn't checked, as this is called on every bind of a row; callers should
+     * check {@link com.morlunk.mumbleclient.util.AvatarCache#isAvailable(IUser, int)} first,
+     * which reuses the user's memoized cache key.
+     */
+    void requestVisibleAvatar(IUser user);
+
+    /**
+     * @return An index of the user counts within each channel's subtree.
+     */
+    ChannelAggregateIndex getAggregateIndex();
 }
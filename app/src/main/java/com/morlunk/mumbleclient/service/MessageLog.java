@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.service;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A chat log bounded by both message count and estimated memory use.
+ *
+ * Messages are stored in a ring buffer; once either budget is exceeded, the oldest messages are
+ * evicted. The footprint of each message is estimated from the lengths of its strings when it is
+ * added, so that the log's total can be reported without walking it.
+ *
+ * Views such as the chat list can read the log in place by position, and register a
+ * {@link Listener} to be told of appends and evictions rather than keeping a copy.
+ *
+ * Each message is stored with its sequence number in the chat history, if it was saved there, so
+ * that the history can be paged back from the oldest saved message still in the log.
+ */
+public class MessageLog {
+    /** Estimated fixed cost of a message: the message objects, their fields and string headers. */
+    private static final int MESSAGE_OVERHEAD_BYTES = 128;
+
+    private final int mMaxBytes;
+    private final IChatMessage[] mMessages;
+    private final int[] mMessageBytes;
+    /** The chat history sequence number of each message, or -1 if it wasn't saved. */
+    private final long[] mSequences;
+    /** The index of the oldest message in the ring buffer. */
+    private int mHead;
+    private int mSize;
+    private long mBytes;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * @param maxCount The maximum number of messages to keep.
+     * @param maxBytes The maximum estimated size in bytes of the messages to keep. The newest
+     *                 message is always kept, even if it alone exceeds this budget.
+     */
+    public MessageLog(int maxCount, int maxBytes) {
+        if (maxCount < 1) {
+            throw new IllegalArgumentException("The log must hold at least one message");
+        }
+        mMaxBytes = maxBytes;
+        mMessages = new IChatMessage[maxCount];
+        mMessageBytes = new int[maxCount];
+        mSequences = new long[maxCount];
+    }
+
+    /**
+     * Appends a message that isn't saved to the chat history.
+     * @see #add(IChatMessage, long)
+     */
+    public void add(IChatMessage message) {
+        add(message, -1);
+    }
+
+    /**
+     * Appends a message, evicting the oldest messages as needed to stay within budget.
+     * Listeners are notified on the calling thread.
+     * @param sequence The message's sequence number in the chat history, or -1 if it wasn't
+     *                 saved there.
+     */
+    public void add(IChatMessage message, long sequence) {
+        int bytes = estimateSize(message);
+        int evicted = countEvictions(bytes);
+        if (evicted > 0) {
+            for (Listener listener : mListeners) {
+                listener.onMessagesEvicting(evicted);
+            }
+        }
+        int position;
+        synchronized (this) {
+            for (int i = 0; i < evicted; i++) {
+                evictOldest();
+            }
+            int index = (mHead + mSize) % mMessages.length;
+            mMessages[index] = message;
+            mMessageBytes[index] = bytes;
+            mSequences[index] = sequence;
+            position = mSize;
+            mSize++;
+            mBytes += bytes;
+        }
+        for (Listener listener : mListeners) {
+            listener.onMessageAppended(position);
+        }
+    }
+
+    public void clear() {
+        synchronized (this) {
+            Arrays.fill(mMessages, null);
+            mHead = 0;
+            mSize = 0;
+            mBytes = 0;
+        }
+        for (Listener listener : mListeners) {
+            listener.onMessagesCleared();
+        }
+    }
+
+    /**
+     * @param position The position of the message, where 0 is the oldest message in the log.
+     * @return The message at the given position.
+     */
+    public synchronized IChatMessage get(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("Position " + position + ", size " + mSize);
+        }
+        return mMessages[(mHead + position) % mMessages.length];
+    }
+
+    /**
+     * @param position The position of the message, where 0 is the oldest message in the log.
+     * @return The chat history sequence number of the message, or -1 if it wasn't saved.
+     */
+    public synchronized long getSequence(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("Position " + position + ", size " + mSize);
+        }
+        return mSequences[(mHead + position) % mMessages.length];
+    }
+
+    /**
+     * @return The chat history sequence number of the oldest saved message in the log, or -1 if
+     *         none of the messages in the log were saved.
+     */
+    public synchronized long getOldestSequence() {
+        for (int i = 0; i < mSize; i++) {
+            long sequence = mSequences[(mHead + i) % mMessages.length];
+            if (sequence >= 0) {
+                return sequence;
+            }
+        }
+        return -1;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @return The estimated memory used by the messages in the log, in bytes.
+     */
+    public synchronized long getByteCount() {
+        return mBytes;
+    }
+
+    public int getMaxCount() {
+        return mMessages.length;
+    }
+
+    public int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * @return The number of oldest messages to evict to make room for a message of the given size.
+     */
+    private synchronized int countEvictions(int bytes) {
+        int count = 0;
+        long remainingBytes = mBytes;
+        while (count < mSize &&
+                (mSize - count == mMessages.length || remainingBytes + bytes > mMaxBytes)) {
+            remainingBytes -= mMessageBytes[(mHead + count) % mMessages.length];
+            count++;
+        }
+        return count;
+    }
+
+    private void evictOldest() {
+        mBytes -= mMessageBytes[mHead];
+        mMessages[mHead] = null;
+        mHead = (mHead + 1) % mMessages.length;
+        mSize--;
+    }
+
+    /**
+     * Receives changes to the log, on the thread that made them. Positions are as of the change,
+     * counting from the oldest message in the log.
+     */
+    public interface Listener {
+        /**
+         * Called after a message is added to the end of the log.
+         * @param position The position of the new message, which is the last in the log.
+         */
+        void onMessageAppended(int position);
+
+        /**
+         * Called just before messages are removed from the start of the log to make room for a
+         * new one, which is appended straight after. If the log is only modified on one thread,
+         * the messages can still be read, so that views can keep showing them.
+         * @param count The number of messages about to be removed from positions 0 onwards.
+         */
+        void onMessagesEvicting(int count);
+
+        void onMessagesCleared();
+    }
+
+    /**
+     * Estimates the memory retained by a message, counting two bytes per character of its body.
+     * Sender and recipient names are interned and shared between messages, so aren't counted.
+     */
+    static int estimateSize(IChatMessage message) {
+        return MESSAGE_OVERHEAD_BYTES + 2 * length(message.getBody());
+    }
+
+    private static int length(String string) {
+        return string != null ? string.length() : 0;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.service;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.speech.tts.TextToSpeech;
+
+import com.morlunk.jumble.model.IMessage;
+import com.morlunk.mumbleclient.R;
+import com.morlunk.mumbleclient.util.HtmlUtils;
+import com.morlunk.mumbleclient.util.InlineImageStore;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+/**
+ * Does the expensive handling of incoming text messages on a worker thread, so that a flood of
+ * messages doesn't hold up the main thread's other observer callbacks.
+ *
+ * The service decides on the main thread which consumers want a message, and only then hands it
+ * off. The message's HTML is parsed at most once, and only when it is to be spoken.
+ *
+ * Messages to be logged with large bodies have their inline images offloaded on the worker, and
+ * are then handed back to the main thread. Logged messages are always delivered in order.
+ *
+ * Work queued before {@link #clear()} or {@link #quit()} is dropped. Each queued message carries
+ * the generation it was submitted in, and is only spoken or shown under the lock if that is still
+ * current, so nothing is spoken or shown once either returns.
+ */
+public class MessagePipeline {
+    private final Context mContext;
+    private final PlumbleMessageNotification mNotification;
+    private final InlineImageStore mImageStore;
+    private final Logger mLogger;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Handler mMainHandler;
+    private final Object mLock = new Object();
+    /**
+     * Incremented to drop queued work. Only written on the main thread, and read by the worker
+     * under mLock.
+     */
+    private int mGeneration;
+    /** The number of logged messages on their way through the worker. Main thread only. */
+    private int mLogsInFlight;
+
+    /**
+     * @param context A context used to format spoken messages.
+     * @param notification The notification to show messages in. Shown from the worker thread.
+     * @param imageStore The store to offload the inline images of logged messages to.
+     * @param logger Receives logged messages on the main thread.
+     */
+    public MessagePipeline(Context context, PlumbleMessageNotification notification,
+                           InlineImageStore imageStore, Logger logger) {
+        mContext = context;
+        mNotification = notification;
+        mImageStore = imageStore;
+        mLogger = logger;
+        mThread = new HandlerThread("MessagePipeline", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Queues a message for the given consumers. Does nothing if there are none.
+     * @param message The received message.
+     * @param tts The engine to read the message with, or null not to read it.
+     * @param shortLinks Whether to read only the hostnames of links.
+     * @param notify Whether to show the message in the unread messages notification.
+     */
+    public void submit(final IMessage message, final TextToSpeech tts, final boolean shortLinks,
+                       final boolean notify) {
+        if (tts == null && !notify) {
+            return;
+        }
+        final int generation = mGeneration;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                String speech = tts != null ? formatSpeech(message, shortLinks) : null;
+                synchronized (mLock) {
+                    if (generation != mGeneration) {
+                        return;
+                    }
+                    if (speech != null) {
+                        tts.speak(speech, TextToSpeech.QUEUE_ADD, null);
+                    }
+                    if (notify) {
+                        mNotification.show(message);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Passes a message to the logger, offloading its inline images first if its body is large.
+     * Must be called on the main thread.
+     */
+    public void log(final IChatMessage message) {
+        if (mLogsInFlight == 0 && !InlineImageStore.needsOffload(message.getBody())) {
+            mLogger.log(message);
+            return;
+        }
+        // Later messages follow through the worker, so that they aren't logged out of order.
+        mLogsInFlight++;
+        final int generation = mGeneration;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                String body = mImageStore.offload(message.getBody());
+                final IChatMessage offloaded = body == message.getBody() ? message
+                        : message.withBody(body);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mLogsInFlight--;
+                        mLogger.log(offloaded);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Drops queued messages, including those not yet logged, so that nothing from a closed
+     * connection is spoken or shown after it. Must be called on the main thread.
+     */
+    public void clear() {
+        synchronized (mLock) {
+            mGeneration++;
+        }
+        mHandler.removeCallbacksAndMessages(null);
+        mMainHandler.removeCallbacksAndMessages(null);
+        mLogsInFlight = 0;
+    }
+
+    /**
+     * Drops queued messages and stops the worker thread. Once this returns, the worker no longer
+     * uses any text-to-speech engine it was given, which may then be shut down. Must be called on
+     * the main thread.
+     */
+    public void quit() {
+        clear();
+        mThread.quit();
+    }
+
+    /**
+     * @return The text to speak for the given message, or null if it is too long to be read.
+     */
+    private String formatSpeech(IMessage message, boolean shortLinks) {
+        // Split on / strip all HTML tags.
+        Document parsedMessage = Jsoup.parseBodyFragment(message.getMessage());
+        if (shortLinks) {
+            for (Element anchor : parsedMessage.getElementsByTag("A")) {
+                // Get just the domain portion of links
+                String href = anchor.attr("href");
+                // Only shorten anchors without custom text
+                if (href != null && href.equals(anchor.text())) {
+                    String urlHostname = HtmlUtils.getHostnameFromLink(href);
+                    if (urlHostname != null) {
+                        anchor.text(mContext.getString(R.string.chat_message_tts_short_link, urlHostname));
+                    }
+                }
+            }
+        }
+
+        String formattedTtsMessage = mContext.getString(R.string.notification_message,
+                message.getActorName(), parsedMessage.text());
+        if (formattedTtsMessage.length() <= PlumbleService.TTS_THRESHOLD) {
+            return formattedTtsMessage;
+        }
+        return null;
+    }
+
+    /**
+     * Receives messages to log on the main thread, in the order they were received.
+     */
+    public interface Logger {
+        void log(IChatMessage message);
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.service;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * An incrementally maintained index of channel and user names for search suggestions.
+ *
+ * Names are normalized (case folded, with diacritics removed) once when they are added. A sorted
+ * set of normalized names answers prefix queries, and postings of each name's n-grams of up to
+ * three characters narrow down the candidates for substring queries, so that even the one and
+ * two character queries typed first don't scan every name. Results are ranked as exact matches,
+ * then prefix matches, then matches at the start of a word, then any other substring matches,
+ * and only the best are kept as they are found.
+ *
+ * Updates come from the main thread, but the index may be queried from any thread.
+ */
+public class NameIndex {
+    public static final int TYPE_CHANNEL = 0;
+    public static final int TYPE_USER = 1;
+
+    private static final int RANK_EXACT = 0;
+    private static final int RANK_PREFIX = 1;
+    private static final int RANK_WORD_PREFIX = 2;
+    private static final int RANK_SUBSTRING = 3;
+
+    /** The maximum length of the n-grams used to find substring matches. */
+    private static final int GRAM_LENGTH = 3;
+
+    private static final Comparator<Entry> NAME_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            int result = lhs.mNormalizedName.compareTo(rhs.mNormalizedName);
+            if (result == 0) {
+                result = lhs.mType < rhs.mType ? -1 : (lhs.mType == rhs.mType ? 0 : 1);
+            }
+            if (result == 0) {
+                result = lhs.mId < rhs.mId ? -1 : (lhs.mId == rhs.mId ? 0 : 1);
+            }
+            return result;
+        }
+    };
+
+    private static final Comparator<Match> RANK_ORDER = new Comparator<Match>() {
+        @Override
+        public int compare(Match lhs, Match rhs) {
+            return compareMatches(lhs.mRank, lhs.mEntry, rhs.mRank, rhs.mEntry);
+        }
+    };
+
+    private static final Comparator<Match> WORST_FIRST = Collections.reverseOrder(RANK_ORDER);
+
+    /** Entries keyed by their type and id. */
+    private final Map<Long, Entry> mEntries = new HashMap<Long, Entry>();
+    /** All entries, ordered by normalized name. */
+    private final TreeSet<Entry> mSortedEntries = new TreeSet<Entry>(NAME_ORDER);
+    /** Encoded n-grams mapped to the entries whose normalized names contain them. */
+    private final Map<Long, Set<Entry>> mGrams = new HashMap<Long, Set<Entry>>();
+
+    /**
+     * Adds or renames a channel.
+     */
+    public synchronized void putChannel(int id, String name) {
+        put(TYPE_CHANNEL, id, name);
+    }
+
+    public synchronized void removeChannel(int id) {
+        remove(TYPE_CHANNEL, id);
+    }
+
+    /**
+     * Adds or renames a user.
+     * @param session The session of the user.
+     */
+    public synchronized void putUser(int session, String name) {
+        put(TYPE_USER, session, name);
+    }
+
+    public synchronized void removeUser(int session) {
+        remove(TYPE_USER, session);
+    }
+
+    /**
+     * Removes all channels and users, i.e. upon disconnection.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mSortedEntries.clear();
+        mGrams.clear();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Finds the channels and users whose names contain the given query, ignoring case and accents.
+     * @param query The text to search for.
+     * @param limit The maximum number of results to return.
+     * @return Matching entries, best matches first.
+     */
+    public synchronized List<Entry> search(String query, int limit) {
+        String normalizedQuery = normalize(query);
+        if (normalizedQuery.length() == 0 || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        // The best matches found so far, worst first.
+        PriorityQueue<Match> best = new PriorityQueue<Match>(
+                Math.max(1, Math.min(limit, mEntries.size())), WORST_FIRST);
+        Entry lower = new Entry(-1, Integer.MIN_VALUE, null, normalizedQuery);
+        Entry upper = new Entry(-1, Integer.MIN_VALUE, null, normalizedQuery + Character.MAX_VALUE);
+        for (Entry entry : mSortedEntries.subSet(lower, true, upper, false)) {
+            boolean exact = entry.mNormalizedName.length() == normalizedQuery.length();
+            offer(best, limit, entry, exact ? RANK_EXACT : RANK_PREFIX);
+        }
+
+        // Substring matches rank below all prefix matches, so are only needed to fill the limit.
+        if (best.size() < limit) {
+            for (Entry entry : getSubstringCandidates(normalizedQuery)) {
+                int index = entry.mNormalizedName.indexOf(normalizedQuery, 1);
+                if (index <= 0 || entry.mNormalizedName.startsWith(normalizedQuery)) {
+                    continue; // No match, or already matched as a prefix.
+                }
+                char before = entry.mNormalizedName.charAt(index - 1);
+                offer(best, limit, entry,
+                        Character.isLetterOrDigit(before) ? RANK_SUBSTRING : RANK_WORD_PREFIX);
+            }
+        }
+
+        List<Match> matches = new ArrayList<Match>(best);
+        Collections.sort(matches, RANK_ORDER);
+        List<Entry> results = new ArrayList<Entry>(matches.size());
+        for (Match match : matches) {
+            results.add(match.mEntry);
+        }
+        return results;
+    }
+
+    /**
+     * Adds a match to a heap of the best matches, worst first, if it is among the best
+     * <code>limit</code> found so far. Displaced matches are reused, so that no more than
+     * <code>limit</code> are allocated.
+     */
+    private static void offer(PriorityQueue<Match> best, int limit, Entry entry, int rank) {
+        if (best.size() < limit) {
+            best.add(new Match(entry, rank));
+            return;
+        }
+        Match worst = best.peek();
+        if (compareMatches(rank, entry, worst.mRank, worst.mEntry) < 0) {
+            best.poll();
+            worst.set(entry, rank);
+            best.add(worst);
+        }
+    }
+
+    private static int compareMatches(int lhsRank, Entry lhs, int rhsRank, Entry rhs) {
+        if (lhsRank != rhsRank) {
+            return lhsRank < rhsRank ? -1 : 1;
+        }
+        int lhsLength = lhs.mNormalizedName.length();
+        int rhsLength = rhs.mNormalizedName.length();
+        if (lhsLength != rhsLength) {
+            // Prefer closer matches.
+            return lhsLength < rhsLength ? -1 : 1;
+        }
+        return NAME_ORDER.compare(lhs, rhs);
+    }
+
+    /**
+     * @return Entries that may contain the given normalized query past their first character.
+     */
+    private Collection<Entry> getSubstringCandidates(String normalizedQuery) {
+        if (normalizedQuery.length() < GRAM_LENGTH) {
+            // Short queries are n-grams themselves.
+            Set<Entry> postings = mGrams.get(
+                    encodeGram(normalizedQuery, 0, normalizedQuery.length()));
+            return postings != null ? postings : Collections.<Entry>emptyList();
+        }
+        // Every match must contain every gram of the query, so the rarest gram's postings suffice.
+        Set<Entry> candidates = null;
+        for (int i = 0; i + GRAM_LENGTH <= normalizedQuery.length(); i++) {
+            Set<Entry> postings = mGrams.get(encodeGram(normalizedQuery, i, GRAM_LENGTH));
+            if (postings == null) {
+                return Collections.emptyList();
+            }
+            if (candidates == null || postings.size() < candidates.size()) {
+                candidates = postings;
+            }
+        }
+        return candidates;
+    }
+
+    private void put(int type, int id, String name) {
+        Entry existing = mEntries.get(key(type, id));
+        String normalizedName = normalize(name);
+        if (existing != null) {
+            if (existing.mNormalizedName.equals(normalizedName)) {
+                existing.mName = name;
+                return;
+            }
+            remove(type, id);
+        }
+
+        Entry entry = new Entry(type, id, name, normalizedName);
+        mEntries.put(key(type, id), entry);
+        mSortedEntries.add(entry);
+        for (int length = 1; length <= GRAM_LENGTH; length++) {
+            for (int i = 0; i + length <= normalizedName.length(); i++) {
+                Long gram = encodeGram(normalizedName, i, length);
+                Set<Entry> postings = mGrams.get(gram);
+                if (postings == null) {
+                    postings = new HashSet<Entry>();
+                    mGrams.put(gram, postings);
+                }
+                postings.add(entry);
+            }
+        }
+    }
+
+    private void remove(int type, int id) {
+        Entry entry = mEntries.remove(key(type, id));
+        if (entry == null) {
+            return;
+        }
+        mSortedEntries.remove(entry);
+        for (int length = 1; length <= GRAM_LENGTH; length++) {
+            for (int i = 0; i + length <= entry.mNormalizedName.length(); i++) {
+                Long gram = encodeGram(entry.mNormalizedName, i, length);
+                Set<Entry> postings = mGrams.get(gram);
+                if (postings != null) {
+                    postings.remove(entry);
+                    if (postings.isEmpty()) {
+                        mGrams.remove(gram);
+                    }
+                }
+            }
+        }
+    }
+
+    private static long key(int type, int id) {
+        return ((long) type << 32) | (id & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Packs up to three characters of a string starting at the given index into a long, along
+     * with their count, so that grams of different lengths don't collide.
+     */
+    private static long encodeGram(String string, int index, int length) {
+        long gram = length;
+        for (int i = index; i < index + length; i++) {
+            gram = (gram << 16) | string.charAt(i);
+        }
+        return gram;
+    }
+
+    /**
+     * Folds the case of a name and strips its diacritics, so that accented names match unaccented queries.
+     */
+    public static String normalize(String name) {
+        if (name == null) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(name.trim(), Normalizer.Form.NFD);
+        StringBuilder sb = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A channel or user in the index.
+     */
+    public static class Entry {
+        private final int mType;
+        private final int mId;
+        private final String mNormalizedName;
+        private String mName;
+
+        private Entry(int type, int id, String name, String normalizedName) {
+            mType = type;
+            mId = id;
+            mName = name;
+            mNormalizedName = normalizedName;
+        }
+
+        /**
+         * @return Either {@link #TYPE_CHANNEL} or {@link #TYPE_USER}.
+         */
+        public int getType() {
+            return mType;
+        }
+
+        /**
+         * @return The id of the channel, or the session of the user.
+         */
+        public int getId() {
+            return mId;
+        }
+
+        public String getName() {
+            return mName;
+        }
+    }
+
+    private static class Match {
+        private Entry mEntry;
+        private int mRank;
+
+        public Match(Entry entry, int rank) {
+            set(entry, rank);
+        }
+
+        public void set(Entry entry, int rank) {
+            mEntry = entry;
+            mRank = rank;
+        }
+    }
+}
@@ -38,6 +38,7 @@ import java.util.List;
  * A notification indicating that new messages have been received.
  * Intended to augment the existing {@link PlumbleConnectionNotification} by providing a higher
  * priority heads-up display on Android 5.0+ devices, as well as vibration.
+ * Messages are shown from the {@link MessagePipeline}'s worker thread.
  * Created by andrew on 25/03/16.
  */
 public class PlumbleMessageNotification {
@@ -57,7 +58,7 @@ public class PlumbleMessageNotification {
      * If the notification is already shown, append the message to the existing notification.
      * @param message The message to notify the user about.
      */
-    public void show(IMessage message) {
+    public synchronized void show(IMessage message) {
         mUnreadMessages.add(message);
 
         NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle();
@@ -94,7 +95,7 @@ public class PlumbleMessageNotification {
     /**
      * Dismisses the unread messages notification, marking all messages read.
      */
-    public void dismiss() {
+    public synchronized void dismiss() {
         mUnreadMessages.clear();
         final NotificationManagerCompat manager = NotificationManagerCompat.from(mContext);
         manager.cancel(NOTIFICATION_ID);
@@ -29,10 +29,11 @@ import android.widget.ListView;
 
 import com.morlunk.jumble.model.IChannel;
 import com.morlunk.jumble.model.IUser;
-import com.morlunk.jumble.util.JumbleObserver;
 import com.morlunk.mumbleclient.R;
 import com.morlunk.mumbleclient.Settings;
 import com.morlunk.mumbleclient.channel.ChannelAdapter;
+import com.morlunk.mumbleclient.util.BatchingJumbleObserver;
+import com.morlunk.mumbleclient.util.BatchingJumbleObserver.UserMove;
 
 /**
  * An onscreen interactive overlay displaying the users in the current channel.
@@ -43,25 +44,25 @@ public class PlumbleOverlay {
     public static final int DEFAULT_WIDTH = 200;
     public static final int DEFAULT_HEIGHT = 240;
 
-    private JumbleObserver mObserver = new JumbleObserver() {
+    private BatchingJumbleObserver mObserver = new BatchingJumbleObserver() {
         @Override
-        public void onUserTalkStateUpdated(IUser user) {
-            mChannelAdapter.notifyDataSetChanged();
-        }
-
-        @Override
-        public void onUserStateUpdated(IUser user) {
-            if(user.getChannel() != null &&
-                    user.getChannel().equals(mService.getSessionChannel()))
-                mChannelAdapter.notifyDataSetChanged();
-        }
+        protected void onBatch(Batch batch) {
+            IChannel sessionChannel = mService.getSessionChannel();
+            if (batch.getUserMove(mService.getSessionId()) != null) {
+                // Session user has changed channels
+                mChannelAdapter.setChannel(sessionChannel);
+                return;
+            }
 
-        @Override
-        public void onUserJoinedChannel(IUser user, IChannel newChannel, IChannel oldChannel) {
-            if(user.getSession() == mService.getSessionId()) // Session user has changed channels
-                mChannelAdapter.setChannel(mService.getSessionChannel());
-            else if(newChannel.getId() == mService.getSessionChannel().getId() ||
-                    oldChannel.getId() == mService.getSessionChannel().getId())
+            boolean changed = !batch.getTalkStateUpdatedUsers().isEmpty();
+            for (IUser user : batch.getUpdatedUsers()) {
+                changed |= user.getChannel() != null && user.getChannel().equals(sessionChannel);
+            }
+            for (UserMove move : batch.getUserMoves()) {
+                changed |= move.getNewChannel().getId() == sessionChannel.getId() ||
+                        move.getOldChannel().getId() == sessionChannel.getId();
+            }
+            if (changed)
                 mChannelAdapter.notifyDataSetChanged();
         }
     };
@@ -211,6 +212,7 @@ public class PlumbleOverlay {
             return;
         mShown = false;
         mService.unregisterObserver(mObserver);
+        mObserver.cancel();
         mOverlayList.setAdapter(null);
         try {
             WindowManager windowManager = (WindowManager) mService.getSystemService(Context.WINDOW_SERVICE);
@@ -29,27 +29,33 @@ import android.os.IBinder;
 import android.os.PowerManager;
 import android.preference.PreferenceManager;
 import android.speech.tts.TextToSpeech;
+import android.util.Log;
 import android.view.WindowManager;
 
 import com.morlunk.jumble.Constants;
 import com.morlunk.jumble.JumbleService;
 import com.morlunk.jumble.exception.AudioException;
+import com.morlunk.jumble.model.IChannel;
 import com.morlunk.jumble.model.IMessage;
 import com.morlunk.jumble.model.IUser;
+import com.morlunk.jumble.model.Server;
 import com.morlunk.jumble.model.TalkState;
 import com.morlunk.jumble.util.JumbleException;
 import com.morlunk.jumble.util.JumbleObserver;
+import com.morlunk.mumbleclient.BuildConfig;
 import com.morlunk.mumbleclient.R;
 import com.morlunk.mumbleclient.Settings;
+import com.morlunk.mumbleclient.db.ChatHistoryDatabase;
 import com.morlunk.mumbleclient.service.ipc.TalkBroadcastReceiver;
-import com.morlunk.mumbleclient.util.HtmlUtils;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-
-import java.util.ArrayList;
+import com.morlunk.mumbleclient.util.AvatarCache;
+import com.morlunk.mumbleclient.util.AvatarDiskCache;
+import com.morlunk.mumbleclient.util.InlineImageStore;
+import com.morlunk.mumbleclient.util.ObserverTraceRecorder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.util.Collections;
-import java.util.List;
 
 /**
  * An extension of the Jumble service with some added Plumble-exclusive non-standard Mumble features.
@@ -63,10 +69,15 @@ public class PlumbleService extends JumbleService implements
     public static final int PROXIMITY_SCREEN_OFF_WAKE_LOCK = 32;
     public static final int TTS_THRESHOLD = 250; // Maximum number of characters to read
     public static final int RECONNECT_DELAY = 10000;
+    /** The maximum number of chat messages kept in memory. */
+    public static final int MESSAGE_LOG_MAX_COUNT = 1000;
+    /** The maximum estimated size of the chat messages kept in memory, in bytes. */
+    public static final int MESSAGE_LOG_MAX_BYTES = 2 * 1024 * 1024;
 
     private Settings mSettings;
     private PlumbleConnectionNotification mNotification;
     private PlumbleMessageNotification mMessageNotification;
+    private MessagePipeline mMessagePipeline;
     private PlumbleReconnectNotification mReconnectNotification;
     /** Channel view overlay. */
     private PlumbleOverlay mChannelOverlay;
@@ -81,8 +92,17 @@ public class PlumbleService extends JumbleService implements
      * This should serve as a hint not to bother the user.
      */
     private boolean mErrorShown;
-    private List<IChatMessage> mMessageLog;
+    private MessageLog mMessageLog;
+    private ChatHistoryWriter mChatHistory;
     private boolean mSuppressNotifications;
+    private AvatarCache mAvatarCache;
+    private AvatarDiskCache mAvatarDiskCache;
+    private AvatarRequestScheduler mAvatarScheduler;
+    private final ChannelAggregateIndex mAggregateIndex = new ChannelAggregateIndex();
+    private final NameIndex mNameIndex = new NameIndex();
+    private final SearchIndex mSearchIndex = new SearchIndex(mNameIndex, mAggregateIndex);
+    /** Records observer callbacks for replay in tests, if enabled for this build. */
+    private ObserverTraceRecorder mTraceRecorder;
 
     private TextToSpeech mTTS;
     private TextToSpeech.OnInitListener mTTSInitListener = new TextToSpeech.OnInitListener() {
@@ -152,17 +172,52 @@ public class PlumbleService extends JumbleService implements
             }
         }
 
+        @Override
+        public void onChannelAdded(IChannel channel) {
+            updateAggregateChannel(channel);
+            mNameIndex.putChannel(channel.getId(), channel.getName());
+        }
+
+        @Override
+        public void onChannelStateUpdated(IChannel channel) {
+            updateAggregateChannel(channel);
+            mNameIndex.putChannel(channel.getId(), channel.getName());
+        }
+
+        @Override
+        public void onChannelRemoved(IChannel channel) {
+            mAggregateIndex.removeChannel(channel.getId());
+            mNameIndex.removeChannel(channel.getId());
+        }
+
+        @Override
+        public void onUserJoinedChannel(IUser user, IChannel newChannel, IChannel oldChannel) {
+            mAggregateIndex.updateUser(user.getSession(), newChannel.getId());
+        }
+
         @Override
         public void onUserConnected(IUser user) {
+            updateAggregateUser(user);
+            mNameIndex.putUser(user.getSession(), user.getName());
             if (user.getTextureHash() != null &&
-                    user.getTexture() == null) {
-                // Request avatar data if available.
-                requestAvatar(user.getSession());
+                    user.getTexture() == null &&
+                    !mAvatarDiskCache.contains(user.getTextureHash())) {
+                // Queue avatar data behind any visible users if available and not already cached.
+                mAvatarScheduler.request(user);
             }
         }
 
+        @Override
+        public void onUserRemoved(IUser user, String reason) {
+            mAggregateIndex.removeUser(user.getSession());
+            mNameIndex.removeUser(user.getSession());
+            mAvatarScheduler.cancel(user.getSession());
+            mAvatarCache.removeUser(user.getSession());
+        }
+
         @Override
         public void onUserStateUpdated(IUser user) {
+            mNameIndex.putUser(user.getSession(), user.getName());
             if(user.getSession() == getSessionId()) {
                 mSettings.setMutedAndDeafened(user.isSelfMuted(), user.isSelfDeafened()); // Update settings mute/deafen state
                 if(mNotification != null) {
@@ -178,70 +233,47 @@ public class PlumbleService extends JumbleService implements
                 }
             }
 
-            if (user.getTextureHash() != null &&
-                    user.getTexture() == null) {
-                // Update avatar data if available.
-                requestAvatar(user.getSession());
+            if (user.getTextureHash() != null) {
+                if (user.getTexture() != null) {
+                    // Persist received avatars to skip requesting them on future connections.
+                    mAvatarDiskCache.put(user.getTextureHash(), user.getTexture());
+                    mAvatarScheduler.onUserUpdated(user);
+                } else if (!mAvatarDiskCache.contains(user.getTextureHash())) {
+                    // Update avatar data if available and not already cached.
+                    mAvatarScheduler.request(user);
+                }
             }
         }
 
         @Override
         public void onMessageLogged(IMessage message) {
-            // Split on / strip all HTML tags.
-            Document parsedMessage = Jsoup.parseBodyFragment(message.getMessage());
-            String strippedMessage = parsedMessage.text();
-
-            String ttsMessage;
-            if(mShortTtsMessagesEnabled) {
-                for (Element anchor : parsedMessage.getElementsByTag("A")) {
-                    // Get just the domain portion of links
-                    String href = anchor.attr("href");
-                    // Only shorten anchors without custom text
-                    if (href != null && href.equals(anchor.text())) {
-                        String urlHostname = HtmlUtils.getHostnameFromLink(href);
-                        if (urlHostname != null) {
-                            anchor.text(getString(R.string.chat_message_tts_short_link, urlHostname));
-                        }
-                    }
-                }
-                ttsMessage = parsedMessage.text();
-            } else {
-                ttsMessage = strippedMessage;
-            }
-
-            String formattedTtsMessage = getString(R.string.notification_message,
-                    message.getActorName(), ttsMessage);
-
-            // Read if TTS is enabled, the message is less than threshold, is a text message, and not deafened
-            if(mSettings.isTextToSpeechEnabled() &&
-                    mTTS != null &&
-                    formattedTtsMessage.length() <= TTS_THRESHOLD &&
+            // Read if TTS is enabled, is a text message, and not deafened
+            TextToSpeech tts = null;
+            if (mSettings.isTextToSpeechEnabled() &&
                     getSessionUser() != null &&
                     !getSessionUser().isSelfDeafened()) {
-                mTTS.speak(formattedTtsMessage, TextToSpeech.QUEUE_ADD, null);
+                tts = mTTS;
             }
-
             // TODO: create a customizable notification sieve
-            if (mSettings.isChatNotifyEnabled()) {
-                mMessageNotification.show(message);
-            }
+            mMessagePipeline.submit(message, tts, mShortTtsMessagesEnabled,
+                    mSettings.isChatNotifyEnabled());
 
-            mMessageLog.add(new IChatMessage.TextMessage(message));
+            mMessagePipeline.log(new IChatMessage.TextMessage(message));
         }
 
         @Override
         public void onLogInfo(String message) {
-            mMessageLog.add(new IChatMessage.InfoMessage(IChatMessage.InfoMessage.Type.INFO, message));
+            mMessagePipeline.log(new IChatMessage.InfoMessage(IChatMessage.InfoMessage.Type.INFO, message));
         }
 
         @Override
         public void onLogWarning(String message) {
-            mMessageLog.add(new IChatMessage.InfoMessage(IChatMessage.InfoMessage.Type.WARNING, message));
+            mMessagePipeline.log(new IChatMessage.InfoMessage(IChatMessage.InfoMessage.Type.WARNING, message));
         }
 
         @Override
         public void onLogError(String message) {
-            mMessageLog.add(new IChatMessage.InfoMessage(IChatMessage.InfoMessage.Type.ERROR, message));
+            mMessagePipeline.log(new IChatMessage.InfoMessage(IChatMessage.InfoMessage.Type.ERROR, message));
         }
 
         @Override
@@ -268,7 +300,18 @@ public class PlumbleService extends JumbleService implements
     @Override
     public void onCreate() {
         super.onCreate();
+        mAvatarCache = AvatarCache.getInstance(this);
+        mAvatarDiskCache = AvatarDiskCache.getInstance(this);
+        mAvatarScheduler = new AvatarRequestScheduler(new AvatarRequestScheduler.Requester() {
+            @Override
+            public void requestAvatar(int session) {
+                PlumbleService.this.requestAvatar(session);
+            }
+        });
         registerObserver(mObserver);
+        if (BuildConfig.RECORD_OBSERVER_TRACES) {
+            startTraceRecording();
+        }
 
         // Register for preference changes
         mSettings = Settings.getInstance(this);
@@ -290,8 +333,16 @@ public class PlumbleService extends JumbleService implements
             mTTS = new TextToSpeech(this, mTTSInitListener);
 
         mTalkReceiver = new TalkBroadcastReceiver(this);
-        mMessageLog = new ArrayList<>();
+        mMessageLog = new MessageLog(MESSAGE_LOG_MAX_COUNT, MESSAGE_LOG_MAX_BYTES);
+        mChatHistory = new ChatHistoryWriter(ChatHistoryDatabase.getInstance(this));
         mMessageNotification = new PlumbleMessageNotification(PlumbleService.this);
+        mMessagePipeline = new MessagePipeline(this, mMessageNotification,
+                InlineImageStore.getInstance(this), new MessagePipeline.Logger() {
+            @Override
+            public void log(IChatMessage message) {
+                logMessage(message);
+            }
+        });
     }
 
     @Override
@@ -319,8 +370,17 @@ public class PlumbleService extends JumbleService implements
         }
 
         unregisterObserver(mObserver);
+        if (mTraceRecorder != null) {
+            unregisterObserver(mTraceRecorder);
+            mTraceRecorder.close();
+            mTraceRecorder = null;
+        }
+        SearchIndex.unpublish(mSearchIndex);
+        mMessagePipeline.quit();
         if(mTTS != null) mTTS.shutdown();
         mMessageLog = null;
+        mChatHistory.quit();
+        mChatHistory = null;
         mMessageNotification.dismiss();
         super.onDestroy();
     }
@@ -336,6 +396,9 @@ public class PlumbleService extends JumbleService implements
 
         registerReceiver(mTalkReceiver, new IntentFilter(TalkBroadcastReceiver.BROADCAST_TALK));
 
+        // The name index is complete once synchronized, so searches can be answered from it.
+        SearchIndex.publish(mSearchIndex);
+
         if (mSettings.isHotCornerEnabled()) {
             mHotCorner.setShown(true);
         }
@@ -360,8 +423,60 @@ public class PlumbleService extends JumbleService implements
 
         setProximitySensorOn(false);
 
+        mMessagePipeline.clear();
         mMessageLog.clear();
         mMessageNotification.dismiss();
+        mAvatarScheduler.clear();
+        mAvatarCache.clear();
+        SearchIndex.unpublish(mSearchIndex);
+        mAggregateIndex.clear();
+        mNameIndex.clear();
+    }
+
+    /**
+     * Adds a message to the in-memory log, and to the persistent chat history if connected to a
+     * saved server. Called by the {@link MessagePipeline} once the message's images are offloaded.
+     */
+    private void logMessage(IChatMessage message) {
+        long sequence = -1;
+        Server server = getTargetServer();
+        if (server != null && server.isSaved()) {
+            sequence = mChatHistory.append(server.getId(), message);
+        }
+        mMessageLog.add(message, sequence);
+    }
+
+    /**
+     * Records all observer callbacks for the lifetime of the service into a trace file, which can
+     * be pulled from the device's external files directory and replayed in tests.
+     */
+    private void startTraceRecording() {
+        File traceDir = getExternalFilesDir("traces");
+        if (traceDir == null) {
+            traceDir = new File(getFilesDir(), "traces");
+        }
+        traceDir.mkdirs();
+        File traceFile = new File(traceDir, "trace-" + System.currentTimeMillis() + ".bin");
+        try {
+            mTraceRecorder = new ObserverTraceRecorder(new FileOutputStream(traceFile));
+            registerObserver(mTraceRecorder);
+            Log.i(Constants.TAG, "Recording observer trace to " + traceFile);
+        } catch (FileNotFoundException e) {
+            Log.w(Constants.TAG, "Failed to start observer trace: " + e);
+        }
+    }
+
+    private void updateAggregateChannel(IChannel channel) {
+        IChannel parent = channel.getParent();
+        mAggregateIndex.updateChannel(channel.getId(),
+                parent != null ? parent.getId() : ChannelAggregateIndex.NO_PARENT);
+    }
+
+    private void updateAggregateUser(IUser user) {
+        IChannel channel = user.getChannel();
+        if (channel != null) {
+            mAggregateIndex.updateUser(user.getSession(), channel.getId());
+        }
     }
 
     /**
@@ -576,13 +691,68 @@ public class PlumbleService extends JumbleService implements
     }
 
     @Override
-    public List<IChatMessage> getMessageLog() {
-        return Collections.unmodifiableList(mMessageLog);
+    public MessageLog getMessageLog() {
+        return mMessageLog;
+    }
+
+    @Override
+    public void logSentMessage(IMessage message) {
+        mMessagePipeline.log(new IChatMessage.TextMessage(message));
     }
 
     @Override
     public void clearMessageLog() {
         mMessageLog.clear();
+        Server server = getTargetServer();
+        if (server != null && server.isSaved()) {
+            mChatHistory.clear(server.getId());
+        }
+    }
+
+    @Override
+    public void clearChatHistory(long serverId) {
+        mChatHistory.clear(serverId);
+    }
+
+    @Override
+    public ChatHistoryDatabase.Page getChatHistory(long beforeId, int limit) {
+        Server server = getTargetServer();
+        ChatHistoryWriter history = mChatHistory;
+        if (server == null || !server.isSaved() || history == null) {
+            return new ChatHistoryDatabase.Page(Collections.<IChatMessage>emptyList(), beforeId);
+        }
+        // Messages still in the log are shown from there; only page in those older.
+        long oldestLogged = mMessageLog.getOldestSequence();
+        if (oldestLogged >= 0) {
+            beforeId = Math.min(beforeId, history.getRowId(oldestLogged));
+        } else {
+            history.flush();
+        }
+        return ChatHistoryDatabase.getInstance(this).getMessagesBefore(server.getId(), beforeId, limit);
+    }
+
+    @Override
+    public long getChatHistoryId(long sequence) {
+        ChatHistoryWriter history = mChatHistory;
+        return history != null ? history.getRowId(sequence) : Long.MAX_VALUE;
+    }
+
+    @Override
+    public ChannelAggregateIndex getAggregateIndex() {
+        return mAggregateIndex;
+    }
+
+    /**
+     * @return The observer the service follows its session with. Package-private so that tests
+     *         can replay observer traces against it.
+     */
+    JumbleObserver getObserver() {
+        return mObserver;
+    }
+
+    @Override
+    public void requestVisibleAvatar(IUser user) {
+        mAvatarScheduler.requestVisible(user);
     }
 
     /**
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.service;
+
+/**
+ * The indexes that back search suggestions, published by {@link PlumbleService} while a
+ * connection is synchronized.
+ *
+ * Search queries arrive on provider binder threads, which should not block on binding to the
+ * service. Instead, the service publishes its indexes here once the server's channels and users
+ * are known. The indexes keep being updated by the service, so readers always see the latest
+ * state without any further handoff.
+ */
+public class SearchIndex {
+    private static volatile SearchIndex sPublished;
+
+    private final NameIndex mNameIndex;
+    private final ChannelAggregateIndex mAggregateIndex;
+
+    public SearchIndex(NameIndex nameIndex, ChannelAggregateIndex aggregateIndex) {
+        mNameIndex = nameIndex;
+        mAggregateIndex = aggregateIndex;
+    }
+
+    /**
+     * @return The search index of the synchronized connection, or null if there is none.
+     */
+    public static SearchIndex getPublished() {
+        return sPublished;
+    }
+
+    /**
+     * Makes the given index available to searches, replacing any previously published one.
+     */
+    static synchronized void publish(SearchIndex index) {
+        sPublished = index;
+    }
+
+    /**
+     * Withdraws the given index from searches, if it is still the published one.
+     */
+    static synchronized void unpublish(SearchIndex index) {
+        if (sPublished == index) {
+            sPublished = null;
+        }
+    }
+
+    public NameIndex getNameIndex() {
+        return mNameIndex;
+    }
+
+    public ChannelAggregateIndex getAggregateIndex() {
+        return mAggregateIndex;
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.util;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.graphics.Shader;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.LruCache;
+import android.util.SparseArray;
+
+import com.google.protobuf.ByteString;
+import com.morlunk.jumble.model.IUser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A memory-bounded cache of decoded, circular user avatars.
+ *
+ * Avatars are keyed by their texture hash and target pixel size. Textures are decoded on a
+ * background pool, downsampled directly to the requested size and pre-composited into a circle,
+ * so that binding a row with a cached avatar requires no decoding or allocation.
+ * Users whose texture has not been received this session are decoded from the
+ * {@link AvatarDiskCache} if their texture hash was seen before. Textures that fail to decode are
+ * remembered, and not decoded again on every bind.
+ *
+ * All public methods must be called from the main thread.
+ */
+public class AvatarCache {
+    /** The number of threads to decode avatars on. */
+    private static final int DECODE_THREADS = 2;
+    /** The fraction of the maximum heap size to use for decoded avatars. */
+    private static final int HEAP_FRACTION = 16;
+
+    private static AvatarCache sInstance;
+
+    /**
+     * Listener for the completion of an asynchronous avatar decode.
+     */
+    public interface OnAvatarLoadedListener {
+        /**
+         * Called on the main thread when the avatar for the given user is ready.
+         * @param session The session of the user whose avatar was decoded.
+         */
+        void onAvatarLoaded(int session);
+    }
+
+    private final LruCache<String, Bitmap> mBitmaps;
+    private final ExecutorService mDecodeExecutor;
+    private final Handler mMainHandler;
+    private final AvatarDiskCache mDiskCache;
+    /** Memoized cache keys for each user's current texture, indexed by session. */
+    private final SparseArray<TextureKey> mKeys;
+    /** Sessions awaiting the decode of each cache key. */
+    private final Map<String, List<PendingRequest>> mPending;
+    /** Cache keys of textures that could not be decoded. */
+    private final Set<String> mFailedKeys;
+
+    public static AvatarCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AvatarCache(AvatarDiskCache.getInstance(context));
+        }
+        return sInstance;
+    }
+
+    private AvatarCache(AvatarDiskCache diskCache) {
+        mDiskCache = diskCache;
+        int maxSize = (int) (Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+        mBitmaps = new LruCache<String, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        mDecodeExecutor = Executors.newFixedThreadPool(DECODE_THREADS);
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mKeys = new SparseArray<TextureKey>();
+        mPending = new HashMap<String, List<PendingRequest>>();
+        mFailedKeys = new HashSet<String>();
+    }
+
+    /**
+     * Retrieves the decoded avatar of the given user at the given size.
+     * If the avatar is not yet cached, it is decoded asynchronously and the listener is notified.
+     * @param user The user whose texture to use.
+     * @param size The width and height of the avatar, in pixels.
+     * @param listener A listener to notify if the avatar has to be decoded.
+     * @return The cached circular avatar, or null if the user has no texture, it is not yet ready
+     * or it could not be decoded.
+     */
+    public Bitmap getAvatar(IUser user, int size, OnAvatarLoadedListener listener) {
+        byte[] texture = user.getTexture();
+        ByteString hash = user.getTextureHash();
+        if (texture == null && hash == null) {
+            return null;
+        }
+        TextureKey key = getKey(user, texture, hash, size);
+        if (texture == null && !mDiskCache.contains(key.mHashHex)) {
+            return null;
+        }
+        Bitmap bitmap = mBitmaps.get(key.mKey);
+        if (bitmap == null && !mFailedKeys.contains(key.mKey)) {
+            requestDecode(key.mKey, user.getSession(), texture, key.mHashHex, size, listener);
+        }
+        return bitmap;
+    }
+
+    /**
+     * @param user The user whose texture to check.
+     * @param size The width and height of the avatar, in pixels.
+     * @return true if the user's texture is loaded or stored on disk, and can be decoded without
+     * requesting it from the server.
+     */
+    public boolean isAvailable(IUser user, int size) {
+        byte[] texture = user.getTexture();
+        ByteString hash = user.getTextureHash();
+        if (texture != null) {
+            return true;
+        } else if (hash == null) {
+            return false;
+        }
+        return mDiskCache.contains(getKey(user, null, hash, size).mHashHex);
+    }
+
+    /**
+     * Forgets the texture of a user that has left, so that it isn't retained by its cache key.
+     * @param session The session of the user.
+     */
+    public void removeUser(int session) {
+        mKeys.remove(session);
+    }
+
+    /**
+     * Evicts all decoded avatars from memory, and forgets all users and failed textures.
+     * Should be called on disconnection, as sessions are only valid for a single connection.
+     */
+    public void clear() {
+        mBitmaps.evictAll();
+        mKeys.clear();
+        mFailedKeys.clear();
+    }
+
+    private TextureKey getKey(IUser user, byte[] texture, ByteString hash, int size) {
+        TextureKey key = mKeys.get(user.getSession());
+        if (key == null || key.mTexture != texture || key.mHash != hash || key.mSize != size) {
+            key = new TextureKey(texture, hash, size);
+            mKeys.put(user.getSession(), key);
+        }
+        return key;
+    }
+
+    /**
+     * Decodes the given texture in the background, reading it from disk if not provided.
+     */
+    private void requestDecode(final String key, int session, final byte[] texture,
+                               final String hashHex, final int size,
+                               OnAvatarLoadedListener listener) {
+        List<PendingRequest> requests = mPending.get(key);
+        if (requests != null) {
+            requests.add(new PendingRequest(session, listener));
+            return;
+        }
+        requests = new ArrayList<PendingRequest>();
+        requests.add(new PendingRequest(session, listener));
+        mPending.put(key, requests);
+
+        mDecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                byte[] data = texture != null ? texture : mDiskCache.read(hashHex);
+                final Bitmap bitmap = data != null ? decodeCircularAvatar(data, size) : null;
+                // Textures missing from disk may still be received, so only bad data is remembered.
+                final boolean failed = data != null && bitmap == null;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (bitmap != null) {
+                            mBitmaps.put(key, bitmap);
+                        } else if (failed) {
+                            mFailedKeys.add(key);
+                        }
+                        List<PendingRequest> requests = mPending.remove(key);
+                        if (bitmap == null || requests == null) {
+                            return;
+                        }
+                        for (PendingRequest request : requests) {
+                            if (request.mListener != null) {
+                                request.mListener.onAvatarLoaded(request.mSession);
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Decodes the given texture, downsampled to the given size and clipped to a circle.
+     * @return The circular avatar, or null if the texture could not be decoded.
+     */
+    private static Bitmap decodeCircularAvatar(byte[] texture, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(texture, 0, texture.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight, size);
+        options.inJustDecodeBounds = false;
+        Bitmap source = BitmapFactory.decodeByteArray(texture, 0, texture.length, options);
+        if (source == null) {
+            return null;
+        }
+
+        Bitmap avatar = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        BitmapShader shader = new BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+        RectF bounds = new RectF(0, 0, size, size);
+        Matrix matrix = new Matrix();
+        matrix.setRectToRect(new RectF(0, 0, source.getWidth(), source.getHeight()), bounds,
+                Matrix.ScaleToFit.CENTER);
+        shader.setLocalMatrix(matrix);
+
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+        paint.setShader(shader);
+        new Canvas(avatar).drawOval(bounds, paint);
+        source.recycle();
+        return avatar;
+    }
+
+    /**
+     * @return The largest power of two sample size that keeps both dimensions at least the target.
+     */
+    private static int calculateSampleSize(int width, int height, int target) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= target && height / (sampleSize * 2) >= target) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * A cache key derived from a user's texture, valid as long as the texture is unchanged.
+     */
+    private static class TextureKey {
+        private final byte[] mTexture;
+        private final ByteString mHash;
+        private final int mSize;
+        private final String mHashHex;
+        private final String mKey;
+
+        public TextureKey(byte[] texture, ByteString hash, int size) {
+            mTexture = texture;
+            mHash = hash;
+            mSize = size;
+            mHashHex = hash != null ? toHex(hash.toByteArray()) : null;
+            String textureKey = mHashHex != null ? mHashHex :
+                    Integer.toHexString(Arrays.hashCode(texture)) + "-" + texture.length;
+            mKey = textureKey + "@" + size;
+        }
+    }
+
+    private static class PendingRequest {
+        private final int mSession;
+        private final OnAvatarLoadedListener mListener;
+
+        public PendingRequest(int session, OnAvatarLoadedListener listener) {
+            mSession = session;
+            mListener = listener;
+        }
+    }
+
+    /**
+     * @return The lowercase hexadecimal representation of the given bytes.
+     */
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
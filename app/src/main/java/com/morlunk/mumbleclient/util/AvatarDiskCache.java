@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.protobuf.ByteString;
+import com.morlunk.mumbleclient.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A persistent, content-addressed cache of user avatar textures keyed by their SHA-1 texture hash.
+ *
+ * Lets the service skip requesting avatars from the server that it has seen before, such as on
+ * every reconnect. The cache is capped in size and evicts the least recently used textures.
+ * An in-memory index of cached hashes is kept so that lookups never touch the disk.
+ */
+public class AvatarDiskCache {
+    /** The name of the directory in the app's cache dir to store textures in. */
+    private static final String CACHE_DIR = "avatars";
+    /** The maximum total size of cached textures, in bytes. */
+    private static final long MAX_SIZE = 10 * 1024 * 1024;
+
+    private static AvatarDiskCache sInstance;
+
+    private final File mDirectory;
+    private final ExecutorService mExecutor;
+    /** Cached texture hashes in hex mapped to their size, in least recently used order. */
+    private final LinkedHashMap<String, Long> mIndex;
+    private long mSize;
+
+    public static synchronized AvatarDiskCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AvatarDiskCache(new File(context.getCacheDir(), CACHE_DIR));
+        }
+        return sInstance;
+    }
+
+    private AvatarDiskCache(File directory) {
+        mDirectory = directory;
+        mExecutor = Executors.newSingleThreadExecutor();
+        mIndex = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadIndex();
+            }
+        });
+    }
+
+    /**
+     * @return true if a texture with the given hash is stored on disk.
+     */
+    public boolean contains(ByteString hash) {
+        return hash != null && contains(AvatarCache.toHex(hash.toByteArray()));
+    }
+
+    /**
+     * @param hash The hexadecimal SHA-1 hash of the texture.
+     * @return true if a texture with the given hash is stored on disk.
+     */
+    public synchronized boolean contains(String hash) {
+        return mIndex.containsKey(hash);
+    }
+
+    /**
+     * Asynchronously stores the given texture, if not already present.
+     * The texture is only stored if it matches its hash.
+     * @param hash The SHA-1 hash of the texture, as provided by the server.
+     * @param texture The texture data.
+     */
+    public void put(ByteString hash, final byte[] texture) {
+        if (hash == null || texture == null) {
+            return;
+        }
+        final String hex = AvatarCache.toHex(hash.toByteArray());
+        if (contains(hex)) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!contains(hex) && hex.equals(sha1(texture))) {
+                    write(hex, texture);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the texture with the given hash from disk. Must not be called on the main thread.
+     * Textures that don't match their hash are removed.
+     * @param hash The hexadecimal SHA-1 hash of the texture.
+     * @return The texture data, or null if not present.
+     */
+    public byte[] read(String hash) {
+        synchronized (this) {
+            if (!mIndex.containsKey(hash)) {
+                return null;
+            }
+            mIndex.get(hash); // Mark as recently used.
+        }
+        File file = new File(mDirectory, hash);
+        try {
+            byte[] data = FileUtils.readFully(file);
+            if (!hash.equals(sha1(data))) {
+                throw new IOException("Corrupt texture " + hash);
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return data;
+        } catch (IOException e) {
+            Log.w(Constants.TAG, "Failed to read cached avatar " + hash, e);
+            remove(hash);
+            return null;
+        }
+    }
+
+    private void write(String hash, byte[] texture) {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            return;
+        }
+        try {
+            FileUtils.writeAtomically(new File(mDirectory, hash), texture);
+        } catch (IOException e) {
+            Log.w(Constants.TAG, "Failed to cache avatar " + hash, e);
+            return;
+        }
+
+        List<String> evicted;
+        synchronized (this) {
+            mIndex.put(hash, (long) texture.length);
+            mSize += texture.length;
+            evicted = trimToSize();
+        }
+        deleteFiles(evicted);
+    }
+
+    private void remove(String hash) {
+        synchronized (this) {
+            Long size = mIndex.remove(hash);
+            if (size == null) {
+                return;
+            }
+            mSize -= size;
+        }
+        deleteFiles(Collections.singletonList(hash));
+    }
+
+    /**
+     * Removes the least recently used textures from the index until the cache is within its
+     * size limit. Their files are deleted by the caller, outside of the lock.
+     * @return The hashes of the evicted textures.
+     */
+    private synchronized List<String> trimToSize() {
+        List<String> evicted = new ArrayList<String>();
+        Iterator<Map.Entry<String, Long>> iterator = mIndex.entrySet().iterator();
+        while (mSize > MAX_SIZE && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            evicted.add(entry.getKey());
+            mSize -= entry.getValue();
+            iterator.remove();
+        }
+        return evicted;
+    }
+
+    /**
+     * Deletes the files of textures removed from the index. Deletes run on the executor, so that
+     * they are ordered with writes of the same texture.
+     */
+    private void deleteFiles(final List<String> hashes) {
+        if (hashes.isEmpty()) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (String hash : hashes) {
+                    if (!contains(hash)) {
+                        new File(mDirectory, hash).delete();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Populates the index from the cache directory, ordered by last use. Temporary files left by
+     * interrupted writes are deleted.
+     */
+    private void loadIndex() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        List<String> evicted;
+        synchronized (this) {
+            for (File file : files) {
+                if (file.getName().endsWith(FileUtils.TEMP_SUFFIX)) {
+                    file.delete();
+                    continue;
+                }
+                mIndex.put(file.getName(), file.length());
+                mSize += file.length();
+            }
+            evicted = trimToSize();
+        }
+        deleteFiles(evicted);
+    }
+
+    private static String sha1(byte[] data) {
+        try {
+            return AvatarCache.toHex(MessageDigest.getInstance("SHA-1").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
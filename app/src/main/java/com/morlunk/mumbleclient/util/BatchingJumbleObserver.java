@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import com.morlunk.jumble.model.IChannel;
+import com.morlunk.jumble.model.IUser;
+import com.morlunk.jumble.util.JumbleObserver;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A Jumble observer that coalesces bursts of model events into a single batched update.
+ *
+ * Events are collected until the next frame (or a configurable window elapses), with redundant
+ * events merged- for example, only the latest talk state of each user is kept, and any number of
+ * channel tree changes collapse into a single flag. Subclasses receive one call to
+ * {@link #onBatch(Batch)} per window on the main thread.
+ *
+ * Subclasses may still override any other {@link JumbleObserver} callback, but must call through
+ * to the superclass implementation of the callbacks that are batched.
+ */
+public abstract class BatchingJumbleObserver extends JumbleObserver {
+    /** Window used when frame callbacks are unavailable, approximately one frame at 60Hz. */
+    private static final long DEFAULT_FRAME_WINDOW = 16;
+
+    private final Handler mHandler;
+    private final long mWindow;
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private Object mFrameCallback;
+    private Batch mPending;
+
+    /**
+     * Creates a new observer that delivers one batch per frame.
+     */
+    public BatchingJumbleObserver() {
+        this(0);
+    }
+
+    /**
+     * Creates a new observer that delivers batches at most once per window.
+     * @param window The minimum time in ms to collect events for, or 0 to align batches to frames.
+     */
+    public BatchingJumbleObserver(long window) {
+        mHandler = new Handler(Looper.getMainLooper());
+        mWindow = window;
+    }
+
+    /**
+     * Called on the main thread with the events collected since the last batch.
+     * @param batch The merged events.
+     */
+    protected abstract void onBatch(Batch batch);
+
+    /**
+     * Delivers any pending events immediately.
+     */
+    public void flush() {
+        Batch batch = mPending;
+        cancel();
+        if (batch != null) {
+            onBatch(batch);
+        }
+    }
+
+    /**
+     * Discards any pending events without delivering them.
+     * Should be called when the consumer of this observer is torn down.
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        if (mFrameCallback != null) {
+            removeFrameCallback();
+        }
+        mPending = null;
+    }
+
+    private Batch getPendingBatch() {
+        if (mPending == null) {
+            mPending = new Batch();
+            schedule();
+        }
+        return mPending;
+    }
+
+    private void schedule() {
+        if (mWindow <= 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            Choreographer.getInstance().postFrameCallback(getFrameCallback());
+        } else {
+            mHandler.postDelayed(mFlushRunnable, mWindow > 0 ? mWindow : DEFAULT_FRAME_WINDOW);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private Choreographer.FrameCallback getFrameCallback() {
+        if (mFrameCallback == null) {
+            mFrameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    flush();
+                }
+            };
+        }
+        return (Choreographer.FrameCallback) mFrameCallback;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void removeFrameCallback() {
+        Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+    }
+
+    @Override
+    public void onChannelAdded(IChannel channel) {
+        getPendingBatch().mTreeChanged = true;
+    }
+
+    @Override
+    public void onChannelStateUpdated(IChannel channel) {
+        getPendingBatch().mTreeChanged = true;
+    }
+
+    @Override
+    public void onChannelRemoved(IChannel channel) {
+        getPendingBatch().mTreeChanged = true;
+    }
+
+    @Override
+    public void onUserConnected(IUser user) {
+        getPendingBatch().mTreeChanged = true;
+    }
+
+    @Override
+    public void onUserRemoved(IUser user, String reason) {
+        Batch batch = getPendingBatch();
+        batch.mTreeChanged = true;
+        batch.mUpdatedUsers.remove(user.getSession());
+        batch.mTalkStateUpdatedUsers.remove(user.getSession());
+    }
+
+    @Override
+    public void onUserJoinedChannel(IUser user, IChannel newChannel, IChannel oldChannel) {
+        Batch batch = getPendingBatch();
+        batch.mTreeChanged = true;
+        UserMove move = batch.mUserMoves.get(user.getSession());
+        if (move == null) {
+            batch.mUserMoves.put(user.getSession(), new UserMove(user, oldChannel, newChannel));
+        } else {
+            // Keep the channel the user was originally in at the start of the batch.
+            move.mNewChannel = newChannel;
+        }
+    }
+
+    @Override
+    public void onUserStateUpdated(IUser user) {
+        getPendingBatch().mUpdatedUsers.put(user.getSession(), user);
+    }
+
+    @Override
+    public void onUserTalkStateUpdated(IUser user) {
+        getPendingBatch().mTalkStateUpdatedUsers.put(user.getSession(), user);
+    }
+
+    /**
+     * A set of merged observer events.
+     */
+    public static class Batch {
+        private boolean mTreeChanged;
+        private final Map<Integer, IUser> mUpdatedUsers = new LinkedHashMap<Integer, IUser>();
+        private final Map<Integer, IUser> mTalkStateUpdatedUsers =
+                new LinkedHashMap<Integer, IUser>();
+        private final Map<Integer, UserMove> mUserMoves = new LinkedHashMap<Integer, UserMove>();
+
+        /**
+         * @return true if channels or users were added, removed, moved or had their state changed.
+         */
+        public boolean isTreeChanged() {
+            return mTreeChanged;
+        }
+
+        /**
+         * @return Users whose state was updated, each listed once.
+         */
+        public Collection<IUser> getUpdatedUsers() {
+            return Collections.unmodifiableCollection(mUpdatedUsers.values());
+        }
+
+        /**
+         * @return Users whose talk state changed, each listed once. Only the latest talk state
+         * of each user is relevant.
+         */
+        public Collection<IUser> getTalkStateUpdatedUsers() {
+            return Collections.unmodifiableCollection(mTalkStateUpdatedUsers.values());
+        }
+
+        /**
+         * @return Users that changed channels, each listed once.
+         */
+        public Collection<UserMove> getUserMoves() {
+            return Collections.unmodifiableCollection(mUserMoves.values());
+        }
+
+        /**
+         * @param session The session of the user.
+         * @return The channel change of the given user in this batch, or null if they did not move.
+         */
+        public UserMove getUserMove(int session) {
+            return mUserMoves.get(session);
+        }
+    }
+
+    /**
+     * The net change in a user's channel over the course of a batch.
+     */
+    public static class UserMove {
+        private final IUser mUser;
+        private final IChannel mOldChannel;
+        private IChannel mNewChannel;
+
+        private UserMove(IUser user, IChannel oldChannel, IChannel newChannel) {
+            mUser = user;
+            mOldChannel = oldChannel;
+            mNewChannel = newChannel;
+        }
+
+        public IUser getUser() {
+            return mUser;
+        }
+
+        /**
+         * @return The channel the user was in before their first move in the batch.
+         */
+        public IChannel getOldChannel() {
+            return mOldChannel;
+        }
+
+        /**
+         * @return The channel the user was in after their last move in the batch.
+         */
+        public IChannel getNewChannel() {
+            return mNewChannel;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Helpers for the on-disk image and avatar stores, which replace files while other threads may
+ * be reading them.
+ */
+public class FileUtils {
+    /** The suffix of files being written by {@link #writeAtomically(File, byte[])}. */
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Reads the whole of a file. The length is taken from the opened file, so that a file
+     * replaced while being read is never returned partially.
+     */
+    public static byte[] readFully(File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            long length = input.getChannel().size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + file);
+            }
+            byte[] data = new byte[(int) length];
+            int offset = 0;
+            while (offset < data.length) {
+                int read = input.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                offset += read;
+            }
+            return data;
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * Writes data to a temporary file next to the given file, then renames it into place, so
+     * that the file is never seen partially written, even if the process dies mid-write.
+     * Temporary files end in {@link #TEMP_SUFFIX}, and should be ignored when listing files.
+     */
+    public static void writeAtomically(File file, byte[] data) throws IOException {
+        File temp = File.createTempFile(file.getName(), TEMP_SUFFIX, file.getParentFile());
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(temp);
+            output.write(data);
+            output.getFD().sync();
+            output.close();
+            output = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Failed to rename " + temp + " to " + file);
+            }
+        } finally {
+            closeQuietly(output);
+            if (temp.exists()) {
+                temp.delete();
+            }
+        }
+    }
+
+    public static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
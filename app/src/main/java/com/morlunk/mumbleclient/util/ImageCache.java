@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.util;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+
+/**
+ * A process-wide, memory-bounded cache of decoded images shown in chat messages, comments and
+ * the MOTD.
+ *
+ * Images are keyed by a hash of their source (see {@link ImageDiskCache#hash(String)}) rather
+ * than the source itself, so that the cache doesn't retain large base64 data URIs, and an image
+ * pasted into many messages is decoded once. The cache is bounded by the byte size of its bitmaps,
+ * and gives up memory when the system asks for it. Safe to use from any thread.
+ */
+public class ImageCache {
+    /** The fraction of the maximum heap size to use for decoded images. */
+    private static final int HEAP_FRACTION = 8;
+
+    private static ImageCache sInstance;
+
+    private final LruCache<String, Bitmap> mBitmaps;
+
+    public static synchronized ImageCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ImageCache();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+                context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+                    @Override
+                    public void onTrimMemory(int level) {
+                        sInstance.trimMemory(level);
+                    }
+
+                    @Override
+                    public void onConfigurationChanged(Configuration newConfig) {
+                    }
+
+                    @Override
+                    public void onLowMemory() {
+                        sInstance.clear();
+                    }
+                });
+            }
+        }
+        return sInstance;
+    }
+
+    private ImageCache() {
+        int maxSize = (int) (Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+        mBitmaps = new LruCache<String, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * @param key The hash of the image's source.
+     * @return The decoded image, or null if not cached.
+     */
+    public Bitmap get(String key) {
+        return mBitmaps.get(key);
+    }
+
+    public void put(String key, Bitmap bitmap) {
+        mBitmaps.put(key, bitmap);
+    }
+
+    public void clear() {
+        mBitmaps.evictAll();
+    }
+
+    /**
+     * Releases images according to how much memory the system has asked the process to free.
+     * @param level A level passed to {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            // The process is likely to be killed; images are cheap to decode again.
+            mBitmaps.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mBitmaps.trimToSize(mBitmaps.maxSize() / 2);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.morlunk.mumbleclient.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A persistent cache of encoded chat images, such as those downloaded from external URLs.
+ *
+ * Images are keyed by a hexadecimal SHA-1 hash chosen by the caller, see {@link #hash(String)}.
+ * The cache is capped in size and evicts the least recently used images. Reads and writes are
+ * blocking, and must not be made on the main thread.
+ */
+public class ImageDiskCache {
+    /** The name of the directory in the app's cache dir to store images in. */
+    private static final String CACHE_DIR = "images";
+    /** The maximum total size of cached images, in bytes. */
+    private static final long MAX_SIZE = 20 * 1024 * 1024;
+
+    private static ImageDiskCache sInstance;
+
+    private final File mDirectory;
+    /** Cached image keys mapped to their size, in least recently used order. */
+    private final LinkedHashMap<String, Long> mIndex;
+    private long mSize;
+    private boolean mIndexLoaded;
+
+    public static synchronized ImageDiskCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ImageDiskCache(new File(context.getCacheDir(), CACHE_DIR));
+        }
+        return sInstance;
+    }
+
+    private ImageDiskCache(File directory) {
+        mDirectory = directory;
+        mIndex = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    }
+
+    /**
+     * Reads the image with the given key from disk.
+     * @return The encoded image, or null if not present.
+     */
+    public byte[] read(String key) {
+        synchronized (this) {
+            loadIndex();
+            if (!mIndex.containsKey(key)) {
+                return null;
+            }
+            mIndex.get(key); // Mark as recently used.
+        }
+        File file = new File(mDirectory, key);
+        try {
+            byte[] data = FileUtils.readFully(file);
+            file.setLastModified(System.currentTimeMillis());
+            return data;
+        } catch (IOException e) {
+            Log.w(Constants.TAG, "Failed to read cached image " + key, e);
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the given image to disk, replacing any image with the same key. The image is written
+     * to a temporary file first, so that concurrent reads see either the old or the new image.
+     */
+    public void put(String key, byte[] data) {
+        synchronized (this) {
+            loadIndex();
+        }
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            return;
+        }
+        try {
+            FileUtils.writeAtomically(new File(mDirectory, key), data);
+        } catch (IOException e) {
+            Log.w(Constants.TAG, "Failed to cache image " + key, e);
+            return;
+        }
+
+        synchronized (this) {
+            Long previous = mIndex.put(key, (long) data.length);
+            if (previous != null) {
+                mSize -= previous;
+            }
+            mSize += data.length;
+            trimToSize();
+        }
+    }
+
+    private synchronized void remove(String key) {
+        Long size = mIndex.remove(key);
+        if (size != null) {
+            mSize -= size;
+        }
+        new File(mDirectory, key).delete();
+    }
+
+    /**
+     * Evicts the least recently used images until the cache is within its size limit.
+     */
+    private synchronized void trimToSize() {
+        Iterator<Map.Entry<String, Long>> iterator = mIndex.entrySet().iterator();
+        while (mSize > MAX_SIZE && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            new File(mDirectory, entry.getKey()).delete();
+            mSize -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Populates the index from the cache directory, ordered by last use, on first access.
+     * Temporary files left by interrupted writes are deleted.
+     */
+    private synchronized void loadIndex() {
+        if (mIndexLoaded) {
+            return;
+        }
+        mIndexLoaded = true;
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(FileUtils.TEMP_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            mIndex.put(file.getName(), file.length());
+            mSize += file.length();
+        }
+        trimToSize();
+    }
+
+    /**
+     * @return The hexadecimal SHA-1 hash of the given string's UTF-8 encoding, for use as a key.
+     */
+    public static String hash(String value) {
+        try {
+            return hash(value.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return The hexadecimal SHA-1 hash of the given data, for use as a key.
+     */
+    public static String hash(byte[] data) {
+        try {
+            return AvatarCache.toHex(MessageDigest.getInstance("SHA-1").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
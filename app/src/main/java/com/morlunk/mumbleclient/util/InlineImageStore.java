@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.util;
+
+import android.content.Context;
+import android.util.Base64;
+import android.util.Log;
+
+import com.morlunk.mumbleclient.Constants;
+import com.morlunk.mumbleclient.db.ChatHistoryDatabase;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Moves large base64 images out of chat message bodies and onto disk, so that logged messages
+ * don't keep their image data in memory.
+ *
+ * Offloaded images are replaced by a {@link #SCHEME} reference holding the SHA-1 hash of their
+ * base64 payload, which {@link MumbleImageGetter} loads lazily. Images are written to disk on a
+ * background thread; until then, they are read back from memory.
+ *
+ * Unlike the {@link ImageDiskCache}, images are kept in their own directory and never evicted,
+ * as stored chat history refers to them. The {@link ChatHistoryDatabase} counts the references
+ * to each image and deletes images once no row refers to them. Images only referred to by
+ * messages that were never stored are swept when the store is next created.
+ */
+public class InlineImageStore {
+    /** The scheme of image sources referring to an offloaded image. */
+    public static final String SCHEME = "plumble-image:";
+    private static final String DIRECTORY_NAME = "inline_images";
+    /** The length of base64 payload above which images are offloaded. */
+    private static final int OFFLOAD_THRESHOLD = 8 * 1024;
+    /** Matches the source attribute of an image with a base64 data URI, capturing the payload. */
+    private static final Pattern DATA_IMAGE_PATTERN =
+            Pattern.compile("src\\s*=\\s*([\"'])data:image/[^;,\"']*;base64,([^\"']*)\\1",
+                    Pattern.CASE_INSENSITIVE);
+    /** Matches the key of an offloaded image. */
+    private static final Pattern KEY_PATTERN = Pattern.compile("[0-9a-f]{40}");
+    /** Matches a reference to an offloaded image, capturing its key. */
+    private static final Pattern REFERENCE_PATTERN =
+            Pattern.compile(Pattern.quote(SCHEME) + "(" + KEY_PATTERN.pattern() + ")");
+
+    private static InlineImageStore sInstance;
+
+    private final File mDirectory;
+    private final ExecutorService mWriteExecutor;
+    /** Payloads of images not yet written to disk, by key. */
+    private final Map<String, String> mPending;
+    /**
+     * Keys of the images offloaded by this process, which may be referred to by messages that are
+     * only logged in memory, and so are never deleted until the next sweep.
+     */
+    private final Set<String> mOffloadedKeys;
+
+    public static synchronized InlineImageStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new InlineImageStore(new File(context.getFilesDir(), DIRECTORY_NAME));
+            sInstance.sweep(ChatHistoryDatabase.getInstance(context));
+        }
+        return sInstance;
+    }
+
+    private InlineImageStore(File directory) {
+        mDirectory = directory;
+        mWriteExecutor = Executors.newSingleThreadExecutor();
+        mPending = new HashMap<String, String>();
+        mOffloadedKeys = new HashSet<String>();
+    }
+
+    /**
+     * @return The keys of the offloaded images referred to by the given HTML.
+     */
+    public static Set<String> findKeys(String html) {
+        Set<String> keys = new HashSet<String>();
+        if (html == null || !html.contains(SCHEME)) {
+            return keys;
+        }
+        Matcher matcher = REFERENCE_PATTERN.matcher(html);
+        while (matcher.find()) {
+            keys.add(matcher.group(1));
+        }
+        return keys;
+    }
+
+    /**
+     * @return Whether the given HTML may hold images large enough to offload, which is cheap
+     *         enough to check on the main thread.
+     */
+    public static boolean needsOffload(String html) {
+        return html != null && html.length() >= OFFLOAD_THRESHOLD;
+    }
+
+    /**
+     * Replaces the large inline images in the given HTML with references to the store. Should not
+     * be called on the main thread, as large bodies take a while to scan.
+     * @param html A message body.
+     * @return The body with large images offloaded, or the same string if there were none.
+     */
+    public String offload(String html) {
+        if (!needsOffload(html)) {
+            return html;
+        }
+        Matcher matcher = DATA_IMAGE_PATTERN.matcher(html);
+        StringBuffer result = null;
+        while (matcher.find()) {
+            String payload = matcher.group(2);
+            // URL-encoded payloads are rare, and left inline rather than decoded here.
+            if (payload.length() < OFFLOAD_THRESHOLD || payload.indexOf('%') >= 0) {
+                continue;
+            }
+            if (result == null) {
+                result = new StringBuffer(html.length() / 8);
+            }
+            String quote = matcher.group(1);
+            matcher.appendReplacement(result, Matcher.quoteReplacement(
+                    "src=" + quote + SCHEME + store(payload) + quote));
+        }
+        if (result == null) {
+            return html;
+        }
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    /**
+     * Reads an offloaded image. Must not be called on the main thread.
+     * @param key The hash following {@link #SCHEME} in the image's source.
+     * @return The encoded image, or null if it is no longer stored.
+     */
+    public byte[] read(String key) {
+        String payload;
+        synchronized (this) {
+            payload = mPending.get(key);
+        }
+        if (payload != null) {
+            return decode(payload);
+        }
+        if (!KEY_PATTERN.matcher(key).matches()) {
+            return null;
+        }
+        try {
+            return FileUtils.readFully(new File(mDirectory, key));
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(Constants.TAG, "Failed to read inline image " + key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the given images from disk, once no stored message refers to them. Images offloaded
+     * by this process are kept, as messages only logged in memory may still refer to them.
+     */
+    public void delete(final Collection<String> keys) {
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (String key : keys) {
+                    synchronized (InlineImageStore.this) {
+                        if (mOffloadedKeys.contains(key)) {
+                            continue;
+                        }
+                    }
+                    new File(mDirectory, key).delete();
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes the images left on disk that no stored message refers to, such as those of
+     * messages from servers whose history isn't kept, along with interrupted writes. Runs before
+     * any image offloaded by this process is written.
+     */
+    private void sweep(final ChatHistoryDatabase history) {
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = mDirectory.listFiles();
+                if (files == null) {
+                    return;
+                }
+                Set<String> referenced = history.getImageKeys();
+                for (File file : files) {
+                    if (!referenced.contains(file.getName())) {
+                        file.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues the given payload to be written to disk.
+     * @return The key of the image.
+     */
+    private String store(final String payload) {
+        final String key = ImageDiskCache.hash(payload);
+        synchronized (this) {
+            if (mPending.containsKey(key)) {
+                return key;
+            }
+            mPending.put(key, payload);
+            mOffloadedKeys.add(key);
+        }
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                byte[] data = decode(payload);
+                if (data != null) {
+                    write(key, data);
+                }
+                synchronized (InlineImageStore.this) {
+                    mPending.remove(key);
+                }
+            }
+        });
+        return key;
+    }
+
+    private void write(String key, byte[] data) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(Constants.TAG, "Failed to create " + mDirectory);
+            return;
+        }
+        try {
+            FileUtils.writeAtomically(new File(mDirectory, key), data);
+        } catch (IOException e) {
+            Log.w(Constants.TAG, "Failed to store inline image " + key, e);
+        }
+    }
+
+    private static byte[] decode(String payload) {
+        try {
+            return Base64.decode(payload, Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            Log.w(Constants.TAG, "Invalid inline image", e);
+            return null;
+        }
+    }
+}
@@ -20,52 +20,107 @@ package com.morlunk.mumbleclient.util;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.PixelFormat;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.StrictMode;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Html;
 import android.util.Base64;
+import android.util.Base64InputStream;
 import android.util.DisplayMetrics;
+import android.util.Log;
 
+import com.morlunk.mumbleclient.Constants;
 import com.morlunk.mumbleclient.Settings;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLDecoder;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implementation of ImageGetter designed for Mumble MOTDs and messages.
- * Can read base64-embedded images and references. Caches them too.
+ * Can read base64-embedded images and references. Decoded images are kept in the shared
+ * {@link ImageCache}.
+ *
+ * Embedded images are decoded on the calling thread. External images and images offloaded to the
+ * {@link InlineImageStore} are returned at once as a placeholder, and loaded on a shared
+ * background pool; downloads are kept in the {@link ImageDiskCache}.
+ * Once an image is ready it is swapped into the placeholder on the main thread, and the
+ * {@link OnImageLoadedListener} is told to lay out the text again.
  * Created by andrew on 07/02/14.
  */
 public class MumbleImageGetter implements Html.ImageGetter {
 
     /** The maximum image size in bytes to load. */
     private static final int MAX_LENGTH = 64000;
+    /** The number of images to load in the background at once, across all getters. */
+    private static final int DOWNLOAD_THREADS = 2;
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int READ_TIMEOUT = 10000;
+    /** The width and height of the placeholder shown while an image loads, in dp. */
+    private static final int PLACEHOLDER_SIZE = 48;
+    /** The maximum size of a decoded image in memory, in bytes. */
+    private static final int MAX_BITMAP_BYTES = 2 * 1024 * 1024;
+    /** The bytes per pixel of the default ARGB_8888 decoding. */
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private static ThreadPoolExecutor sDownloadExecutor;
+
+    /**
+     * Listener for the completion of an asynchronous image load.
+     */
+    public interface OnImageLoadedListener {
+        /**
+         * Called on the main thread once an image has replaced its placeholder.
+         * Text showing the image should be laid out again, as the image's size has changed.
+         */
+        void onImageLoaded();
+    }
 
     private Context mContext;
     private Settings mSettings;
-    private Map<String, Drawable> mBitmapCache;
+    private final ImageCache mImageCache;
+    private final ImageDiskCache mDiskCache;
+    private final InlineImageStore mInlineStore;
+    private final Handler mMainHandler;
+    private final OnImageLoadedListener mListener;
+    /** The widest an image needs to be decoded to fill the chat column, in pixels before scaling. */
+    private final int mMaxWidth;
 
     public MumbleImageGetter(Context context) {
+        this(context, null);
+    }
+
+    /**
+     * @param listener A listener to notify when external images finish loading, or null.
+     */
+    public MumbleImageGetter(Context context, OnImageLoadedListener listener) {
         mContext = context;
         mSettings = Settings.getInstance(context);
-        mBitmapCache = new HashMap<String, Drawable>();
-
-        // We have to enable network on the main thread here. FIXME
-        StrictMode.ThreadPolicy policy = new StrictMode.ThreadPolicy.Builder().permitAll().build();
-        StrictMode.setThreadPolicy(policy);
+        mImageCache = ImageCache.getInstance(context);
+        mDiskCache = ImageDiskCache.getInstance(context);
+        mInlineStore = InlineImageStore.getInstance(context);
+        mMainHandler = new Handler(Looper.getMainLooper());
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        mMaxWidth = Math.max(1, (int) (metrics.widthPixels / metrics.density));
+        mListener = listener;
     }
 
     @Override
     public Drawable getDrawable(String source) {
-        Drawable cachedDrawable = mBitmapCache.get(source);
-        if(cachedDrawable != null) return cachedDrawable;
+        String key = ImageDiskCache.hash(source);
+        Bitmap cachedBitmap = mImageCache.get(key);
+        if(cachedBitmap != null) return createDrawable(cachedBitmap);
 
         String decodedSource; // Decode from URL encoding
         try {
@@ -75,42 +130,242 @@ public class MumbleImageGetter implements Html.ImageGetter {
             return null;
         }
 
-        Bitmap bitmap = null;
         try {
             if(decodedSource.startsWith("data:image")) {
-                bitmap = getBase64Image(decodedSource.split(",")[1]);
-            } else if(mSettings.shouldLoadExternalImages()) {
-                bitmap = getURLImage(decodedSource);
+                Bitmap bitmap = getBase64Image(decodedSource, decodedSource.indexOf(',') + 1);
+                if(bitmap == null) return null;
+                mImageCache.put(key, bitmap);
+                return createDrawable(bitmap);
+            } else if(decodedSource.startsWith(InlineImageStore.SCHEME) ||
+                    mSettings.shouldLoadExternalImages()) {
+                return getAsyncImage(key, decodedSource);
             }
         } catch (IllegalArgumentException e) {
             e.printStackTrace();
-            return null;
         }
-        if(bitmap == null) return null;
+        return null;
+    }
+
+    /**
+     * Decodes a base64 image straight from the source string, without holding the encoded image
+     * in memory. The image's dimensions are read first, so that it can be downsampled.
+     * @param source The data URI.
+     * @param offset The offset of the base64 payload in the data URI.
+     * @return The decoded image, or null if it is invalid.
+     */
+    private Bitmap getBase64Image(String source, int offset) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(new Base64InputStream(
+                new AsciiInputStream(source, offset), Base64.DEFAULT), null, options);
+        if (!setSampleSize(options)) return null;
+        return BitmapFactory.decodeStream(new Base64InputStream(
+                new AsciiInputStream(source, offset), Base64.DEFAULT), null, options);
+    }
+
+    /**
+     * Decodes an encoded image, downsampled to fit the chat column.
+     * @return The decoded image, or null if it is invalid.
+     */
+    private Bitmap decodeImage(byte[] data) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (!setSampleSize(options)) return null;
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
 
+    /**
+     * Picks a power of two sample size for decoding an image with the bounds read into the
+     * given options, so that it fits the chat column and {@link #MAX_BITMAP_BYTES}.
+     * @return false if the bounds couldn't be read, meaning the image is invalid.
+     */
+    private boolean setSampleSize(BitmapFactory.Options options) {
+        if (options.outWidth <= 0 || options.outHeight <= 0) return false;
+        int sampleSize = 1;
+        while (options.outWidth / sampleSize > mMaxWidth ||
+                (long) (options.outWidth / sampleSize) * (options.outHeight / sampleSize)
+                        * BYTES_PER_PIXEL > MAX_BITMAP_BYTES) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return true;
+    }
+
+    /**
+     * Creates a placeholder for the image at the given URL or {@link InlineImageStore} reference,
+     * and starts loading it.
+     * @param key The hash of the image's source, to cache the decoded image under.
+     */
+    private Drawable getAsyncImage(final String key, final String source) {
+        final AsyncDrawable drawable = new AsyncDrawable();
+        int size = (int) (PLACEHOLDER_SIZE * mContext.getResources().getDisplayMetrics().density);
+        drawable.setBounds(0, 0, size, size);
+        getDownloadExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = mImageCache.get(key);
+                if (bitmap == null) {
+                    byte[] data;
+                    if (source.startsWith(InlineImageStore.SCHEME)) {
+                        data = mInlineStore.read(source.substring(InlineImageStore.SCHEME.length()));
+                        if (data == null) return;
+                    } else {
+                        data = mDiskCache.read(key);
+                        if (data == null) {
+                            data = download(source);
+                            if (data == null) return;
+                            mDiskCache.put(key, data);
+                        }
+                    }
+                    bitmap = decodeImage(data);
+                    if (bitmap == null) return;
+                    mImageCache.put(key, bitmap);
+                }
+                final Drawable image = createDrawable(bitmap);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        drawable.setImage(image);
+                        if (mListener != null) {
+                            mListener.onImageLoaded();
+                        }
+                    }
+                });
+            }
+        });
+        return drawable;
+    }
+
+    /**
+     * Wraps the bitmap in a drawable scaled from mdpi to the display's density.
+     * @return The drawable, or null if the bitmap is null.
+     */
+    private Drawable createDrawable(Bitmap bitmap) {
+        if(bitmap == null) return null;
         BitmapDrawable drawable = new BitmapDrawable(mContext.getResources(), bitmap);
         DisplayMetrics metrics = mContext.getResources().getDisplayMetrics(); // Use display metrics to scale image to mdpi
         drawable.setBounds(0, 0, (int)((float)drawable.getIntrinsicWidth()*metrics.density), (int)((float)drawable.getIntrinsicHeight()*metrics.density));
-        mBitmapCache.put(source, drawable);
         return drawable;
     }
 
-    private Bitmap getBase64Image(String base64) throws IllegalArgumentException {
-        byte[] src = Base64.decode(base64, Base64.DEFAULT);
-        return BitmapFactory.decodeByteArray(src, 0, src.length);
-    }
-
-    private Bitmap getURLImage(String source) {
+    /**
+     * Downloads the image at the given URL, giving up on slow hosts and images over
+     * {@link #MAX_LENGTH} bytes whether or not the server reports their length.
+     * @return The encoded image, or null if it could not be downloaded.
+     */
+    private static byte[] download(String source) {
+        InputStream input = null;
         try {
-            URL url = new URL(source);
-            URLConnection conn = url.openConnection();
+            URLConnection conn = new URL(source).openConnection();
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
             if(conn.getContentLength() > MAX_LENGTH) return null;
-            return BitmapFactory.decodeStream(conn.getInputStream());
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
+            input = conn.getInputStream();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+                if (output.size() > MAX_LENGTH) return null;
+            }
+            return output.toByteArray();
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.w(Constants.TAG, "Failed to load image " + source, e);
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getDownloadExecutor() {
+        if (sDownloadExecutor == null) {
+            sDownloadExecutor = new ThreadPoolExecutor(DOWNLOAD_THREADS, DOWNLOAD_THREADS,
+                    30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            sDownloadExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sDownloadExecutor;
+    }
+
+    /**
+     * Reads the characters of a string from an offset as bytes, for ASCII text such as base64.
+     */
+    private static class AsciiInputStream extends InputStream {
+        private final String mString;
+        private int mPosition;
+
+        public AsciiInputStream(String string, int offset) {
+            mString = string;
+            mPosition = offset;
+        }
+
+        @Override
+        public int read() {
+            return mPosition < mString.length() ? mString.charAt(mPosition++) & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (length == 0) return 0;
+            int remaining = mString.length() - mPosition;
+            if (remaining <= 0) return -1;
+            int count = Math.min(length, remaining);
+            for (int i = 0; i < count; i++) {
+                buffer[offset + i] = (byte) mString.charAt(mPosition++);
+            }
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mString.length() - mPosition;
+        }
+    }
+
+    /**
+     * A drawable standing in for an image that is still loading. Draws nothing until the image
+     * is set, and then takes on its bounds.
+     */
+    private static class AsyncDrawable extends Drawable {
+        private Drawable mImage;
+
+        public void setImage(Drawable image) {
+            mImage = image;
+            setBounds(image.getBounds());
+            invalidateSelf();
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            if (mImage != null) {
+                mImage.draw(canvas);
+            }
+        }
+
+        @Override
+        public void setAlpha(int alpha) {
+            if (mImage != null) {
+                mImage.setAlpha(alpha);
+            }
+        }
+
+        @Override
+        public void setColorFilter(ColorFilter colorFilter) {
+            if (mImage != null) {
+                mImage.setColorFilter(colorFilter);
+            }
+        }
+
+        @Override
+        public int getOpacity() {
+            return mImage != null ? mImage.getOpacity() : PixelFormat.TRANSPARENT;
         }
-        return null;
     }
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * The binary format of Jumble observer traces, written by {@link ObserverTraceRecorder}.
+ *
+ * A trace starts with {@link #MAGIC} and {@link #VERSION}, followed by one record per callback.
+ * Each record is an event code byte, the milliseconds elapsed since the previous record, and the
+ * event's fields. Integers are zigzag-encoded varints, and strings are UTF-8 prefixed by their
+ * length plus one, with zero denoting null.
+ *
+ * Records carry the state of the channels and users they concern rather than references, so that
+ * a replayer can rebuild the model as it goes:
+ * <ul>
+ *     <li>Channels: id, parent id (-1 for the root) and name.</li>
+ *     <li>Users: session, name, channel id and {@link #USER_FLAG_MUTED mute flags}.</li>
+ *     <li>Talk states: session and {@link com.morlunk.jumble.model.TalkState} ordinal.</li>
+ *     <li>Messages: actor session, actor name, body, then the target channel ids, tree ids and
+ *     user sessions, each prefixed by their count.</li>
+ * </ul>
+ */
+public class ObserverTrace {
+    public static final int MAGIC = 0x504C5452; // "PLTR"
+    public static final int VERSION = 1;
+
+    public static final int EVENT_CONNECTING = 1;
+    public static final int EVENT_CONNECTED = 2;
+    /** Fields: disconnection reason. */
+    public static final int EVENT_DISCONNECTED = 3;
+    public static final int EVENT_CHANNEL_ADDED = 4;
+    public static final int EVENT_CHANNEL_STATE_UPDATED = 5;
+    /** Fields: channel id. */
+    public static final int EVENT_CHANNEL_REMOVED = 6;
+    /** Fields: channel id. */
+    public static final int EVENT_CHANNEL_PERMISSIONS_UPDATED = 7;
+    public static final int EVENT_USER_CONNECTED = 8;
+    public static final int EVENT_USER_STATE_UPDATED = 9;
+    public static final int EVENT_USER_TALK_STATE_UPDATED = 10;
+    /** Fields: session, new channel id, old channel id. */
+    public static final int EVENT_USER_JOINED_CHANNEL = 11;
+    /** Fields: session, reason. */
+    public static final int EVENT_USER_REMOVED = 12;
+    public static final int EVENT_MESSAGE_LOGGED = 13;
+    /** Fields: message. */
+    public static final int EVENT_LOG_INFO = 14;
+    /** Fields: message. */
+    public static final int EVENT_LOG_WARNING = 15;
+    /** Fields: message. */
+    public static final int EVENT_LOG_ERROR = 16;
+    /** Fields: reason. */
+    public static final int EVENT_PERMISSION_DENIED = 17;
+
+    public static final int USER_FLAG_MUTED = 1;
+    public static final int USER_FLAG_DEAFENED = 1 << 1;
+    public static final int USER_FLAG_SELF_MUTED = 1 << 2;
+    public static final int USER_FLAG_SELF_DEAFENED = 1 << 3;
+    public static final int USER_FLAG_SUPPRESSED = 1 << 4;
+
+    /** The id written in place of a missing channel. */
+    public static final int NO_CHANNEL = -1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static void writeInt(DataOutput out, int value) throws IOException {
+        int zigzag = (value << 1) ^ (value >> 31);
+        while ((zigzag & ~0x7F) != 0) {
+            out.writeByte((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        out.writeByte(zigzag);
+    }
+
+    public static int readInt(DataInput in) throws IOException {
+        int zigzag = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            zigzag |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            writeInt(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        writeInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int length = readInt(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.util;
+
+import com.morlunk.jumble.model.IChannel;
+import com.morlunk.jumble.model.IMessage;
+import com.morlunk.jumble.model.IUser;
+import com.morlunk.jumble.model.TalkState;
+import com.morlunk.jumble.util.JumbleException;
+import com.morlunk.jumble.util.JumbleObserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the observer callbacks of a session into a compact, timestamped trace.
+ * See {@link ObserverTrace} for the format.
+ *
+ * Records are encoded into memory as callbacks arrive, and written out in chunks on a background
+ * thread so that recording doesn't add disk I/O to the main thread. Recording is meant for
+ * debugging, and is enabled in {@link com.morlunk.mumbleclient.service.PlumbleService} by the
+ * RECORD_OBSERVER_TRACES build config field.
+ */
+public class ObserverTraceRecorder extends JumbleObserver implements Closeable {
+    /** The number of encoded bytes to buffer before handing them off to be written. */
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    private final OutputStream mOutput;
+    private final ExecutorService mWriteExecutor;
+    private final ByteArrayOutputStream mBuffer;
+    private final DataOutputStream mRecord;
+    private long mLastEventTime;
+    private boolean mClosed;
+
+    /**
+     * Starts a trace. The output stream is written to and closed on a background thread.
+     * @param output The stream to write the trace to.
+     */
+    public ObserverTraceRecorder(OutputStream output) {
+        mOutput = output;
+        mWriteExecutor = Executors.newSingleThreadExecutor();
+        mBuffer = new ByteArrayOutputStream(CHUNK_SIZE * 2);
+        mRecord = new DataOutputStream(mBuffer);
+        mLastEventTime = System.nanoTime();
+        try {
+            mRecord.writeInt(ObserverTrace.MAGIC);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        writeInt(ObserverTrace.VERSION);
+    }
+
+    @Override
+    public void onConnecting() {
+        record(ObserverTrace.EVENT_CONNECTING);
+    }
+
+    @Override
+    public void onConnected() {
+        record(ObserverTrace.EVENT_CONNECTED);
+    }
+
+    @Override
+    public void onDisconnected(JumbleException e) {
+        if (record(ObserverTrace.EVENT_DISCONNECTED)) {
+            writeString(e != null ? e.getMessage() : null);
+        }
+    }
+
+    @Override
+    public void onChannelAdded(IChannel channel) {
+        if (record(ObserverTrace.EVENT_CHANNEL_ADDED)) {
+            writeChannel(channel);
+        }
+    }
+
+    @Override
+    public void onChannelStateUpdated(IChannel channel) {
+        if (record(ObserverTrace.EVENT_CHANNEL_STATE_UPDATED)) {
+            writeChannel(channel);
+        }
+    }
+
+    @Override
+    public void onChannelRemoved(IChannel channel) {
+        if (record(ObserverTrace.EVENT_CHANNEL_REMOVED)) {
+            writeInt(channel.getId());
+        }
+    }
+
+    @Override
+    public void onChannelPermissionsUpdated(IChannel channel) {
+        if (record(ObserverTrace.EVENT_CHANNEL_PERMISSIONS_UPDATED)) {
+            writeInt(channel.getId());
+        }
+    }
+
+    @Override
+    public void onUserConnected(IUser user) {
+        if (record(ObserverTrace.EVENT_USER_CONNECTED)) {
+            writeUser(user);
+        }
+    }
+
+    @Override
+    public void onUserStateUpdated(IUser user) {
+        if (record(ObserverTrace.EVENT_USER_STATE_UPDATED)) {
+            writeUser(user);
+        }
+    }
+
+    @Override
+    public void onUserTalkStateUpdated(IUser user) {
+        if (record(ObserverTrace.EVENT_USER_TALK_STATE_UPDATED)) {
+            TalkState talkState = user.getTalkState();
+            writeInt(user.getSession());
+            writeInt(talkState != null ? talkState.ordinal() : -1);
+        }
+    }
+
+    @Override
+    public void onUserJoinedChannel(IUser user, IChannel newChannel, IChannel oldChannel) {
+        if (record(ObserverTrace.EVENT_USER_JOINED_CHANNEL)) {
+            writeInt(user.getSession());
+            writeChannelId(newChannel);
+            writeChannelId(oldChannel);
+        }
+    }
+
+    @Override
+    public void onUserRemoved(IUser user, String reason) {
+        if (record(ObserverTrace.EVENT_USER_REMOVED)) {
+            writeInt(user.getSession());
+            writeString(reason);
+        }
+    }
+
+    @Override
+    public void onMessageLogged(IMessage message) {
+        if (record(ObserverTrace.EVENT_MESSAGE_LOGGED)) {
+            writeInt(message.getActor());
+            writeString(message.getActorName());
+            writeString(message.getMessage());
+            List<?> channels = message.getTargetChannels();
+            writeInt(channels != null ? channels.size() : 0);
+            if (channels != null) {
+                for (Object channel : channels) {
+                    writeChannelId((IChannel) channel);
+                }
+            }
+            List<?> trees = message.getTargetTrees();
+            writeInt(trees != null ? trees.size() : 0);
+            if (trees != null) {
+                for (Object tree : trees) {
+                    writeChannelId((IChannel) tree);
+                }
+            }
+            List<?> users = message.getTargetUsers();
+            writeInt(users != null ? users.size() : 0);
+            if (users != null) {
+                for (Object user : users) {
+                    writeInt(((IUser) user).getSession());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onLogInfo(String message) {
+        if (record(ObserverTrace.EVENT_LOG_INFO)) {
+            writeString(message);
+        }
+    }
+
+    @Override
+    public void onLogWarning(String message) {
+        if (record(ObserverTrace.EVENT_LOG_WARNING)) {
+            writeString(message);
+        }
+    }
+
+    @Override
+    public void onLogError(String message) {
+        if (record(ObserverTrace.EVENT_LOG_ERROR)) {
+            writeString(message);
+        }
+    }
+
+    @Override
+    public void onPermissionDenied(String reason) {
+        if (record(ObserverTrace.EVENT_PERMISSION_DENIED)) {
+            writeString(reason);
+        }
+    }
+
+    /**
+     * Writes out any buffered records and closes the trace. Further callbacks are ignored.
+     */
+    @Override
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        flush();
+        mClosed = true;
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mOutput.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        mWriteExecutor.shutdown();
+    }
+
+    /**
+     * Blocks until all records have been written, for tests.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mWriteExecutor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Starts a new record, handing off the previous records if enough have been buffered.
+     * @return true if the record's fields should be written.
+     */
+    private boolean record(int event) {
+        if (mClosed) {
+            return false;
+        }
+        if (mBuffer.size() >= CHUNK_SIZE) {
+            flush();
+        }
+        long now = System.nanoTime();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(now - mLastEventTime);
+        // Carry the remainder so that rounding doesn't accumulate.
+        mLastEventTime += TimeUnit.MILLISECONDS.toNanos(elapsed);
+        mBuffer.write(event);
+        writeInt((int) Math.min(elapsed, Integer.MAX_VALUE));
+        return true;
+    }
+
+    private void flush() {
+        if (mClosed || mBuffer.size() == 0) {
+            return;
+        }
+        final byte[] chunk = mBuffer.toByteArray();
+        mBuffer.reset();
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mOutput.write(chunk);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    private void writeChannel(IChannel channel) {
+        writeInt(channel.getId());
+        writeChannelId(channel.getParent());
+        writeString(channel.getName());
+    }
+
+    private void writeChannelId(IChannel channel) {
+        writeInt(channel != null ? channel.getId() : ObserverTrace.NO_CHANNEL);
+    }
+
+    private void writeUser(IUser user) {
+        int flags = 0;
+        flags |= user.isMuted() ? ObserverTrace.USER_FLAG_MUTED : 0;
+        flags |= user.isDeafened() ? ObserverTrace.USER_FLAG_DEAFENED : 0;
+        flags |= user.isSelfMuted() ? ObserverTrace.USER_FLAG_SELF_MUTED : 0;
+        flags |= user.isSelfDeafened() ? ObserverTrace.USER_FLAG_SELF_DEAFENED : 0;
+        flags |= user.isSuppressed() ? ObserverTrace.USER_FLAG_SUPPRESSED : 0;
+        writeInt(user.getSession());
+        writeString(user.getName());
+        writeChannelId(user.getChannel());
+        writeInt(flags);
+    }
+
+    private void writeInt(int value) {
+        try {
+            ObserverTrace.writeInt(mRecord, value);
+        } catch (IOException e) {
+            // Writes to an in-memory buffer don't fail.
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void writeString(String value) {
+        try {
+            ObserverTrace.writeString(mRecord, value);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
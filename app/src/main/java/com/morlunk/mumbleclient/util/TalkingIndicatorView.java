@@ -30,6 +30,7 @@ import android.graphics.RectF;
 import android.os.Build;
 import android.util.AttributeSet;
 import android.view.View;
+import android.view.animation.AnimationUtils;
 import android.view.animation.AccelerateDecelerateInterpolator;
 import android.view.animation.AnticipateOvershootInterpolator;
 import android.view.animation.LinearInterpolator;
@@ -37,15 +38,26 @@ import android.view.animation.OvershootInterpolator;
 
 import com.morlunk.mumbleclient.R;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 /**
+ * A spinning arc shown around a talking user's avatar.
+ *
+ * All indicators are driven by a single shared animator, which only runs while at least one
+ * attached indicator is marked as talking via {@link #setTalking(boolean)}.
  * Created by andrew on 30/11/15.
  */
 @TargetApi(Build.VERSION_CODES.HONEYCOMB)
-public class TalkingIndicatorView extends View implements ValueAnimator.AnimatorUpdateListener {
+public class TalkingIndicatorView extends View {
     private static final float OVERSHOOT_TENSION = 3.5f;
 
+    /** Attached indicators of talking users, animated by {@link #sClock}. */
+    private static final List<TalkingIndicatorView> sActiveViews =
+            new ArrayList<TalkingIndicatorView>();
+    private static ValueAnimator sClock;
+
     /** The offset of the arc from the origin, mod 360. */
     private float mArcOffset;
     /** The length of the arc, in radians. */
@@ -53,6 +65,10 @@ public class TalkingIndicatorView extends View implements ValueAnimator.Animator
     private float mArcWidth;
     private Paint mArcPaint;
     private RectF mBounds;
+    /** The time in ms to complete one rotation of the arc. */
+    private long mCyclePeriod;
+    private boolean mTalking;
+    private boolean mAttached;
 
     public TalkingIndicatorView(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -73,17 +89,89 @@ public class TalkingIndicatorView extends View implements ValueAnimator.Animator
         mArcPaint.setStrokeWidth(mArcWidth);
         mArcPaint.setStyle(Paint.Style.STROKE);
 
-        ValueAnimator cycleAnimator = new ValueAnimator();
-        cycleAnimator.setRepeatCount(ValueAnimator.INFINITE);
-        cycleAnimator.setDuration(style.getInteger(3, 1000));
-        cycleAnimator.setFloatValues(0, 360);
-        cycleAnimator.setInterpolator(new LinearInterpolator());
-        cycleAnimator.addUpdateListener(this);
-        cycleAnimator.start();
+        mCyclePeriod = Math.max(1, style.getInteger(3, 1000));
 
         style.recycle();
     }
 
+    /**
+     * Sets whether the user this indicator belongs to is talking.
+     * The arc only animates while talking and attached to a window.
+     */
+    public void setTalking(boolean talking) {
+        if (mTalking != talking) {
+            mTalking = talking;
+            updateActive();
+        }
+    }
+
+    public boolean isTalking() {
+        return mTalking;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mAttached = true;
+        updateActive();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mAttached = false;
+        updateActive();
+    }
+
+    private void updateActive() {
+        if (mTalking && mAttached) {
+            register(this);
+        } else {
+            unregister(this);
+        }
+    }
+
+    /**
+     * Advances the arc to its position at the given animation time.
+     */
+    private void onClockTick(long time) {
+        mArcOffset = (time % mCyclePeriod) * 360f / mCyclePeriod;
+        invalidate();
+    }
+
+    private static void register(TalkingIndicatorView view) {
+        if (sActiveViews.contains(view)) {
+            return;
+        }
+        sActiveViews.add(view);
+        if (sClock == null) {
+            sClock = new ValueAnimator();
+            sClock.setRepeatCount(ValueAnimator.INFINITE);
+            sClock.setDuration(1000);
+            sClock.setFloatValues(0, 1);
+            sClock.setInterpolator(new LinearInterpolator());
+            sClock.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
+                @Override
+                public void onAnimationUpdate(ValueAnimator animation) {
+                    long time = AnimationUtils.currentAnimationTimeMillis();
+                    for (int i = 0; i < sActiveViews.size(); i++) {
+                        sActiveViews.get(i).onClockTick(time);
+                    }
+                }
+            });
+        }
+        if (!sClock.isStarted()) {
+            sClock.start();
+        }
+    }
+
+    private static void unregister(TalkingIndicatorView view) {
+        if (sActiveViews.remove(view) && sActiveViews.isEmpty() && sClock != null) {
+            // Nobody visible is talking; stop ticking entirely.
+            sClock.cancel();
+        }
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
@@ -98,12 +186,6 @@ public class TalkingIndicatorView extends View implements ValueAnimator.Animator
         mBounds.inset(mArcWidth / 2, mArcWidth / 2);
     }
 
-    @Override
-    public void onAnimationUpdate(ValueAnimator animation) {
-        mArcOffset = (float) animation.getAnimatedValue();
-        invalidate();
-    }
-
     public float getStrokeWidth() {
         return mArcWidth;
     }
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.test;
+
+import com.morlunk.jumble.IJumbleSession;
+import com.morlunk.jumble.JumbleService;
+import com.morlunk.jumble.model.IChannel;
+import com.morlunk.jumble.model.IUser;
+import com.morlunk.jumble.model.TalkState;
+import com.morlunk.mumbleclient.service.ChannelAggregateIndex;
+import com.morlunk.mumbleclient.service.IPlumbleService;
+import com.morlunk.mumbleclient.service.NameIndex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A generated server of fake channels and users, for reproducing the load of large servers.
+ *
+ * Channel 0 is the root. The tree always nests down to the configured depth, and the remaining
+ * channels and users are placed randomly. Generation is deterministic for a given seed, so
+ * benchmarks over the same configuration are comparable between runs.
+ */
+public class FakeServer {
+    private static final String[] SYLLABLES = {
+            "ka", "lo", "mir", "eth", "an", "dor", "vi", "sel", "tra", "un", "bel", "os",
+            "qua", "rin", "ze", "hal", "fen", "ix", "gor", "ul"
+    };
+
+    private final Random mRandom;
+    private final List<IChannel> mChannels;
+    private final List<IUser> mUsers;
+    private final Map<Integer, IChannel> mChannelsById;
+    private final Map<Integer, IUser> mUsersBySession;
+    /** The mutable properties of each user's fake, by session. */
+    private final Map<Integer, Map<String, Object>> mUserProperties;
+    private final ChannelAggregateIndex mAggregateIndex;
+    private final NameIndex mNameIndex;
+    private final IJumbleSession mSession;
+
+    private FakeServer(Builder builder) {
+        mRandom = new Random(builder.mSeed);
+        mChannels = new ArrayList<IChannel>(builder.mChannelCount);
+        mUsers = new ArrayList<IUser>(builder.mUserCount);
+        mChannelsById = new HashMap<Integer, IChannel>();
+        mUsersBySession = new HashMap<Integer, IUser>();
+        mUserProperties = new HashMap<Integer, Map<String, Object>>();
+        mAggregateIndex = new ChannelAggregateIndex();
+        mNameIndex = new NameIndex();
+
+        int[] depths = new int[builder.mChannelCount];
+        addChannel(0, "Root", null);
+        for (int id = 1; id < builder.mChannelCount; id++) {
+            int parentId;
+            if (id <= builder.mDepth) {
+                parentId = id - 1; // Guarantee a chain reaching the maximum depth.
+            } else {
+                parentId = mRandom.nextInt(id);
+                if (depths[parentId] >= builder.mDepth) {
+                    parentId = mChannels.get(parentId).getParent().getId();
+                }
+            }
+            depths[id] = depths[parentId] + 1;
+            addChannel(id, generateName(2), mChannelsById.get(parentId));
+        }
+
+        for (int session = 1; session <= builder.mUserCount; session++) {
+            IChannel channel = mChannels.get(mRandom.nextInt(mChannels.size()));
+            addUser(session, generateName(1) + " " + generateName(1), channel);
+        }
+
+        final IUser self = mUsers.isEmpty() ? null : mUsers.get(0);
+        mSession = JumbleFakes.create(IJumbleSession.class, new JumbleFakes.Properties()
+                .put("getRootChannel", getRootChannel())
+                .put("getSessionChannel", self != null ? self.getChannel() : getRootChannel())
+                .put("getSessionId", self != null ? self.getSession() : -1)
+                .put("getChannel", new JumbleFakes.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        return mChannelsById.get((Integer) args[0]);
+                    }
+                })
+                .put("getUser", new JumbleFakes.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        return mUsersBySession.get((Integer) args[0]);
+                    }
+                })
+                .build());
+    }
+
+    public IChannel getRootChannel() {
+        return mChannels.get(0);
+    }
+
+    public List<IChannel> getChannels() {
+        return Collections.unmodifiableList(mChannels);
+    }
+
+    public List<IUser> getUsers() {
+        return Collections.unmodifiableList(mUsers);
+    }
+
+    public IJumbleSession getSession() {
+        return mSession;
+    }
+
+    /**
+     * @return An aggregate index kept in sync with the server's channels and users.
+     */
+    public ChannelAggregateIndex getAggregateIndex() {
+        return mAggregateIndex;
+    }
+
+    /**
+     * @return A name index kept in sync with the server's channels and users.
+     */
+    public NameIndex getNameIndex() {
+        return mNameIndex;
+    }
+
+    /**
+     * @return The random number generator of the server, for picking reproducible mutations.
+     */
+    public Random getRandom() {
+        return mRandom;
+    }
+
+    /**
+     * Creates a connected service for the server.
+     */
+    public IPlumbleService createService() {
+        return JumbleFakes.create(IPlumbleService.class, new JumbleFakes.Properties()
+                .put("isConnected", true)
+                .put("getConnectionState", JumbleService.ConnectionState.CONNECTED)
+                .put("getSession", mSession)
+                .put("getAggregateIndex", mAggregateIndex)
+                .build());
+    }
+
+    /**
+     * Moves a user to another channel, as if they had joined it.
+     */
+    public void moveUser(IUser user, IChannel channel) {
+        IChannel oldChannel = user.getChannel();
+        if (oldChannel != null) {
+            oldChannel.getUsers().remove(user);
+        }
+        channel.getUsers().add(user);
+        mUserProperties.get(user.getSession()).put("getChannel", channel);
+        mAggregateIndex.updateUser(user.getSession(), channel.getId());
+    }
+
+    /**
+     * Sets the talk state of a user.
+     */
+    public void setTalkState(IUser user, TalkState talkState) {
+        mUserProperties.get(user.getSession()).put("getTalkState", talkState);
+    }
+
+    private void addChannel(int id, String name, IChannel parent) {
+        IChannel channel = JumbleFakes.create(IChannel.class, new JumbleFakes.Properties()
+                .put("getId", id)
+                .put("getName", name)
+                .put("getParent", parent)
+                .put("getSubchannels", new ArrayList<IChannel>())
+                .put("getUsers", new ArrayList<IUser>())
+                .put("getLinks", new ArrayList<IChannel>())
+                .build());
+        if (parent != null) {
+            parent.getSubchannels().add(channel);
+        }
+        mChannels.add(channel);
+        mChannelsById.put(id, channel);
+        mAggregateIndex.updateChannel(id,
+                parent != null ? parent.getId() : ChannelAggregateIndex.NO_PARENT);
+        mNameIndex.putChannel(id, name);
+    }
+
+    private void addUser(int session, String name, IChannel channel) {
+        Map<String, Object> properties = new JumbleFakes.Properties()
+                .put("getSession", session)
+                .put("getName", name)
+                .put("getChannel", channel)
+                .put("getTalkState", TalkState.PASSIVE)
+                .build();
+        IUser user = JumbleFakes.create(IUser.class, properties);
+        channel.getUsers().add(user);
+        mUsers.add(user);
+        mUsersBySession.put(session, user);
+        mUserProperties.put(session, properties);
+        mAggregateIndex.updateUser(session, channel.getId());
+        mNameIndex.putUser(session, name);
+    }
+
+    /**
+     * @return A pronounceable name of the given number of words.
+     */
+    private String generateName(int words) {
+        StringBuilder sb = new StringBuilder();
+        for (int w = 0; w < words; w++) {
+            if (w > 0) {
+                sb.append(' ');
+            }
+            int syllables = 2 + mRandom.nextInt(2);
+            for (int s = 0; s < syllables; s++) {
+                String syllable = SYLLABLES[mRandom.nextInt(SYLLABLES.length)];
+                sb.append(s == 0 ? Character.toUpperCase(syllable.charAt(0)) + syllable.substring(1)
+                        : syllable);
+            }
+        }
+        return sb.toString();
+    }
+
+    public static class Builder {
+        private int mChannelCount = 1000;
+        private int mUserCount = 5000;
+        private int mDepth = 8;
+        private long mSeed = 0;
+
+        /**
+         * @param channelCount The number of channels, including the root.
+         */
+        public Builder setChannelCount(int channelCount) {
+            mChannelCount = Math.max(channelCount, 1);
+            return this;
+        }
+
+        public Builder setUserCount(int userCount) {
+            mUserCount = userCount;
+            return this;
+        }
+
+        /**
+         * @param depth The maximum depth of a channel below the root.
+         */
+        public Builder setDepth(int depth) {
+            mDepth = Math.max(depth, 1);
+            return this;
+        }
+
+        public Builder setSeed(long seed) {
+            mSeed = seed;
+            return this;
+        }
+
+        public FakeServer build() {
+            return new FakeServer(this);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds fake implementations of Jumble's model and service interfaces for tests.
+ *
+ * Fakes are dynamic proxies backed by a map of method names to return values, so that tests only
+ * need to provide the properties they use. Unmapped methods return null, false or zero.
+ * All invocations on fakes are counted, so that tests can account for the proxy overhead.
+ */
+public class JumbleFakes {
+    private static final AtomicInteger sInvocations = new AtomicInteger();
+
+    /**
+     * Creates a fake implementation of the given interface.
+     * @param type The interface to implement.
+     * @param properties Method names mapped to the values they return. Values that implement
+     *                   {@link Answer} are invoked with the method's arguments instead.
+     */
+    public static <T> T create(Class<T> type, Map<String, Object> properties) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                new FakeHandler(properties)));
+    }
+
+    /**
+     * @return The total number of methods invoked on fakes.
+     */
+    public static int getInvocationCount() {
+        return sInvocations.get();
+    }
+
+    /**
+     * A computed property of a fake, for methods that take arguments.
+     */
+    public interface Answer {
+        Object answer(Object[] args);
+    }
+
+    /**
+     * Convenience builder for fake properties.
+     */
+    public static class Properties {
+        private final Map<String, Object> mProperties = new HashMap<String, Object>();
+
+        public Properties put(String method, Object value) {
+            mProperties.put(method, value);
+            return this;
+        }
+
+        public Map<String, Object> build() {
+            return mProperties;
+        }
+    }
+
+    private static class FakeHandler implements InvocationHandler {
+        private final Map<String, Object> mProperties;
+
+        public FakeHandler(Map<String, Object> properties) {
+            mProperties = properties;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            sInvocations.incrementAndGet();
+            String name = method.getName();
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(name)) {
+                return "Fake" + mProperties;
+            }
+
+            Object value = mProperties.get(name);
+            if (value instanceof Answer) {
+                return ((Answer) value).answer(args);
+            } else if (value != null) {
+                return value;
+            }
+
+            Class<?> returnType = method.getReturnType();
+            if (returnType == boolean.class) {
+                return Boolean.FALSE;
+            } else if (returnType == int.class) {
+                return 0;
+            } else if (returnType == long.class) {
+                return 0L;
+            } else if (returnType == float.class) {
+                return 0f;
+            } else if (returnType == double.class) {
+                return 0d;
+            }
+            return null;
+        }
+    }
+}
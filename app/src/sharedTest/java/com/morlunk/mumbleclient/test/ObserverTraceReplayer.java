@@ -0,0 +1,535 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.test;
+
+import com.morlunk.jumble.IJumbleSession;
+import com.morlunk.jumble.JumbleService;
+import com.morlunk.jumble.model.IChannel;
+import com.morlunk.jumble.model.IMessage;
+import com.morlunk.jumble.model.IUser;
+import com.morlunk.jumble.model.TalkState;
+import com.morlunk.jumble.util.IJumbleObserver;
+import com.morlunk.mumbleclient.service.ChannelAggregateIndex;
+import com.morlunk.mumbleclient.service.IPlumbleService;
+import com.morlunk.mumbleclient.util.ObserverTrace;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Replays a trace recorded by {@link com.morlunk.mumbleclient.util.ObserverTraceRecorder}
+ * against observers, with a stand-in service whose model follows the trace.
+ *
+ * The trace is parsed up front so that file I/O is not measured. Each event first updates the
+ * fake model, as Jumble does before notifying its observers, and is then dispatched to every
+ * observer registered with the stand-in service or added with {@link #addObserver}.
+ */
+public class ObserverTraceReplayer {
+    private final List<Event> mEvents;
+    private final List<IJumbleObserver> mObservers = new CopyOnWriteArrayList<IJumbleObserver>();
+    private final Map<Integer, IChannel> mChannels = new HashMap<Integer, IChannel>();
+    private final Map<Integer, Map<String, Object>> mChannelProperties =
+            new HashMap<Integer, Map<String, Object>>();
+    private final Map<Integer, IUser> mUsers = new HashMap<Integer, IUser>();
+    private final Map<Integer, Map<String, Object>> mUserProperties =
+            new HashMap<Integer, Map<String, Object>>();
+    private final ChannelAggregateIndex mAggregateIndex = new ChannelAggregateIndex();
+    private final IJumbleSession mSession;
+    private final IPlumbleService mService;
+
+    public ObserverTraceReplayer(InputStream input) throws IOException {
+        mEvents = parse(new DataInputStream(new BufferedInputStream(input)));
+        mSession = JumbleFakes.create(IJumbleSession.class, new JumbleFakes.Properties()
+                .put("getSessionId", -1)
+                .put("getRootChannel", new JumbleFakes.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        return mChannels.get(0);
+                    }
+                })
+                .put("getChannel", new JumbleFakes.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        return mChannels.get((Integer) args[0]);
+                    }
+                })
+                .put("getUser", new JumbleFakes.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        return mUsers.get((Integer) args[0]);
+                    }
+                })
+                .build());
+        mService = JumbleFakes.create(IPlumbleService.class, new JumbleFakes.Properties()
+                .put("isConnected", true)
+                .put("getConnectionState", JumbleService.ConnectionState.CONNECTED)
+                .put("getSession", mSession)
+                .put("getAggregateIndex", mAggregateIndex)
+                .put("registerObserver", new JumbleFakes.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        mObservers.add((IJumbleObserver) args[0]);
+                        return null;
+                    }
+                })
+                .put("unregisterObserver", new JumbleFakes.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        mObservers.remove(args[0]);
+                        return null;
+                    }
+                })
+                .build());
+    }
+
+    /**
+     * @return A connected service whose session reflects the trace replayed so far.
+     */
+    public IPlumbleService getService() {
+        return mService;
+    }
+
+    public int getEventCount() {
+        return mEvents.size();
+    }
+
+    /**
+     * Dispatches events to the given observer, in addition to those registered with the service.
+     */
+    public void addObserver(IJumbleObserver observer) {
+        mObservers.add(observer);
+    }
+
+    /**
+     * Replays the trace on the calling thread.
+     * @see #replay(boolean, Executor)
+     */
+    public Stats replay(boolean realTime) {
+        return replay(realTime, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    /**
+     * Replays the trace.
+     * @param realTime true to wait out the recorded delays between events, false to replay as
+     *                 fast as possible.
+     * @param dispatcher Runs the dispatch of each event, i.e. on the main thread. Must not return
+     *                   until the event has been dispatched.
+     * @return The throughput and dispatch latencies of the replay.
+     */
+    public Stats replay(boolean realTime, Executor dispatcher) {
+        final long[] latencies = new long[mEvents.size()];
+        long start = System.nanoTime();
+        long scheduledMillis = 0;
+        for (int i = 0; i < mEvents.size(); i++) {
+            final Event event = mEvents.get(i);
+            scheduledMillis += event.mDelayMillis;
+            if (realTime) {
+                long wait = scheduledMillis - (System.nanoTime() - start) / 1000000;
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            final int index = i;
+            dispatcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long dispatchStart = System.nanoTime();
+                    dispatch(event);
+                    latencies[index] = System.nanoTime() - dispatchStart;
+                }
+            });
+        }
+        return new Stats(latencies, System.nanoTime() - start);
+    }
+
+    private void dispatch(Event event) {
+        int[] ints = event.mInts;
+        String[] strings = event.mStrings;
+        switch (event.mType) {
+            case ObserverTrace.EVENT_CONNECTING:
+                mChannels.clear();
+                mChannelProperties.clear();
+                mUsers.clear();
+                mUserProperties.clear();
+                mAggregateIndex.clear();
+                for (IJumbleObserver observer : mObservers) observer.onConnecting();
+                break;
+            case ObserverTrace.EVENT_CONNECTED:
+                for (IJumbleObserver observer : mObservers) observer.onConnected();
+                break;
+            case ObserverTrace.EVENT_DISCONNECTED:
+                for (IJumbleObserver observer : mObservers) observer.onDisconnected(null);
+                break;
+            case ObserverTrace.EVENT_CHANNEL_ADDED: {
+                IChannel channel = updateChannel(ints[0], ints[1], strings[0]);
+                for (IJumbleObserver observer : mObservers) observer.onChannelAdded(channel);
+                break;
+            }
+            case ObserverTrace.EVENT_CHANNEL_STATE_UPDATED: {
+                IChannel channel = updateChannel(ints[0], ints[1], strings[0]);
+                for (IJumbleObserver observer : mObservers) observer.onChannelStateUpdated(channel);
+                break;
+            }
+            case ObserverTrace.EVENT_CHANNEL_REMOVED: {
+                IChannel channel = mChannels.remove(ints[0]);
+                if (channel == null) break;
+                mChannelProperties.remove(ints[0]);
+                if (channel.getParent() != null) {
+                    channel.getParent().getSubchannels().remove(channel);
+                }
+                mAggregateIndex.removeChannel(ints[0]);
+                for (IJumbleObserver observer : mObservers) observer.onChannelRemoved(channel);
+                break;
+            }
+            case ObserverTrace.EVENT_CHANNEL_PERMISSIONS_UPDATED: {
+                IChannel channel = mChannels.get(ints[0]);
+                if (channel == null) break;
+                for (IJumbleObserver observer : mObservers) {
+                    observer.onChannelPermissionsUpdated(channel);
+                }
+                break;
+            }
+            case ObserverTrace.EVENT_USER_CONNECTED: {
+                IUser user = updateUser(ints[0], strings[0], ints[1], ints[2]);
+                for (IJumbleObserver observer : mObservers) observer.onUserConnected(user);
+                break;
+            }
+            case ObserverTrace.EVENT_USER_STATE_UPDATED: {
+                IUser user = updateUser(ints[0], strings[0], ints[1], ints[2]);
+                for (IJumbleObserver observer : mObservers) observer.onUserStateUpdated(user);
+                break;
+            }
+            case ObserverTrace.EVENT_USER_TALK_STATE_UPDATED: {
+                IUser user = mUsers.get(ints[0]);
+                if (user == null) break;
+                TalkState talkState = ints[1] >= 0 ? TalkState.values()[ints[1]] : null;
+                mUserProperties.get(ints[0]).put("getTalkState", talkState);
+                for (IJumbleObserver observer : mObservers) observer.onUserTalkStateUpdated(user);
+                break;
+            }
+            case ObserverTrace.EVENT_USER_JOINED_CHANNEL: {
+                IUser user = mUsers.get(ints[0]);
+                IChannel newChannel = mChannels.get(ints[1]);
+                IChannel oldChannel = mChannels.get(ints[2]);
+                if (user == null || newChannel == null) break;
+                moveUser(user, newChannel);
+                for (IJumbleObserver observer : mObservers) {
+                    observer.onUserJoinedChannel(user, newChannel, oldChannel);
+                }
+                break;
+            }
+            case ObserverTrace.EVENT_USER_REMOVED: {
+                IUser user = mUsers.remove(ints[0]);
+                if (user == null) break;
+                mUserProperties.remove(ints[0]);
+                if (user.getChannel() != null) {
+                    user.getChannel().getUsers().remove(user);
+                }
+                mAggregateIndex.removeUser(ints[0]);
+                for (IJumbleObserver observer : mObservers) observer.onUserRemoved(user, strings[0]);
+                break;
+            }
+            case ObserverTrace.EVENT_MESSAGE_LOGGED: {
+                IMessage message = createMessage(ints, strings);
+                for (IJumbleObserver observer : mObservers) observer.onMessageLogged(message);
+                break;
+            }
+            case ObserverTrace.EVENT_LOG_INFO:
+                for (IJumbleObserver observer : mObservers) observer.onLogInfo(strings[0]);
+                break;
+            case ObserverTrace.EVENT_LOG_WARNING:
+                for (IJumbleObserver observer : mObservers) observer.onLogWarning(strings[0]);
+                break;
+            case ObserverTrace.EVENT_LOG_ERROR:
+                for (IJumbleObserver observer : mObservers) observer.onLogError(strings[0]);
+                break;
+            case ObserverTrace.EVENT_PERMISSION_DENIED:
+                for (IJumbleObserver observer : mObservers) observer.onPermissionDenied(strings[0]);
+                break;
+        }
+    }
+
+    private IChannel updateChannel(int id, int parentId, String name) {
+        IChannel channel = mChannels.get(id);
+        Map<String, Object> properties = mChannelProperties.get(id);
+        if (channel == null) {
+            properties = new JumbleFakes.Properties()
+                    .put("getId", id)
+                    .put("getSubchannels", new ArrayList<IChannel>())
+                    .put("getUsers", new ArrayList<IUser>())
+                    .put("getLinks", new ArrayList<IChannel>())
+                    .build();
+            channel = JumbleFakes.create(IChannel.class, properties);
+            mChannels.put(id, channel);
+            mChannelProperties.put(id, properties);
+        }
+        properties.put("getName", name);
+        IChannel oldParent = channel.getParent();
+        IChannel parent = mChannels.get(parentId);
+        if (oldParent != parent) {
+            if (oldParent != null) {
+                oldParent.getSubchannels().remove(channel);
+            }
+            if (parent != null) {
+                parent.getSubchannels().add(channel);
+            }
+            properties.put("getParent", parent);
+        }
+        mAggregateIndex.updateChannel(id, parent != null ? parent.getId() :
+                ChannelAggregateIndex.NO_PARENT);
+        return channel;
+    }
+
+    private IUser updateUser(int session, String name, int channelId, int flags) {
+        IUser user = mUsers.get(session);
+        Map<String, Object> properties = mUserProperties.get(session);
+        if (user == null) {
+            properties = new JumbleFakes.Properties()
+                    .put("getSession", session)
+                    .build();
+            user = JumbleFakes.create(IUser.class, properties);
+            mUsers.put(session, user);
+            mUserProperties.put(session, properties);
+        }
+        properties.put("getName", name);
+        properties.put("isMuted", (flags & ObserverTrace.USER_FLAG_MUTED) != 0);
+        properties.put("isDeafened", (flags & ObserverTrace.USER_FLAG_DEAFENED) != 0);
+        properties.put("isSelfMuted", (flags & ObserverTrace.USER_FLAG_SELF_MUTED) != 0);
+        properties.put("isSelfDeafened", (flags & ObserverTrace.USER_FLAG_SELF_DEAFENED) != 0);
+        properties.put("isSuppressed", (flags & ObserverTrace.USER_FLAG_SUPPRESSED) != 0);
+        IChannel channel = mChannels.get(channelId);
+        if (channel != null) {
+            moveUser(user, channel);
+        }
+        return user;
+    }
+
+    private void moveUser(IUser user, IChannel channel) {
+        IChannel oldChannel = user.getChannel();
+        if (oldChannel != channel) {
+            if (oldChannel != null) {
+                oldChannel.getUsers().remove(user);
+            }
+            channel.getUsers().add(user);
+            mUserProperties.get(user.getSession()).put("getChannel", channel);
+        }
+        updateAggregateUser(user);
+    }
+
+    private void updateAggregateUser(IUser user) {
+        if (user.getChannel() != null) {
+            mAggregateIndex.updateUser(user.getSession(), user.getChannel().getId());
+        }
+    }
+
+    private IMessage createMessage(int[] ints, String[] strings) {
+        // Fields: actor, then counted lists of target channels, trees and users.
+        int position = 1;
+        List<IChannel> channels = new ArrayList<IChannel>();
+        for (int count = ints[position++]; count > 0; count--) {
+            IChannel channel = mChannels.get(ints[position++]);
+            if (channel != null) channels.add(channel);
+        }
+        List<IChannel> trees = new ArrayList<IChannel>();
+        for (int count = ints[position++]; count > 0; count--) {
+            IChannel channel = mChannels.get(ints[position++]);
+            if (channel != null) trees.add(channel);
+        }
+        List<IUser> users = new ArrayList<IUser>();
+        for (int count = ints[position++]; count > 0; count--) {
+            IUser user = mUsers.get(ints[position++]);
+            if (user != null) users.add(user);
+        }
+        return JumbleFakes.create(IMessage.class, new JumbleFakes.Properties()
+                .put("getActor", ints[0])
+                .put("getActorName", strings[0])
+                .put("getMessage", strings[1])
+                .put("getReceivedTime", System.currentTimeMillis())
+                .put("getTargetChannels", channels)
+                .put("getTargetTrees", trees)
+                .put("getTargetUsers", users)
+                .build());
+    }
+
+    private static List<Event> parse(DataInputStream in) throws IOException {
+        if (in.readInt() != ObserverTrace.MAGIC) {
+            throw new IOException("Not an observer trace");
+        }
+        int version = ObserverTrace.readInt(in);
+        if (version != ObserverTrace.VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+        }
+
+        List<Event> events = new ArrayList<Event>();
+        while (true) {
+            int type = in.read();
+            if (type < 0) {
+                break;
+            }
+            int delay = ObserverTrace.readInt(in);
+            Event event;
+            try {
+                event = parseEvent(type, delay, in);
+            } catch (EOFException e) {
+                break; // The recording was cut off mid-record.
+            }
+            events.add(event);
+        }
+        return events;
+    }
+
+    private static Event parseEvent(int type, int delay, DataInputStream in) throws IOException {
+        switch (type) {
+            case ObserverTrace.EVENT_CONNECTING:
+            case ObserverTrace.EVENT_CONNECTED:
+                return new Event(type, delay, new int[0], new String[0]);
+            case ObserverTrace.EVENT_DISCONNECTED:
+            case ObserverTrace.EVENT_LOG_INFO:
+            case ObserverTrace.EVENT_LOG_WARNING:
+            case ObserverTrace.EVENT_LOG_ERROR:
+            case ObserverTrace.EVENT_PERMISSION_DENIED:
+                return new Event(type, delay, new int[0],
+                        new String[] { ObserverTrace.readString(in) });
+            case ObserverTrace.EVENT_CHANNEL_ADDED:
+            case ObserverTrace.EVENT_CHANNEL_STATE_UPDATED: {
+                int[] ints = { ObserverTrace.readInt(in), ObserverTrace.readInt(in) };
+                return new Event(type, delay, ints, new String[] { ObserverTrace.readString(in) });
+            }
+            case ObserverTrace.EVENT_CHANNEL_REMOVED:
+            case ObserverTrace.EVENT_CHANNEL_PERMISSIONS_UPDATED:
+                return new Event(type, delay, new int[] { ObserverTrace.readInt(in) },
+                        new String[0]);
+            case ObserverTrace.EVENT_USER_CONNECTED:
+            case ObserverTrace.EVENT_USER_STATE_UPDATED: {
+                int session = ObserverTrace.readInt(in);
+                String name = ObserverTrace.readString(in);
+                int[] ints = { session, ObserverTrace.readInt(in), ObserverTrace.readInt(in) };
+                return new Event(type, delay, ints, new String[] { name });
+            }
+            case ObserverTrace.EVENT_USER_TALK_STATE_UPDATED:
+                return new Event(type, delay,
+                        new int[] { ObserverTrace.readInt(in), ObserverTrace.readInt(in) },
+                        new String[0]);
+            case ObserverTrace.EVENT_USER_JOINED_CHANNEL:
+                return new Event(type, delay, new int[] { ObserverTrace.readInt(in),
+                        ObserverTrace.readInt(in), ObserverTrace.readInt(in) }, new String[0]);
+            case ObserverTrace.EVENT_USER_REMOVED: {
+                int session = ObserverTrace.readInt(in);
+                return new Event(type, delay, new int[] { session },
+                        new String[] { ObserverTrace.readString(in) });
+            }
+            case ObserverTrace.EVENT_MESSAGE_LOGGED: {
+                int actor = ObserverTrace.readInt(in);
+                String[] strings = { ObserverTrace.readString(in), ObserverTrace.readString(in) };
+                List<Integer> ints = new ArrayList<Integer>();
+                ints.add(actor);
+                for (int list = 0; list < 3; list++) {
+                    int count = ObserverTrace.readInt(in);
+                    ints.add(count);
+                    for (int i = 0; i < count; i++) {
+                        ints.add(ObserverTrace.readInt(in));
+                    }
+                }
+                int[] fields = new int[ints.size()];
+                for (int i = 0; i < fields.length; i++) {
+                    fields[i] = ints.get(i);
+                }
+                return new Event(type, delay, fields, strings);
+            }
+            default:
+                throw new IOException("Unknown event " + type);
+        }
+    }
+
+    private static class Event {
+        private final int mType;
+        private final int mDelayMillis;
+        private final int[] mInts;
+        private final String[] mStrings;
+
+        public Event(int type, int delayMillis, int[] ints, String[] strings) {
+            mType = type;
+            mDelayMillis = delayMillis;
+            mInts = ints;
+            mStrings = strings;
+        }
+    }
+
+    /**
+     * The results of a replay.
+     */
+    public static class Stats {
+        private final long[] mLatencies;
+        private final long mElapsedNanos;
+
+        private Stats(long[] latencies, long elapsedNanos) {
+            mLatencies = latencies.clone();
+            Arrays.sort(mLatencies);
+            mElapsedNanos = elapsedNanos;
+        }
+
+        public int getEventCount() {
+            return mLatencies.length;
+        }
+
+        public double getEventsPerSecond() {
+            return mLatencies.length * 1e9 / mElapsedNanos;
+        }
+
+        /**
+         * @param percentile The percentile of dispatch latency to return, from 0 to 100.
+         * @return The time taken to dispatch an event to all observers, in nanoseconds.
+         */
+        public long getLatencyNanos(double percentile) {
+            if (mLatencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * mLatencies.length) - 1;
+            return mLatencies[Math.max(0, Math.min(index, mLatencies.length - 1))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d events, %.1f events/s, dispatch p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+                    getEventCount(), getEventsPerSecond(), getLatencyNanos(50) / 1e6,
+                    getLatencyNanos(99) / 1e6, getLatencyNanos(100) / 1e6);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.channel;
+
+import android.content.Context;
+import android.support.v7.widget.RecyclerView;
+import android.util.SparseArray;
+import android.view.ContextThemeWrapper;
+import android.widget.FrameLayout;
+
+import com.morlunk.jumble.model.IChannel;
+import com.morlunk.jumble.model.IUser;
+import com.morlunk.mumbleclient.R;
+import com.morlunk.mumbleclient.test.Benchmark;
+import com.morlunk.mumbleclient.test.FakeServer;
+import com.morlunk.mumbleclient.util.ModelUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Benchmarks building, diffing and binding the channel list of a large server.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ChannelListBenchmark {
+    /** Time to wait for the adapter to build its first tree, in ms. */
+    private static final long BUILD_TIMEOUT = 30000;
+
+    private FakeServer mServer;
+    private FlattenedChannelTree<ChannelListAdapter.Node> mTree;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Benchmark.isEnabled());
+        mServer = new FakeServer.Builder().build();
+    }
+
+    @Test
+    public void benchmarkBuild() throws Exception {
+        Benchmark.run("ChannelTreeBuilder.build", new Benchmark.Operation() {
+            @Override
+            public void run() {
+                assertNotNull(newBuilder().build());
+            }
+        });
+    }
+
+    /**
+     * Measures the work done by {@link ChannelListAdapter#updateChannels()} after a user moves:
+     * building the new tree and diffing it against the previous one.
+     */
+    @Test
+    public void benchmarkUpdateAfterUserMove() throws Exception {
+        mTree = newBuilder().build();
+        final ChannelTreeDiff.Callback callback = new ChannelTreeDiff.Callback() {
+            @Override
+            public void onInserted(int position, int count) {}
+
+            @Override
+            public void onRemoved(int position, int count) {}
+
+            @Override
+            public void onMoved(int fromPosition, int toPosition) {}
+
+            @Override
+            public void onChanged(int position, int count) {}
+
+            @Override
+            public void onDataSetChanged() {}
+        };
+        final List<IUser> users = mServer.getUsers();
+        final List<IChannel> channels = mServer.getChannels();
+        Benchmark.run("ChannelListAdapter.updateChannels", new Benchmark.Operation() {
+            @Override
+            public void run() {
+                mServer.moveUser(users.get(mServer.getRandom().nextInt(users.size())),
+                        channels.get(mServer.getRandom().nextInt(channels.size())));
+                FlattenedChannelTree<ChannelListAdapter.Node> newTree = newBuilder().build();
+                mTree.dispatchDiff(newTree, callback);
+                mTree = newTree;
+            }
+        });
+    }
+
+    @Test
+    public void benchmarkBind() throws Exception {
+        Context context = new ContextThemeWrapper(RuntimeEnvironment.application,
+                R.style.Theme_Plumble);
+        final ChannelListAdapter adapter = new ChannelListAdapter(context,
+                mServer.createService(), null, null, false, true);
+        long deadline = System.currentTimeMillis() + BUILD_TIMEOUT;
+        while (adapter.getItemCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            Robolectric.flushForegroundThreadScheduler();
+        }
+        assertTrue("Channel tree was not built in time", adapter.getItemCount() > 0);
+
+        // Bind every row in turn, reusing one holder per view type as a recycler would.
+        final FrameLayout parent = new FrameLayout(context);
+        final SparseArray<RecyclerView.ViewHolder> holders =
+                new SparseArray<RecyclerView.ViewHolder>();
+        final int[] position = { 0 };
+        Benchmark.run("ChannelListAdapter.onBindViewHolder", new Benchmark.Operation() {
+            @Override
+            public void run() {
+                int viewType = adapter.getItemViewType(position[0]);
+                RecyclerView.ViewHolder holder = holders.get(viewType);
+                if (holder == null) {
+                    holder = adapter.onCreateViewHolder(parent, viewType);
+                    holders.put(viewType, holder);
+                }
+                adapter.onBindViewHolder(holder, position[0]);
+                position[0] = (position[0] + 1) % adapter.getItemCount();
+            }
+        });
+    }
+
+    @Test
+    public void benchmarkGetChannelList() throws Exception {
+        final IChannel root = mServer.getRootChannel();
+        Benchmark.run("ModelUtils.getChannelList", new Benchmark.Operation() {
+            @Override
+            public void run() {
+                ModelUtils.getChannelList(root);
+            }
+        });
+    }
+
+    private ChannelTreeBuilder newBuilder() {
+        return new ChannelTreeBuilder(mServer.getSession(), mServer.getAggregateIndex(),
+                Collections.singletonList(0), new HashMap<Integer, Boolean>(),
+                mServer.getChannels().size() + mServer.getUsers().size());
+    }
+}
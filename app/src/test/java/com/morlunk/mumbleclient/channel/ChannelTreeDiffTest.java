@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.channel;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that applying the operations dispatched by {@link ChannelTreeDiff} to the old list, in
+ * order, yields the new list.
+ */
+public class ChannelTreeDiffTest {
+
+    @Test
+    public void testSimpleEdits() {
+        assertDiff(new long[]{1, 2, 3, 4}, new long[]{1, 3, 4});
+        assertDiff(new long[]{1, 2, 3}, new long[]{0, 1, 2, 5, 3, 6});
+        assertDiff(new long[]{1, 2, 3}, new long[]{2, 3, 1});
+        assertDiff(new long[]{1, 2, 3}, new long[]{3, 1, 2});
+        assertDiff(new long[]{1, 2, 3, 4, 5}, new long[]{5, 7, 3, 1});
+        assertDiff(new long[]{}, new long[]{1, 2});
+        assertDiff(new long[]{1, 2}, new long[]{});
+    }
+
+    @Test
+    public void testRandomEdits() {
+        Random random = new Random(0);
+        for (int trial = 0; trial < 500; trial++) {
+            int size = random.nextInt(200);
+            List<Long> oldIds = new ArrayList<Long>();
+            for (long id = 0; id < size; id++) {
+                oldIds.add(id);
+            }
+            List<Long> newIds = new ArrayList<Long>(oldIds);
+            int edits = random.nextInt(20);
+            for (int i = 0; i < edits && !newIds.isEmpty(); i++) {
+                switch (random.nextInt(3)) {
+                    case 0:
+                        newIds.remove(random.nextInt(newIds.size()));
+                        break;
+                    case 1:
+                        newIds.add(random.nextInt(newIds.size() + 1), 1000L + trial * 100 + i);
+                        break;
+                    default:
+                        Long moved = newIds.remove(random.nextInt(newIds.size()));
+                        newIds.add(random.nextInt(newIds.size() + 1), moved);
+                        break;
+                }
+            }
+            assertDiff(toArray(oldIds), toArray(newIds));
+        }
+    }
+
+    @Test
+    public void testManyMovesResetList() {
+        int size = ChannelTreeDiff.MAX_MOVES * 4;
+        long[] oldIds = new long[size];
+        long[] newIds = new long[size];
+        for (int i = 0; i < size; i++) {
+            oldIds[i] = i;
+            newIds[i] = size - i - 1;
+        }
+        RecordingCallback callback = diff(oldIds, newIds);
+        assertTrue(callback.mReset);
+        assertEquals(1, callback.mOperations);
+    }
+
+    private static void assertDiff(long[] oldIds, long[] newIds) {
+        RecordingCallback callback = diff(oldIds, newIds);
+        assertFalse(callback.mReset);
+
+        Set<Long> oldIdSet = new HashSet<Long>();
+        for (long id : oldIds) {
+            oldIdSet.add(id);
+        }
+        assertEquals(newIds.length, callback.mRows.size());
+        for (int i = 0; i < newIds.length; i++) {
+            Long row = callback.mRows.get(i);
+            if (oldIdSet.contains(newIds[i])) {
+                assertEquals(Long.valueOf(newIds[i]), row);
+                // Odd ids change content, and only they are reported as changed.
+                assertEquals(newIds[i] % 2 == 1, callback.mChanged.get(i));
+            } else {
+                assertNull(row);
+                assertFalse(callback.mChanged.get(i));
+            }
+        }
+    }
+
+    /**
+     * Diffs the given lists, where rows with odd ids have new content.
+     */
+    private static RecordingCallback diff(long[] oldIds, long[] newIds) {
+        int[] oldHashes = new int[oldIds.length];
+        int[] newHashes = new int[newIds.length];
+        for (int i = 0; i < newIds.length; i++) {
+            newHashes[i] = (int) (newIds[i] % 2);
+        }
+        RecordingCallback callback = new RecordingCallback(oldIds);
+        ChannelTreeDiff.dispatch(oldIds, oldHashes, oldIds.length,
+                newIds, newHashes, newIds.length, callback);
+        return callback;
+    }
+
+    private static long[] toArray(List<Long> ids) {
+        long[] array = new long[ids.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = ids.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Applies operations to a copy of the old list, as a RecyclerView would. Inserted rows have
+     * no id.
+     */
+    private static class RecordingCallback implements ChannelTreeDiff.Callback {
+        private final List<Long> mRows = new ArrayList<Long>();
+        private final List<Boolean> mChanged = new ArrayList<Boolean>();
+        private boolean mReset;
+        private int mOperations;
+
+        public RecordingCallback(long[] oldIds) {
+            for (long id : oldIds) {
+                mRows.add(id);
+                mChanged.add(false);
+            }
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            mOperations++;
+            mRows.addAll(position, Collections.<Long>nCopies(count, null));
+            mChanged.addAll(position, Collections.nCopies(count, false));
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            mOperations++;
+            mRows.subList(position, position + count).clear();
+            mChanged.subList(position, position + count).clear();
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            mOperations++;
+            mRows.add(toPosition, mRows.remove(fromPosition));
+            mChanged.add(toPosition, mChanged.remove(fromPosition));
+        }
+
+        @Override
+        public void onChanged(int position, int count) {
+            mOperations++;
+            for (int i = position; i < position + count; i++) {
+                assertFalse("Row changed twice", mChanged.get(i));
+                mChanged.set(i, true);
+            }
+        }
+
+        @Override
+        public void onDataSetChanged() {
+            mOperations++;
+            mReset = true;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.db;
+
+import android.content.ContentValues;
+
+import com.morlunk.mumbleclient.service.IChatMessage;
+import com.morlunk.mumbleclient.util.InlineImageStore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.morlunk.mumbleclient.service.IChatMessage.TextMessage.TargetType.CHANNEL;
+import static com.morlunk.mumbleclient.service.IChatMessage.TextMessage.TargetType.NONE;
+import static com.morlunk.mumbleclient.service.IChatMessage.TextMessage.UNKNOWN_ID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests appending to and paging back through the chat history.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ChatHistoryDatabaseTest {
+    private static final long SERVER_ID = 1;
+    private static final long OTHER_SERVER_ID = 2;
+
+    private ChatHistoryDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDatabase = new ChatHistoryDatabase(RuntimeEnvironment.application, "chat_history_test.db");
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+        RuntimeEnvironment.application.deleteDatabase("chat_history_test.db");
+    }
+
+    @Test
+    public void testPaging() {
+        // Messages received in the same millisecond must neither be skipped nor repeated.
+        long time = System.currentTimeMillis();
+        List<ContentValues> rows = new ArrayList<ContentValues>();
+        for (int i = 0; i < 10; i++) {
+            rows.add(ChatHistoryDatabase.toValues(SERVER_ID, new IChatMessage.TextMessage(
+                    1, "Alice", i % 2 == 0 ? CHANNEL : NONE, i % 2 == 0 ? 0 : UNKNOWN_ID,
+                    i % 2 == 0 ? "Lobby" : null, "Message " + i, time)));
+        }
+        rows.add(ChatHistoryDatabase.toValues(OTHER_SERVER_ID, new IChatMessage.InfoMessage(
+                IChatMessage.InfoMessage.Type.INFO, "Elsewhere", time)));
+        mDatabase.insertMessages(rows);
+
+        ChatHistoryDatabase.Page page = mDatabase.getMessagesBefore(SERVER_ID, Long.MAX_VALUE, 4);
+        assertEquals(4, page.getMessages().size());
+        assertEquals("Message 6", page.getMessages().get(0).getBody());
+        assertEquals("Message 9", page.getMessages().get(3).getBody());
+
+        page = mDatabase.getMessagesBefore(SERVER_ID, page.getFirstId(), 4);
+        assertEquals("Message 2", page.getMessages().get(0).getBody());
+        assertEquals("Message 5", page.getMessages().get(3).getBody());
+        IChatMessage.TextMessage message = (IChatMessage.TextMessage) page.getMessages().get(0);
+        assertEquals("Alice", message.getActorName());
+        assertEquals(CHANNEL, message.getTargetType());
+        assertEquals("Lobby", message.getTargetName());
+        // IDs from an earlier session are not restored.
+        assertEquals(UNKNOWN_ID, message.getActor());
+        assertEquals(UNKNOWN_ID, message.getTargetId());
+        assertEquals(time, message.getReceivedTime());
+
+        page = mDatabase.getMessagesBefore(SERVER_ID, page.getFirstId(), 4);
+        assertEquals(2, page.getMessages().size());
+        assertEquals("Message 0", page.getMessages().get(0).getBody());
+    }
+
+    @Test
+    public void testPruning() {
+        long time = System.currentTimeMillis();
+        List<ContentValues> rows = new ArrayList<ContentValues>();
+        rows.add(ChatHistoryDatabase.toValues(SERVER_ID, new IChatMessage.InfoMessage(
+                IChatMessage.InfoMessage.Type.INFO, "Expired",
+                time - ChatHistoryDatabase.MAX_MESSAGE_AGE - 1)));
+        for (int i = 0; i < ChatHistoryDatabase.MAX_MESSAGES_PER_SERVER + 5; i++) {
+            rows.add(ChatHistoryDatabase.toValues(SERVER_ID, new IChatMessage.InfoMessage(
+                    IChatMessage.InfoMessage.Type.INFO, "Message " + i, time)));
+        }
+        rows.add(ChatHistoryDatabase.toValues(OTHER_SERVER_ID, new IChatMessage.InfoMessage(
+                IChatMessage.InfoMessage.Type.INFO, "Elsewhere", time)));
+        mDatabase.insertMessages(rows);
+
+        List<IChatMessage> messages = mDatabase.getMessagesBefore(SERVER_ID, Long.MAX_VALUE,
+                Integer.MAX_VALUE).getMessages();
+        assertEquals(ChatHistoryDatabase.MAX_MESSAGES_PER_SERVER, messages.size());
+        assertEquals("Message 5", messages.get(0).getBody());
+        assertEquals(1, mDatabase.getMessagesBefore(OTHER_SERVER_ID, Long.MAX_VALUE, 10)
+                .getMessages().size());
+    }
+
+    @Test
+    public void testInfoMessagesAndRemoval() {
+        long time = System.currentTimeMillis();
+        List<ContentValues> rows = new ArrayList<ContentValues>();
+        rows.add(ChatHistoryDatabase.toValues(SERVER_ID, new IChatMessage.InfoMessage(
+                IChatMessage.InfoMessage.Type.WARNING, "Warning", time)));
+        rows.add(ChatHistoryDatabase.toValues(OTHER_SERVER_ID, new IChatMessage.InfoMessage(
+                IChatMessage.InfoMessage.Type.ERROR, "Error", time)));
+        mDatabase.insertMessages(rows);
+
+        List<IChatMessage> page = mDatabase.getMessagesBefore(OTHER_SERVER_ID, Long.MAX_VALUE, 10)
+                .getMessages();
+        assertEquals(1, page.size());
+        assertEquals(IChatMessage.InfoMessage.Type.ERROR,
+                ((IChatMessage.InfoMessage) page.get(0)).getType());
+
+        mDatabase.removeMessages(SERVER_ID);
+        assertTrue(mDatabase.getMessagesBefore(SERVER_ID, Long.MAX_VALUE, 10).getMessages().isEmpty());
+        assertEquals(1, mDatabase.getMessagesBefore(OTHER_SERVER_ID, Long.MAX_VALUE, 10)
+                .getMessages().size());
+    }
+
+    @Test
+    public void testImageReferences() {
+        String key = "0123456789abcdef0123456789abcdef01234567";
+        String body = "<img src=\"" + InlineImageStore.SCHEME + key + "\"/>";
+        long time = System.currentTimeMillis();
+        List<ContentValues> rows = new ArrayList<ContentValues>();
+        rows.add(ChatHistoryDatabase.toValues(SERVER_ID, new IChatMessage.InfoMessage(
+                IChatMessage.InfoMessage.Type.INFO, body, time)));
+        rows.add(ChatHistoryDatabase.toValues(OTHER_SERVER_ID, new IChatMessage.InfoMessage(
+                IChatMessage.InfoMessage.Type.INFO, body, time)));
+        mDatabase.insertMessages(rows);
+        assertEquals(Collections.singleton(key), mDatabase.getImageKeys());
+
+        // The image is kept while any row refers to it.
+        mDatabase.removeMessages(SERVER_ID);
+        assertEquals(Collections.singleton(key), mDatabase.getImageKeys());
+        mDatabase.removeMessages(OTHER_SERVER_ID);
+        assertFalse(mDatabase.getImageKeys().contains(key));
+    }
+}
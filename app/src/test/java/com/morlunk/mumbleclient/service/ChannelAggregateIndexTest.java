@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that subtree user counts follow channels and users as they are added, moved and removed.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ChannelAggregateIndexTest {
+    private static final int ROOT = 0;
+    private static final int LOBBY = 1;
+    private static final int AFK = 2;
+    private static final int GAMES = 3;
+
+    private ChannelAggregateIndex mIndex;
+
+    @Before
+    public void setUp() {
+        // Root -> Lobby -> Games, and Root -> AFK.
+        mIndex = new ChannelAggregateIndex();
+        mIndex.updateChannel(ROOT, ChannelAggregateIndex.NO_PARENT);
+        mIndex.updateChannel(LOBBY, ROOT);
+        mIndex.updateChannel(AFK, ROOT);
+        mIndex.updateChannel(GAMES, LOBBY);
+    }
+
+    @Test
+    public void testAddAndMoveUsers() {
+        mIndex.updateUser(1, GAMES);
+        mIndex.updateUser(2, LOBBY);
+        mIndex.updateUser(3, AFK);
+        assertCounts(3, 2, 1, 1);
+
+        // Updating a user in the same channel changes nothing.
+        mIndex.updateUser(1, GAMES);
+        assertCounts(3, 2, 1, 1);
+
+        mIndex.updateUser(1, AFK);
+        assertCounts(3, 1, 2, 0);
+
+        mIndex.removeUser(3);
+        mIndex.removeUser(3);
+        assertCounts(2, 1, 1, 0);
+    }
+
+    @Test
+    public void testMoveChannel() {
+        mIndex.updateUser(1, GAMES);
+        mIndex.updateUser(2, GAMES);
+        mIndex.updateChannel(GAMES, AFK);
+        assertCounts(2, 0, 2, 2);
+    }
+
+    @Test
+    public void testRemoveChannel() {
+        mIndex.updateUser(1, GAMES);
+        mIndex.updateUser(2, LOBBY);
+        mIndex.removeChannel(LOBBY);
+        assertEquals(0, mIndex.getUserCount(ROOT));
+        assertEquals(0, mIndex.getUserCount(LOBBY));
+        assertEquals(1, mIndex.getUserCount(GAMES));
+
+        // Users of a detached subchannel no longer count towards the removed channel's parents.
+        mIndex.updateUser(3, GAMES);
+        assertEquals(0, mIndex.getUserCount(ROOT));
+        assertEquals(0, mIndex.getUserCount(LOBBY));
+        assertEquals(2, mIndex.getUserCount(GAMES));
+
+        // Once moved under another channel, they are counted again.
+        mIndex.updateChannel(GAMES, AFK);
+        assertEquals(2, mIndex.getUserCount(AFK));
+        assertEquals(2, mIndex.getUserCount(ROOT));
+    }
+
+    @Test
+    public void testClear() {
+        mIndex.updateUser(1, GAMES);
+        mIndex.clear();
+        assertEquals(0, mIndex.getUserCount(ROOT));
+        assertEquals(0, mIndex.getUserCount(GAMES));
+    }
+
+    private void assertCounts(int root, int lobby, int afk, int games) {
+        assertEquals(root, mIndex.getUserCount(ROOT));
+        assertEquals(lobby, mIndex.getUserCount(LOBBY));
+        assertEquals(afk, mIndex.getUserCount(AFK));
+        assertEquals(games, mIndex.getUserCount(GAMES));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests eviction, accounting and change notification of the bounded chat log.
+ */
+public class MessageLogTest {
+
+    @Test
+    public void testCountBudget() {
+        MessageLog log = new MessageLog(3, Integer.MAX_VALUE);
+        for (int i = 0; i < 5; i++) {
+            log.add(info("Message " + i));
+        }
+        assertEquals(3, log.size());
+        assertEquals("Message 2", log.get(0).getBody());
+        assertEquals("Message 4", log.get(2).getBody());
+    }
+
+    @Test
+    public void testByteBudget() {
+        IChatMessage message = info("0123456789");
+        int bytes = MessageLog.estimateSize(message);
+        MessageLog log = new MessageLog(100, bytes * 2);
+        log.add(message);
+        log.add(info("0123456789"));
+        log.add(info("0123456789"));
+        assertEquals(2, log.size());
+        assertEquals(bytes * 2, log.getByteCount());
+
+        // Messages larger than the budget are kept, alone.
+        log.add(info(new String(new char[bytes])));
+        assertEquals(1, log.size());
+    }
+
+    @Test
+    public void testClear() {
+        MessageLog log = new MessageLog(3, Integer.MAX_VALUE);
+        log.add(info("A"));
+        log.add(info("B"));
+        assertEquals(2, log.size());
+        assertEquals("B", log.get(1).getBody());
+
+        log.clear();
+        assertEquals(0, log.size());
+        assertEquals(0, log.getByteCount());
+    }
+
+    @Test
+    public void testSequences() {
+        MessageLog log = new MessageLog(3, Integer.MAX_VALUE);
+        log.add(info("A"));
+        assertEquals(-1, log.getOldestSequence());
+        // The server is saved mid-session.
+        log.add(info("B"), 7);
+        log.add(info("C"), 8);
+        assertEquals(-1, log.getSequence(0));
+        assertEquals(7, log.getOldestSequence());
+
+        // Evicting the unsaved message leaves the oldest saved one in place.
+        log.add(info("D"), 9);
+        assertEquals(7, log.getSequence(0));
+        assertEquals(7, log.getOldestSequence());
+        log.add(info("E"), 10);
+        assertEquals(8, log.getOldestSequence());
+
+        log.clear();
+        assertEquals(-1, log.getOldestSequence());
+    }
+
+    @Test
+    public void testListener() {
+        final MessageLog log = new MessageLog(2, Integer.MAX_VALUE);
+        final List<String> events = new ArrayList<String>();
+        log.addListener(new MessageLog.Listener() {
+            @Override
+            public void onMessageAppended(int position) {
+                events.add("append " + position);
+            }
+
+            @Override
+            public void onMessagesEvicting(int count) {
+                // The messages being evicted can still be read.
+                events.add("evict " + count + " " + log.get(0).getBody());
+            }
+
+            @Override
+            public void onMessagesCleared() {
+                events.add("clear");
+            }
+        });
+        log.add(info("A"));
+        log.add(info("B"));
+        log.add(info("C"));
+        assertEquals("B", log.get(0).getBody());
+        assertEquals("C", log.get(1).getBody());
+        log.clear();
+        assertEquals(Arrays.asList("append 0", "append 1", "evict 1 A", "append 1", "clear"), events);
+    }
+
+    private static IChatMessage info(String body) {
+        return new IChatMessage.InfoMessage(IChatMessage.InfoMessage.Type.INFO, body);
+    }
+}
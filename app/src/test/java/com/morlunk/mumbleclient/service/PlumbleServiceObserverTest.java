@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.service;
+
+import com.morlunk.jumble.model.IChannel;
+import com.morlunk.jumble.model.IUser;
+import com.morlunk.mumbleclient.test.FakeServer;
+import com.morlunk.mumbleclient.test.ObserverTraceReplayer;
+import com.morlunk.mumbleclient.util.ObserverTraceRecorder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.ServiceController;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a recorded observer trace against the service's own observer, and checks that the
+ * service's indexes and chat log follow the session.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PlumbleServiceObserverTest {
+    private FakeServer mServer;
+    private ServiceController<PlumbleService> mController;
+    private PlumbleService mService;
+
+    @Before
+    public void setUp() {
+        mServer = new FakeServer.Builder()
+                .setChannelCount(20)
+                .setUserCount(50)
+                .setDepth(3)
+                .build();
+        mController = Robolectric.buildService(PlumbleService.class).create();
+        mService = mController.get();
+    }
+
+    @After
+    public void tearDown() {
+        mController.destroy();
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ObserverTraceRecorder recorder = new ObserverTraceRecorder(output);
+        for (IChannel channel : mServer.getChannels()) {
+            recorder.onChannelAdded(channel);
+        }
+        for (IUser user : mServer.getUsers()) {
+            recorder.onUserConnected(user);
+        }
+        IUser movedUser = mServer.getUsers().get(0);
+        IChannel oldChannel = movedUser.getChannel();
+        IChannel newChannel = mServer.getChannels().get(5);
+        mServer.moveUser(movedUser, newChannel);
+        recorder.onUserJoinedChannel(movedUser, newChannel, oldChannel);
+        IUser removedUser = mServer.getUsers().get(1);
+        recorder.onUserRemoved(removedUser, "Bye");
+        recorder.onLogInfo("Info");
+        recorder.close();
+        assertTrue(recorder.awaitTermination(5, TimeUnit.SECONDS));
+
+        ObserverTraceReplayer replayer = new ObserverTraceReplayer(
+                new ByteArrayInputStream(output.toByteArray()));
+        replayer.addObserver(mService.getObserver());
+        replayer.replay(false);
+
+        // Every channel's subtree count must match the model, less the removed user.
+        ChannelAggregateIndex index = mService.getAggregateIndex();
+        Set<Integer> removedFrom = new HashSet<Integer>();
+        for (IChannel c = removedUser.getChannel(); c != null; c = c.getParent()) {
+            removedFrom.add(c.getId());
+        }
+        for (IChannel channel : mServer.getChannels()) {
+            int expected = mServer.getAggregateIndex().getUserCount(channel.getId());
+            if (removedFrom.contains(channel.getId())) {
+                expected--;
+            }
+            assertEquals("Users in channel " + channel.getId(), expected,
+                    index.getUserCount(channel.getId()));
+        }
+
+        MessageLog log = mService.getMessageLog();
+        assertEquals(1, log.size());
+        assertEquals("Info", log.get(0).getBody());
+    }
+}
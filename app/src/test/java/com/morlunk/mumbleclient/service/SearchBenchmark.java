@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.service;
+
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.morlunk.jumble.model.IUser;
+import com.morlunk.mumbleclient.channel.ChannelSearchProvider;
+import com.morlunk.mumbleclient.test.Benchmark;
+import com.morlunk.mumbleclient.test.FakeServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Benchmarks search suggestions over the channels and users of a large server.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SearchBenchmark {
+    private static final Uri SUGGEST_URI = Uri.parse(
+            "content://com.morlunk.mumbleclient.channel.ChannelSearchProvider/search_suggest_query");
+
+    private FakeServer mServer;
+    private SearchIndex mSearchIndex;
+    /** Queries as typed, one keystroke at a time, for a sample of user names. */
+    private List<String> mQueries;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Benchmark.isEnabled());
+        mServer = new FakeServer.Builder().build();
+        mSearchIndex = new SearchIndex(mServer.getNameIndex(), mServer.getAggregateIndex());
+        SearchIndex.publish(mSearchIndex);
+
+        mQueries = new ArrayList<String>();
+        List<IUser> users = mServer.getUsers();
+        for (int i = 0; i < 100; i++) {
+            String name = users.get(mServer.getRandom().nextInt(users.size())).getName();
+            // Also search from the second word, exercising substring matching.
+            int start = mServer.getRandom().nextBoolean() ? 0 : name.indexOf(' ') + 1;
+            for (int end = start + 1; end <= name.length(); end++) {
+                mQueries.add(name.substring(start, end));
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (mSearchIndex != null) {
+            SearchIndex.unpublish(mSearchIndex);
+        }
+    }
+
+    @Test
+    public void benchmarkNameIndexSearch() throws Exception {
+        final NameIndex nameIndex = mServer.getNameIndex();
+        final int[] query = { 0 };
+        Benchmark.run("NameIndex.search", new Benchmark.Operation() {
+            @Override
+            public void run() {
+                nameIndex.search(mQueries.get(query[0]++ % mQueries.size()), 20);
+            }
+        });
+    }
+
+    @Test
+    public void benchmarkProviderQuery() throws Exception {
+        final ChannelSearchProvider provider = new ChannelSearchProvider();
+        provider.attachInfo(RuntimeEnvironment.application, null);
+        final int[] query = { 0 };
+        Benchmark.run("ChannelSearchProvider.query", new Benchmark.Operation() {
+            @Override
+            public void run() {
+                String[] selectionArgs = { mQueries.get(query[0]++ % mQueries.size()) };
+                Cursor cursor = provider.query(SUGGEST_URI, null, null, selectionArgs, null);
+                assertNotNull(cursor);
+                cursor.close();
+            }
+        });
+    }
+}
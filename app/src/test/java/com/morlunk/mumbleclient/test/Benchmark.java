@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * A minimal harness for JVM benchmarks, reporting throughput and allocation per operation.
+ *
+ * Benchmarks only run when the "plumble.benchmark" system property is set, i.e. when running
+ * {@code ./gradlew testOfficialDebugUnitTest -Pbenchmark}. Each benchmark is warmed up so that
+ * the JIT has compiled the measured code before measurement begins.
+ */
+public class Benchmark {
+    private static final long WARMUP_NANOS = 1000 * 1000 * 1000L;
+    private static final long MEASURE_NANOS = 2000 * 1000 * 1000L;
+
+    /**
+     * An operation to benchmark.
+     */
+    public interface Operation {
+        void run() throws Exception;
+    }
+
+    /**
+     * @return true if benchmarks were requested for this test run.
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("plumble.benchmark");
+    }
+
+    /**
+     * Measures the given operation, printing and returning its results.
+     * @param name The name to report the results under.
+     * @param operation The operation to repeat.
+     */
+    public static Result run(String name, Operation operation) throws Exception {
+        repeat(operation, WARMUP_NANOS);
+
+        long allocatedBefore = getAllocatedBytes();
+        long start = System.nanoTime();
+        long ops = repeat(operation, MEASURE_NANOS);
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = getAllocatedBytes();
+
+        double opsPerSecond = ops * 1e9 / elapsed;
+        long bytesPerOp = allocatedBefore < 0 ? -1 : (allocatedAfter - allocatedBefore) / ops;
+        Result result = new Result(name, opsPerSecond, bytesPerOp);
+        System.out.println(result);
+        return result;
+    }
+
+    private static long repeat(Operation operation, long duration) throws Exception {
+        long ops = 0;
+        long end = System.nanoTime() + duration;
+        do {
+            operation.run();
+            ops++;
+        } while (System.nanoTime() < end);
+        return ops;
+    }
+
+    /**
+     * @return The number of bytes allocated by the current thread, or -1 if the JVM can't tell.
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported()) {
+                sunBean.setThreadAllocatedMemoryEnabled(true);
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    public static class Result {
+        private final String mName;
+        private final double mOpsPerSecond;
+        private final long mBytesPerOp;
+
+        public Result(String name, double opsPerSecond, long bytesPerOp) {
+            mName = name;
+            mOpsPerSecond = opsPerSecond;
+            mBytesPerOp = bytesPerOp;
+        }
+
+        public double getOpsPerSecond() {
+            return mOpsPerSecond;
+        }
+
+        /**
+         * @return The bytes allocated per operation, or -1 if unknown.
+         */
+        public long getBytesPerOp() {
+            return mBytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-40s %12.1f ops/s %12d bytes/op",
+                    mName, mOpsPerSecond, mBytesPerOp);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.test;
+
+import com.morlunk.jumble.model.IChannel;
+import com.morlunk.jumble.model.IMessage;
+import com.morlunk.jumble.model.IUser;
+import com.morlunk.jumble.model.TalkState;
+import com.morlunk.jumble.util.JumbleObserver;
+import com.morlunk.mumbleclient.util.ObserverTraceRecorder;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that recorded observer traces replay the same callbacks against an equivalent model.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ObserverTraceTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        FakeServer server = new FakeServer.Builder()
+                .setChannelCount(20)
+                .setUserCount(50)
+                .setDepth(3)
+                .build();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ObserverTraceRecorder recorder = new ObserverTraceRecorder(output);
+        List<String> expected = new ArrayList<String>();
+        recorder.onConnecting();
+        for (IChannel channel : server.getChannels()) {
+            recorder.onChannelAdded(channel);
+            expected.add("channel " + channel.getId() + " " + channel.getName() + " " +
+                    (channel.getParent() != null ? channel.getParent().getId() : -1));
+        }
+        for (IUser user : server.getUsers()) {
+            recorder.onUserConnected(user);
+            expected.add("user " + user.getSession() + " " + user.getName() + " " +
+                    user.getChannel().getId());
+        }
+        recorder.onConnected();
+
+        IUser user = server.getUsers().get(0);
+        IChannel oldChannel = user.getChannel();
+        IChannel newChannel = server.getChannels().get(5);
+        server.moveUser(user, newChannel);
+        recorder.onUserJoinedChannel(user, newChannel, oldChannel);
+        server.setTalkState(user, TalkState.TALKING);
+        recorder.onUserTalkStateUpdated(user);
+        recorder.onMessageLogged(JumbleFakes.create(IMessage.class, new JumbleFakes.Properties()
+                .put("getActor", user.getSession())
+                .put("getActorName", user.getName())
+                .put("getMessage", "<b>Hello</b>")
+                .put("getTargetChannels", Collections.singletonList(newChannel))
+                .build()));
+        recorder.onUserRemoved(user, "Bye");
+        recorder.onLogInfo("Info");
+        recorder.onDisconnected(null);
+        recorder.close();
+        assertTrue(recorder.awaitTermination(5, TimeUnit.SECONDS));
+
+        ObserverTraceReplayer replayer = new ObserverTraceReplayer(
+                new ByteArrayInputStream(output.toByteArray()));
+        final List<String> events = new ArrayList<String>();
+        replayer.getService().registerObserver(new JumbleObserver() {
+            @Override
+            public void onChannelAdded(IChannel channel) {
+                events.add("channel " + channel.getId() + " " + channel.getName() + " " +
+                        (channel.getParent() != null ? channel.getParent().getId() : -1));
+            }
+
+            @Override
+            public void onUserConnected(IUser user) {
+                events.add("user " + user.getSession() + " " + user.getName() + " " +
+                        user.getChannel().getId());
+            }
+
+            @Override
+            public void onUserJoinedChannel(IUser user, IChannel newChannel, IChannel oldChannel) {
+                events.add("join " + user.getSession() + " " + newChannel.getId() + " " +
+                        oldChannel.getId() + " " + newChannel.getUsers().contains(user));
+            }
+
+            @Override
+            public void onUserTalkStateUpdated(IUser user) {
+                events.add("talk " + user.getSession() + " " + user.getTalkState());
+            }
+
+            @Override
+            public void onMessageLogged(IMessage message) {
+                events.add("message " + message.getActorName() + " " + message.getMessage() + " " +
+                        ((IChannel) message.getTargetChannels().get(0)).getId());
+            }
+
+            @Override
+            public void onUserRemoved(IUser user, String reason) {
+                events.add("remove " + user.getSession() + " " + reason);
+            }
+
+            @Override
+            public void onLogInfo(String message) {
+                events.add("info " + message);
+            }
+        });
+
+        ObserverTraceReplayer.Stats stats = replayer.replay(false);
+        assertEquals(replayer.getEventCount(), stats.getEventCount());
+        assertEquals(server.getChannels().size() + server.getUsers().size() + 8,
+                stats.getEventCount());
+
+        expected.add("join " + user.getSession() + " " + newChannel.getId() + " " +
+                oldChannel.getId() + " true");
+        expected.add("talk " + user.getSession() + " " + TalkState.TALKING);
+        expected.add("message " + user.getName() + " <b>Hello</b> " + newChannel.getId());
+        expected.add("remove " + user.getSession() + " Bye");
+        expected.add("info Info");
+        assertEquals(expected, events);
+    }
+}
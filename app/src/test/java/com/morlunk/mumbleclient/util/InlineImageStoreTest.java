@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2016 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.util;
+
+import android.util.Base64;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that large inline images are moved out of message bodies and can be read back.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class InlineImageStoreTest {
+    private static final Pattern REFERENCE_PATTERN =
+            Pattern.compile("src=\"" + InlineImageStore.SCHEME + "([0-9a-f]{40})\"");
+
+    @Test
+    public void testOffload() {
+        InlineImageStore store = InlineImageStore.getInstance(RuntimeEnvironment.application);
+        byte[] image = new byte[16 * 1024];
+        new Random(0).nextBytes(image);
+        String smallImage = "<img src=\"data:image/png;base64,iVBORw0KGgo=\"/>";
+        String body = "<p>Look:</p>" + smallImage +
+                "<img src=\"data:image/png;base64," + Base64.encodeToString(image, Base64.NO_WRAP) + "\"/>";
+
+        String offloaded = store.offload(body);
+        assertTrue(offloaded.length() < 200);
+        assertTrue(offloaded.startsWith("<p>Look:</p>" + smallImage + "<img src=\""));
+        Matcher matcher = REFERENCE_PATTERN.matcher(offloaded);
+        assertTrue(matcher.find());
+        assertArrayEquals(image, store.read(matcher.group(1)));
+        assertEquals(Collections.singleton(matcher.group(1)), InlineImageStore.findKeys(offloaded));
+
+        // The same image is stored under the same key.
+        assertEquals(offloaded, store.offload(body));
+    }
+
+    @Test
+    public void testSmallBodyUnchanged() {
+        InlineImageStore store = InlineImageStore.getInstance(RuntimeEnvironment.application);
+        String body = "<b>Hello</b><img src=\"data:image/png;base64,iVBORw0KGgo=\"/>";
+        assertSame(body, store.offload(body));
+    }
+}